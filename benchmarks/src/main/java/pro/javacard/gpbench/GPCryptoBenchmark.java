@@ -0,0 +1,151 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.HexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.javacard.gp.GPCrypto;
+
+import javax.crypto.BadPaddingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Primitives of GPCrypto, over payloads from a single block to a full extended length APDU and beyond.
+// Run with the GC profiler:
+//
+//   java -cp ... pro.javacard.gpbench.GPCryptoBenchmark [JMH options]
+//
+// Baseline numbers are in jmh-baseline.txt
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GPCryptoBenchmark {
+    static final byte[] KEY = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+    static final byte[] ICV = new byte[8];
+
+    @Param({"8", "64", "256", "1024", "4096", "16384", "65536"})
+    int size;
+
+    byte[] payload;
+    // Block aligned, as given to the DEK
+    byte[] aligned;
+    byte[] padded;
+
+    @Setup
+    public void setup() {
+        payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        aligned = Arrays.copyOf(payload, (size + 15) / 16 * 16);
+        padded = GPCrypto.pad80(payload, 16);
+    }
+
+    @Benchmark
+    public byte[] mac_3des() {
+        return GPCrypto.mac_3des(KEY, payload, ICV);
+    }
+
+    @Benchmark
+    public byte[] mac_des_3des() {
+        return GPCrypto.mac_des_3des(KEY, payload, ICV);
+    }
+
+    @Benchmark
+    public byte[] scp03_mac() {
+        return GPCrypto.scp03_mac(KEY, payload, 64);
+    }
+
+    // Cryptograms and session keys, with the payload as the context
+    @Benchmark
+    public byte[] scp03_kdf() {
+        return GPCrypto.scp03_kdf(KEY, (byte) 0x04, payload, 128);
+    }
+
+    @Benchmark
+    public byte[] scp03_kdf_generic() {
+        return GPCrypto.scp03_kdf(KEY, payload, payload, 16);
+    }
+
+    @Benchmark
+    public byte[] dek_encrypt_des() throws GeneralSecurityException {
+        return GPCrypto.dek_encrypt_des(KEY, aligned);
+    }
+
+    @Benchmark
+    public byte[] dek_encrypt_aes() throws GeneralSecurityException {
+        return GPCrypto.dek_encrypt_aes(KEY, aligned);
+    }
+
+    @Benchmark
+    public byte[] pad80() {
+        return GPCrypto.pad80(payload, 16);
+    }
+
+    @Benchmark
+    public byte[] unpad80() throws BadPaddingException {
+        return GPCrypto.unpad80(padded);
+    }
+
+    // Check values do not depend on the payload
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Keys {
+        @Benchmark
+        public byte[] kcv_aes() {
+            return GPCrypto.kcv_aes(KEY);
+        }
+
+        @Benchmark
+        public byte[] kcv_3des() {
+            return GPCrypto.kcv_3des(KEY);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty())
+            builder.include(GPCryptoBenchmark.class.getName());
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.HexUtils;
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.gp.GPCardSimulator;
+import pro.javacard.gp.GPRegistryEntry.Privilege;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+import pro.javacard.gp.GPSession;
+import pro.javacard.gp.GPSession.APDUMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Host side cost of complete workflows, against GPCardSimulator without latency. Time, CPU time and allocations
+// of the simulated card are measured separately and subtracted, so the numbers are about GPSession and friends.
+//
+//   java -cp ... pro.javacard.gpbench.HostBenchmark [--iterations 10] [--warmup 3] [--only load,list]
+//        [--baseline baseline.properties [--tolerance 0.25] [--cpu-tolerance 1.0]] [--write-baseline file]
+//
+// With --baseline, exits with 1 if allocations (and CPU time, if --cpu-tolerance is given) per APDU of any workflow
+// exceed the baseline by more than the tolerance. Allocations are stable across machines, CPU time is not.
+public final class HostBenchmark {
+    static final byte[] KEY = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+    static final Path DEFAULT_CAP = Path.of("..", "tests", "Empty_0102030405_8d5ac9e2_2.2.1.cap");
+    static final int CAP_SIZE = 60 * 1024;
+    static final int STORE_DATA_SIZE = 1024 * 1024;
+    static final int INSTANCES = 32;
+
+    interface Step {
+        GPSession run(APDUBIBO channel, GPSession gp) throws Exception;
+    }
+
+    static final class Workflow {
+        final String name;
+        final SCP scp;
+        final Step setup;
+        final Step measured;
+
+        Workflow(String name, SCP scp, Step setup, Step measured) {
+            this.name = name;
+            this.scp = scp;
+            this.setup = setup;
+            this.measured = measured;
+        }
+    }
+
+    static final class Result {
+        final String name;
+        long ops;
+        long apdus;
+        long bytes;
+        long nanos;
+        long cpu;
+        long allocated;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        double apdusPerSecond() {
+            return apdus * 1e9 / Math.max(1, nanos);
+        }
+
+        double bytesPerSecond() {
+            return bytes * 1e9 / Math.max(1, nanos);
+        }
+
+        double allocatedPerApdu() {
+            return (double) allocated / Math.max(1, apdus);
+        }
+
+        double cpuPerApdu() {
+            return cpu / 1000.0 / Math.max(1, apdus);
+        }
+
+        double cpuPerOp() {
+            return cpu / 1e6 / Math.max(1, ops);
+        }
+    }
+
+    private HostBenchmark() {
+    }
+
+    static GPSession open(APDUBIBO channel, SCP scp, APDUMode... level) throws IOException {
+        GPSession gp = GPSession.discover(channel);
+        gp.openSecureChannel(new SimulatorKeys(scp, KEY, 0), null, null, EnumSet.of(level[0], level));
+        return gp;
+    }
+
+    static AID instance(int i) {
+        return new AID(String.format("A0000006170001%02X", i));
+    }
+
+    static List<Workflow> workflows(CAPFile cap) {
+        AID pkg = cap.getPackageAID();
+        AID applet = cap.getAppletAIDs().get(0);
+        byte[] perso = new byte[STORE_DATA_SIZE];
+        for (int i = 0; i < perso.length; i++)
+            perso[i] = (byte) i;
+        Step connect = (c, gp) -> open(c, SCP.SCP03, APDUMode.ENC);
+        Step loaded = (c, gp) -> {
+            gp = open(c, SCP.SCP03, APDUMode.ENC);
+            gp.loadCapFile(cap, null, null);
+            return gp;
+        };
+        Step installed = (c, gp) -> {
+            gp = loaded.run(c, gp);
+            gp.installAndMakeSelectable(pkg, applet, instance(0), EnumSet.noneOf(Privilege.class), null);
+            return gp;
+        };
+        Step none = (c, gp) -> null;
+
+        List<Workflow> workflows = new ArrayList<>();
+        workflows.add(new Workflow("discover", SCP.SCP03, none, (c, gp) -> GPSession.discover(c)));
+        workflows.add(new Workflow("open-scp02-mac", SCP.SCP02, none, (c, gp) -> open(c, SCP.SCP02, APDUMode.MAC)));
+        workflows.add(new Workflow("open-scp02-enc", SCP.SCP02, none, (c, gp) -> open(c, SCP.SCP02, APDUMode.ENC)));
+        workflows.add(new Workflow("open-scp03-mac", SCP.SCP03, none, (c, gp) -> open(c, SCP.SCP03, APDUMode.MAC)));
+        workflows.add(new Workflow("open-scp03-enc", SCP.SCP03, none, (c, gp) -> open(c, SCP.SCP03, APDUMode.ENC)));
+        workflows.add(new Workflow("open-scp03-renc", SCP.SCP03, none, (c, gp) -> open(c, SCP.SCP03, APDUMode.RENC)));
+        workflows.add(new Workflow("load", SCP.SCP03, connect, (c, gp) -> {
+            gp.loadCapFile(cap, null, null);
+            return gp;
+        }));
+        workflows.add(new Workflow("install", SCP.SCP03, loaded, (c, gp) -> {
+            gp.installAndMakeSelectable(pkg, applet, instance(0), EnumSet.noneOf(Privilege.class), null);
+            return gp;
+        }));
+        workflows.add(new Workflow("list", SCP.SCP03, (c, gp) -> {
+            gp = loaded.run(c, gp);
+            for (int i = 0; i < INSTANCES; i++)
+                gp.installAndMakeSelectable(pkg, applet, instance(i), EnumSet.noneOf(Privilege.class), null);
+            return gp;
+        }, (c, gp) -> {
+            gp.getRegistry();
+            return gp;
+        }));
+        workflows.add(new Workflow("personalize", SCP.SCP03, installed, (c, gp) -> {
+            gp.personalize(instance(0), perso, 0x00);
+            return gp;
+        }));
+        workflows.add(new Workflow("rotate-keys", SCP.SCP03, connect, (c, gp) -> {
+            gp.putKeys(new SimulatorKeys(SCP.SCP03, HexUtils.hex2bin("000102030405060708090A0B0C0D0E0F"), 0x01), true);
+            return gp;
+        }));
+        return workflows;
+    }
+
+    static Result run(Workflow w, int iterations) throws Exception {
+        Result r = new Result(w.name);
+        for (int i = 0; i < iterations; i++) {
+            MeteredCard card = new MeteredCard(new GPCardSimulator(w.scp, KEY));
+            APDUBIBO channel = new APDUBIBO(card);
+            GPSession gp = w.setup.run(channel, null);
+            card.reset();
+            long allocated = MeteredCard.allocated();
+            long cpu = MeteredCard.cpu();
+            long start = System.nanoTime();
+            w.measured.run(channel, gp);
+            r.nanos += System.nanoTime() - start - card.nanos;
+            r.cpu += MeteredCard.cpu() - cpu - card.cpu;
+            r.allocated += MeteredCard.allocated() - allocated - card.allocated;
+            r.apdus += card.apdus;
+            r.bytes += card.bytes;
+            r.ops++;
+        }
+        return r;
+    }
+
+    // A copy of the CAP file with the Method component padded to the given size, so that the load file is large
+    static CAPFile enlarge(Path cap, int size) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(cap);
+             ZipInputStream zin = new ZipInputStream(in);
+             ZipOutputStream zout = new ZipOutputStream(bo)) {
+            byte[] directory = null;
+            byte[] method = null;
+            String prefix = null;
+            ZipEntry e;
+            while ((e = zin.getNextEntry()) != null) {
+                byte[] data = zin.readAllBytes();
+                if (e.getName().endsWith("javacard/Directory.cap")) {
+                    directory = data;
+                } else if (e.getName().endsWith("javacard/Method.cap")) {
+                    method = data;
+                    prefix = e.getName().substring(0, e.getName().length() - "Method.cap".length());
+                } else {
+                    zout.putNextEntry(new ZipEntry(e.getName()));
+                    zout.write(data);
+                }
+            }
+            if (directory == null || method == null)
+                throw new IOException("No Directory or Method component in " + cap);
+            int length = Math.min(0xFFFF, Math.max(size, method.length - 3));
+            method = Arrays.copyOf(method, length + 3);
+            method[1] = (byte) (length >> 8);
+            method[2] = (byte) length;
+            // Size of Method (tag 7) in the Directory component
+            directory[3 + 2 * 6] = (byte) (length >> 8);
+            directory[3 + 2 * 6 + 1] = (byte) length;
+            zout.putNextEntry(new ZipEntry(prefix + "Directory.cap"));
+            zout.write(directory);
+            zout.putNextEntry(new ZipEntry(prefix + "Method.cap"));
+            zout.write(method);
+        }
+        return CAPFile.fromStream(new ByteArrayInputStream(bo.toByteArray()));
+    }
+
+    static void report(List<Result> results, int iterations, int warmup) {
+        System.out.printf("# Host cost: %d iteration(s) after %d warmup(s), Java %s%n", iterations, warmup, System.getProperty("java.vm.version"));
+        System.out.printf(Locale.ROOT, "%-16s %10s %12s %12s %12s %12s%n", "workflow", "APDU/op", "APDU/s", "KB/s", "B/APDU", "CPU ms/op");
+        for (Result r : results) {
+            System.out.printf(Locale.ROOT, "%-16s %10d %12.0f %12.0f %12.0f %12.3f%n", r.name, r.apdus / Math.max(1, r.ops),
+                    r.apdusPerSecond(), r.bytesPerSecond() / 1024, r.allocatedPerApdu(), r.cpuPerOp());
+        }
+    }
+
+    // Sorted and without a timestamp, so that changes to the baseline diff well
+    static void write(List<Result> results, OutputStream out) throws IOException {
+        Map<String, String> values = new TreeMap<>();
+        for (Result r : results) {
+            values.put(r.name + ".alloc", String.format(Locale.ROOT, "%.0f", r.allocatedPerApdu()));
+            values.put(r.name + ".cpu", String.format(Locale.ROOT, "%.1f", r.cpuPerApdu()));
+        }
+        PrintStream p = new PrintStream(out, false, StandardCharsets.UTF_8);
+        p.println("# Host cost per APDU: allocated bytes (alloc) and CPU microseconds (cpu)");
+        values.forEach((k, v) -> p.println(k + "=" + v));
+        p.flush();
+    }
+
+    // Returns the regressions
+    static List<String> compare(List<Result> results, Properties baseline, double tolerance, double cpuTolerance) {
+        List<String> failures = new ArrayList<>();
+        for (Result r : results) {
+            String alloc = baseline.getProperty(r.name + ".alloc");
+            if (alloc != null && r.allocatedPerApdu() > Double.parseDouble(alloc) * (1 + tolerance))
+                failures.add(String.format(Locale.ROOT, "%s: %.0f bytes per APDU, baseline %s", r.name, r.allocatedPerApdu(), alloc));
+            String cpu = baseline.getProperty(r.name + ".cpu");
+            if (cpuTolerance >= 0 && cpu != null && r.cpuPerApdu() > Double.parseDouble(cpu) * (1 + cpuTolerance))
+                failures.add(String.format(Locale.ROOT, "%s: %.1f us CPU per APDU, baseline %s", r.name, r.cpuPerApdu(), cpu));
+        }
+        return failures;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        // Logging as with the tool, before any logger is created
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", System.getProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn"));
+        Map<String, String> args = new LinkedHashMap<>();
+        for (int i = 0; i < argv.length; i += 2) {
+            if (!argv[i].startsWith("--") || i + 1 == argv.length) {
+                System.err.println("Usage: HostBenchmark [--iterations n] [--warmup n] [--only a,b] [--cap file] [--baseline file] [--tolerance x] [--cpu-tolerance x] [--write-baseline file]");
+                System.exit(2);
+            }
+            args.put(argv[i].substring(2), argv[i + 1]);
+        }
+        int iterations = Integer.parseInt(args.getOrDefault("iterations", "10"));
+        int warmup = Integer.parseInt(args.getOrDefault("warmup", "3"));
+        CAPFile cap = enlarge(Path.of(args.getOrDefault("cap", DEFAULT_CAP.toString())), CAP_SIZE);
+
+        List<Workflow> workflows = workflows(cap);
+        if (args.containsKey("only")) {
+            List<String> only = Arrays.asList(args.get("only").split(","));
+            workflows.removeIf(w -> !only.contains(w.name));
+        }
+        List<Result> results = new ArrayList<>();
+        for (Workflow w : workflows) {
+            run(w, warmup);
+            results.add(run(w, iterations));
+        }
+        report(results, iterations, warmup);
+
+        if (args.containsKey("write-baseline")) {
+            try (OutputStream out = Files.newOutputStream(Path.of(args.get("write-baseline")))) {
+                write(results, out);
+            }
+        }
+        if (args.containsKey("baseline")) {
+            Properties baseline = new Properties();
+            try (InputStream in = Files.newInputStream(Path.of(args.get("baseline")))) {
+                baseline.load(in);
+            }
+            List<String> failures = compare(results, baseline, Double.parseDouble(args.getOrDefault("tolerance", "0.25")),
+                    Double.parseDouble(args.getOrDefault("cpu-tolerance", "-1")));
+            for (String f : failures)
+                System.out.println("# REGRESSION " + f);
+            if (!failures.isEmpty())
+                System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.HexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.SCP03KeySchedule;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// SCP03 session set-up CPU: session keys and both cryptograms for one context, as openSecureChannel needs them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyScheduleBenchmark {
+    static final byte[] CONTEXT = HexUtils.hex2bin("0102030405060708A1A2A3A4A5A6A7A8");
+
+    @Param({"16", "32"})
+    int length;
+
+    byte[] enc;
+    byte[] mac;
+    SCP03KeySchedule schedule;
+
+    @Setup
+    public void setup() {
+        enc = Arrays.copyOf(HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F404142434445464748494A4B4C4D4E4F"), length);
+        mac = enc.clone();
+        schedule = new SCP03KeySchedule(enc, mac);
+    }
+
+    // What getSessionKey() three times and scp03_kdf() twice cost
+    @Benchmark
+    public void separate(Blackhole bh) {
+        int bits = length * 8;
+        byte[] smac = GPCrypto.scp03_kdf(mac, (byte) 0x06, CONTEXT, bits);
+        bh.consume(GPCrypto.scp03_kdf(enc, (byte) 0x04, CONTEXT, bits));
+        bh.consume(GPCrypto.scp03_kdf(mac, (byte) 0x07, CONTEXT, bits));
+        bh.consume(GPCrypto.scp03_kdf(smac, (byte) 0x00, CONTEXT, 64));
+        bh.consume(GPCrypto.scp03_kdf(smac, (byte) 0x01, CONTEXT, 64));
+    }
+
+    // Schedule reused across sessions, as with a long lived key object
+    @Benchmark
+    public SCP03KeySchedule.SessionKeys reused() {
+        return schedule.derive(CONTEXT);
+    }
+
+    // Schedule per session, as with PlaintextKeys
+    @Benchmark
+    public SCP03KeySchedule.SessionKeys fresh() {
+        return new SCP03KeySchedule(enc, mac).derive(CONTEXT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty())
+            builder.include(KeyScheduleBenchmark.class.getName());
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+
+import java.lang.management.ManagementFactory;
+
+// Counts APDU-s and bytes, and measures the time, CPU time and allocations of the card,
+// so that they can be subtracted from the measurements of the (same) host thread.
+final class MeteredCard implements BIBO {
+    static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final BIBO card;
+    long apdus;
+    long bytes;
+    long nanos;
+    long cpu;
+    long allocated;
+
+    MeteredCard(BIBO card) {
+        this.card = card;
+    }
+
+    static long cpu() {
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    static long allocated() {
+        // getCurrentThreadAllocatedBytes() is Java 14+
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    void reset() {
+        apdus = bytes = nanos = cpu = allocated = 0;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws BIBOException {
+        long a = allocated();
+        long c = cpu();
+        long t = System.nanoTime();
+        byte[] response = card.transceive(command);
+        nanos += System.nanoTime() - t;
+        cpu += cpu() - c;
+        allocated += allocated() - a;
+        apdus++;
+        bytes += command.length + response.length;
+        return response;
+    }
+
+    @Override
+    public void close() {
+        card.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.HexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.GPCryptoBackend;
+import pro.javacard.gp.GPUtils;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// SCP03 C-MAC and C-DECRYPTION cost of bulk LOAD and STORE DATA traffic, per crypto backend:
+// "jca" does CMAC with JCE AES/CBC (HotSpot intrinsics), "bc" with BouncyCastle AESEngine.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SCP03Benchmark {
+    static final byte[] KEY = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+    // Data per APDU, as with LOAD and STORE DATA under C-MAC and C-DECRYPTION
+    static final int BLOCK = 239;
+
+    @Param({"jca", "bc"})
+    String backend;
+
+    @Param({"4096", "65536", "1048576"})
+    int size;
+
+    byte[] payload;
+    GPCryptoBackend original;
+
+    @Setup
+    public void setup() {
+        payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        original = GPCrypto.getBackend();
+        GPCrypto.setBackend(GPCryptoBackend.forName(backend));
+    }
+
+    @TearDown
+    public void teardown() {
+        GPCrypto.setBackend(original);
+    }
+
+    // Single MAC over the whole payload
+    @Benchmark
+    public byte[] cmac() {
+        return GPCrypto.scp03_mac(KEY, payload, 128);
+    }
+
+    // What SCP03Wrapper does for each APDU: IV from the counter, encryption of padded data, MAC over
+    // chaining value, header and encrypted data
+    @Benchmark
+    public byte[] traffic() throws GeneralSecurityException {
+        GPCryptoBackend crypto = GPCrypto.getBackend();
+        byte[] chaining = new byte[16];
+        byte[] counter = new byte[16];
+        for (int offset = 0; offset < payload.length; offset += BLOCK) {
+            GPCrypto.buffer_increment(counter);
+            byte[] data = GPCrypto.pad80(Arrays.copyOfRange(payload, offset, Math.min(payload.length, offset + BLOCK)), 16);
+            byte[] iv = crypto.encrypt(GPCryptoBackend.Algorithm.AES, KEY, GPCrypto.null_bytes_16, counter, 0, 16);
+            byte[] cgram = crypto.encrypt(GPCryptoBackend.Algorithm.AES, KEY, iv, data, 0, data.length);
+            byte[] header = new byte[]{(byte) 0x84, (byte) 0xE2, 0x00, 0x00, (byte) (cgram.length + 8)};
+            chaining = GPCrypto.scp03_mac(KEY, GPUtils.concatenate(chaining, header, cgram), 128);
+        }
+        return chaining;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty())
+            builder.include(SCP03Benchmark.class.getName());
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import pro.javacard.capfile.AID;
+import pro.javacard.gp.AsyncGPSession;
+import pro.javacard.gp.GPSession;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// How many concurrent card sessions AsyncGPSession.newCardExecutor() can drive. Every simulated card answers
+// after a fixed latency, like a reader would, so with ideal scaling throughput grows with the number of cards
+// and a session always takes APDU-s x latency. The number of cards is multiplied by the factor until throughput
+// grows less than the minimum gain, the median session is slower than allowed or the maximum is reached.
+//
+//   java -cp ... pro.javacard.gpbench.SessionScalingBenchmark [--apdus 10] [--latency 1] [--start 1] [--factor 2]
+//        [--max 100000] [--min-gain 0.1] [--max-slowdown 4]
+//
+// Uses virtual threads on Java 21+. Before that every busy card takes a platform thread.
+public final class SessionScalingBenchmark {
+    static final AID ISD = AID.fromString("A000000151000000");
+    static final CommandAPDU COMMAND = new CommandAPDU(0x80, 0xCA, 0x00, 0x66);
+    static final long TIMEOUT_SECONDS = 300;
+
+    // Answers 9000 to everything, after the latency
+    static final class LatencyCard implements BIBO {
+        private final long latency;
+
+        LatencyCard(long latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) throws BIBOException {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BIBOException("Interrupted");
+            }
+            return HexUtils.hex2bin("9000");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static final class Step {
+        final int cards;
+        long apdus;
+        long nanos;
+        long medianSession;
+        long maxSession;
+        int peakThreads;
+
+        Step(int cards) {
+            this.cards = cards;
+        }
+
+        double apdusPerSecond() {
+            return apdus * 1e9 / Math.max(1, nanos);
+        }
+    }
+
+    private SessionScalingBenchmark() {
+    }
+
+    // Every card gets its APDU-s as separate tasks, so that each one waits for the previous one of the same card
+    static Step run(int cards, int apdus, long latency) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        Step step = new Step(cards);
+        long[] sessions = new long[cards];
+        ExecutorService pool = AsyncGPSession.newCardExecutor();
+        try {
+            List<CompletableFuture<Void>> results = new ArrayList<>(cards);
+            long start = System.nanoTime();
+            for (int i = 0; i < cards; i++) {
+                final int n = i;
+                final long submitted = System.nanoTime();
+                APDUBIBO channel = new APDUBIBO(new LatencyCard(latency));
+                AsyncGPSession card = new AsyncGPSession(new GPSession(channel, ISD), pool);
+                CompletableFuture<Integer> last = null;
+                for (int j = 0; j < apdus; j++)
+                    last = card.submit(s -> channel.transmit(COMMAND).getSW());
+                results.add(last.thenAccept(sw -> {
+                    if (sw != 0x9000)
+                        throw new IllegalStateException(String.format("Card %d returned %04X", n, sw));
+                    sessions[n] = System.nanoTime() - submitted;
+                }));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            step.nanos = System.nanoTime() - start;
+        } finally {
+            pool.shutdown();
+        }
+        step.apdus = (long) cards * apdus;
+        Arrays.sort(sessions);
+        step.medianSession = sessions[cards / 2];
+        step.maxSession = sessions[cards - 1];
+        step.peakThreads = threads.getPeakThreadCount();
+        return step;
+    }
+
+    // Null while the current step still scales, otherwise the reason why it does not
+    static String limit(Step previous, Step current, int apdus, long latency, double minGain, double maxSlowdown) {
+        double ideal = TimeUnit.MILLISECONDS.toNanos(apdus * latency);
+        if (current.medianSession > ideal * maxSlowdown)
+            return String.format(Locale.ROOT, "median session %.1f ms, %.1f times the ideal", current.medianSession / 1e6, current.medianSession / ideal);
+        if (previous != null && current.apdusPerSecond() < previous.apdusPerSecond() * (1 + minGain))
+            return String.format(Locale.ROOT, "%.0f APDU/s, %d cards had %.0f", current.apdusPerSecond(), previous.cards, previous.apdusPerSecond());
+        return null;
+    }
+
+    static void report(Step s) {
+        System.out.printf(Locale.ROOT, "%10d %12.0f %12.1f %12.1f %10d%n", s.cards, s.apdusPerSecond(), s.medianSession / 1e6, s.maxSession / 1e6, s.peakThreads);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        // Logging as with the tool, before any logger is created
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", System.getProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn"));
+        Map<String, String> args = new LinkedHashMap<>();
+        for (int i = 0; i < argv.length; i += 2) {
+            if (!argv[i].startsWith("--") || i + 1 == argv.length) {
+                System.err.println("Usage: SessionScalingBenchmark [--apdus n] [--latency ms] [--start n] [--factor n] [--max n] [--min-gain x] [--max-slowdown x]");
+                System.exit(2);
+            }
+            args.put(argv[i].substring(2), argv[i + 1]);
+        }
+        int apdus = Integer.parseInt(args.getOrDefault("apdus", "10"));
+        long latency = Long.parseLong(args.getOrDefault("latency", "1"));
+        int start = Integer.parseInt(args.getOrDefault("start", "1"));
+        int factor = Integer.parseInt(args.getOrDefault("factor", "2"));
+        int max = Integer.parseInt(args.getOrDefault("max", "100000"));
+        double minGain = Double.parseDouble(args.getOrDefault("min-gain", "0.1"));
+        double maxSlowdown = Double.parseDouble(args.getOrDefault("max-slowdown", "4"));
+        if (start < 1 || factor < 2 || apdus < 1) {
+            System.err.println("Error: --start and --apdus must be at least 1, --factor at least 2");
+            System.exit(2);
+        }
+
+        System.out.printf("# Sessions: %d APDU-s at %d ms, %s, Java %s%n", apdus, latency,
+                AsyncGPSession.hasVirtualThreads() ? "virtual threads" : "platform threads", System.getProperty("java.vm.version"));
+        // Warm up
+        run(Math.min(max, 100), apdus, latency);
+
+        System.out.printf("%10s %12s %12s %12s %10s%n", "cards", "APDU/s", "median ms", "max ms", "threads");
+        Step previous = null;
+        for (long cards = start; cards <= max; cards *= factor) {
+            Step step = run((int) cards, apdus, latency);
+            report(step);
+            String reason = limit(previous, step, apdus, latency, minGain, maxSlowdown);
+            if (reason != null) {
+                System.out.printf("# Stops scaling at %d cards: %s%n", step.cards, reason);
+                return;
+            }
+            previous = step;
+        }
+        System.out.printf("# Still scaling at %d cards%n", previous == null ? 0 : previous.cards);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gpbench;
+
+import pro.javacard.gp.GPCardKeys;
+import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.GPKeyInfo;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+import pro.javacard.gp.SCP03KeySchedule;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.Optional;
+
+// Plaintext static keys (same for ENC, MAC and DEK), as the simulator has them. Same as PlaintextKeys of the tool,
+// without diversification.
+final class SimulatorKeys extends GPCardKeys {
+    private final byte[] key;
+    private final int version;
+    private SCP03KeySchedule schedule;
+
+    SimulatorKeys(SCP scp, byte[] key, int version) {
+        this.scp = scp;
+        this.key = key.clone();
+        this.version = version;
+    }
+
+    @Override
+    public GPKeyInfo getKeyInfo() {
+        return new GPKeyInfo(version, 0x01, key.length, scp == SCP.SCP03 ? GPKeyInfo.GPKey.AES : GPKeyInfo.GPKey.DES3);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, byte[] sessionContext) throws GeneralSecurityException {
+        if (scp == SCP.SCP02)
+            return GPCrypto.dek_encrypt_des(getSessionKey(KeyPurpose.DEK, sessionContext), data);
+        return GPCrypto.dek_encrypt_aes(key, data);
+    }
+
+    @Override
+    public byte[] encryptKey(GPCardKeys other, KeyPurpose p, byte[] sessionContext) throws GeneralSecurityException {
+        if (!(other instanceof SimulatorKeys))
+            throw new IllegalArgumentException(getClass().getName() + " can only handle " + getClass().getName());
+        return encrypt(((SimulatorKeys) other).key, sessionContext);
+    }
+
+    @Override
+    public byte[] getSessionKey(KeyPurpose p, byte[] context) {
+        if (scp == SCP.SCP03) {
+            if (p == KeyPurpose.DEK)
+                return key.clone();
+            byte constant = p == KeyPurpose.ENC ? (byte) 0x04 : p == KeyPurpose.MAC ? (byte) 0x06 : (byte) 0x07;
+            return GPCrypto.scp03_kdf(key, constant, context, key.length * 8);
+        }
+        byte[] derivation = new byte[16];
+        derivation[0] = 0x01;
+        derivation[1] = p == KeyPurpose.ENC ? (byte) 0x82 : p == KeyPurpose.MAC ? (byte) 0x01 : p == KeyPurpose.RMAC ? (byte) 0x02 : (byte) 0x81;
+        System.arraycopy(context, 0, derivation, 2, 2);
+        try {
+            Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
+            c.init(Cipher.ENCRYPT_MODE, GPCrypto.des3key(key), GPCrypto.iv_null_8);
+            return c.doFinal(derivation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Session key derivation failed", e);
+        }
+    }
+
+    @Override
+    public Optional<SCP03KeySchedule> getKeySchedule() {
+        if (scp != SCP.SCP03)
+            return Optional.empty();
+        if (schedule == null || schedule.getBackend() != GPCrypto.getBackend())
+            schedule = new SCP03KeySchedule(key, key);
+        return Optional.of(schedule);
+    }
+
+    @Override
+    public byte[] kcv(KeyPurpose p) {
+        return scp == SCP.SCP03 ? GPCrypto.kcv_aes(key) : GPCrypto.kcv_3des(key);
+    }
+}
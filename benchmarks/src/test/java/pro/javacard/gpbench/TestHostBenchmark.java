@@ -0,0 +1,39 @@
+package pro.javacard.gpbench;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.capfile.CAPFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class TestHostBenchmark {
+
+    @Test
+    public void testWorkflows() throws Exception {
+        CAPFile cap = HostBenchmark.enlarge(HostBenchmark.DEFAULT_CAP, HostBenchmark.CAP_SIZE);
+        Assert.assertTrue(cap.getCode().length > HostBenchmark.CAP_SIZE);
+
+        List<HostBenchmark.Result> results = new ArrayList<>();
+        for (HostBenchmark.Workflow w : HostBenchmark.workflows(cap)) {
+            HostBenchmark.Result r = HostBenchmark.run(w, 1);
+            Assert.assertTrue(r.apdus > 0, w.name);
+            results.add(r);
+        }
+        HostBenchmark.Result personalize = results.stream().filter(r -> r.name.equals("personalize")).findFirst().get();
+        Assert.assertTrue(personalize.bytes > HostBenchmark.STORE_DATA_SIZE);
+
+        // Own numbers pass, doubled allocations do not
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        HostBenchmark.write(results, bo);
+        Properties baseline = new Properties();
+        baseline.load(new ByteArrayInputStream(bo.toByteArray()));
+        Assert.assertEquals(HostBenchmark.compare(results, baseline, 0.25, -1), List.of());
+        for (HostBenchmark.Result r : results)
+            r.allocated *= 2;
+        Assert.assertEquals(HostBenchmark.compare(results, baseline, 0.25, -1).size(), results.size());
+    }
+}
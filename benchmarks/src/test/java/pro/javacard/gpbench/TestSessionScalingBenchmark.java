@@ -0,0 +1,34 @@
+package pro.javacard.gpbench;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSessionScalingBenchmark {
+
+    static SessionScalingBenchmark.Step step(int cards, long apdusPerSecond, long medianMillis) {
+        SessionScalingBenchmark.Step s = new SessionScalingBenchmark.Step(cards);
+        s.apdus = apdusPerSecond;
+        s.nanos = 1_000_000_000L;
+        s.medianSession = medianMillis * 1_000_000L;
+        return s;
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        SessionScalingBenchmark.Step s = SessionScalingBenchmark.run(8, 3, 0);
+        Assert.assertEquals(s.apdus, 24);
+        Assert.assertTrue(s.nanos > 0);
+        Assert.assertTrue(s.maxSession >= s.medianSession);
+    }
+
+    @Test
+    public void testLimit() {
+        // 10 APDU-s at 1 ms
+        Assert.assertNull(SessionScalingBenchmark.limit(null, step(1, 1000, 10), 10, 1, 0.1, 4));
+        Assert.assertNull(SessionScalingBenchmark.limit(step(1, 1000, 10), step(2, 2000, 10), 10, 1, 0.1, 4));
+        // Throughput does not grow
+        Assert.assertNotNull(SessionScalingBenchmark.limit(step(1, 1000, 10), step(2, 1050, 10), 10, 1, 0.1, 4));
+        // Sessions get slow
+        Assert.assertNotNull(SessionScalingBenchmark.limit(step(1, 1000, 10), step(2, 2000, 41), 10, 1, 0.1, 4));
+    }
+}
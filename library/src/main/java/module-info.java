@@ -6,7 +6,10 @@ module pro.javacard.globalplatform {
     requires org.bouncycastle.pkix;
     requires org.bouncycastle.provider; // FIXME: Hex. uses this
     requires org.slf4j;
+    requires jdk.jfr;
     requires transitive pro.javacard.capfile;
 
     exports pro.javacard.gp;
+
+    uses pro.javacard.gp.CardKeysProvider;
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+// AES-CMAC (NIST SP 800-38B) on top of a JCE AES/CBC/NoPadding cipher, so that the bulk of the message goes
+// through the AES and CBC intrinsics of HotSpot. BouncyCastle AESEngine is plain Java and does not get them.
+final class AESCMAC {
+    // Input is fed in chunks, so that long messages do not need an equally long output buffer
+    private static final int CHUNK = 1024;
+    private static final byte[] ZERO = new byte[16];
+
+    private final Cipher cbc;
+    private final byte[] k1;
+    private final byte[] k2;
+
+    // Cipher must be initialized for encryption with zero IV, and is left in that state after every MAC
+    AESCMAC(Cipher cbc) throws GeneralSecurityException {
+        this.cbc = cbc;
+        this.k1 = dbl(cbc.doFinal(ZERO));
+        this.k2 = dbl(k1);
+    }
+
+    // Any AES/CBC/NoPadding cipher, (re)initialized with the key
+    AESCMAC(Cipher cbc, byte[] key) throws GeneralSecurityException {
+        this(init(cbc, key));
+    }
+
+    private static Cipher init(Cipher cbc, byte[] key) throws GeneralSecurityException {
+        cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(ZERO));
+        return cbc;
+    }
+
+    static byte[] mac(Cipher cbc, byte[] data, int offset, int length) throws GeneralSecurityException {
+        return new AESCMAC(cbc).mac(data, offset, length);
+    }
+
+    byte[] mac(byte[] data, int offset, int length) throws GeneralSecurityException {
+        int blocks = length == 0 ? 1 : (length + 15) / 16;
+        int head = (blocks - 1) * 16;
+        boolean complete = length > 0 && length % 16 == 0;
+
+        // Last block, padded if needed and masked with K1 or K2
+        byte[] last = new byte[16];
+        System.arraycopy(data, offset + head, last, 0, length - head);
+        byte[] k = complete ? k1 : k2;
+        if (!complete)
+            last[length - head] = (byte) 0x80;
+        for (int i = 0; i < 16; i++)
+            last[i] ^= k[i];
+
+        // CBC over all but the last block, only the chaining value matters
+        byte[] buffer = new byte[Math.min(CHUNK, head)];
+        for (int done = 0; done < head; ) {
+            int n = Math.min(CHUNK, head - done);
+            cbc.update(data, offset + done, n, buffer, 0);
+            done += n;
+        }
+        return cbc.doFinal(last);
+    }
+
+    // Multiplication by x in GF(2^128)
+    static byte[] dbl(byte[] v) {
+        byte[] r = new byte[16];
+        for (int i = 0; i < 15; i++)
+            r[i] = (byte) ((v[i] << 1) | ((v[i + 1] & 0xFF) >>> 7));
+        r[15] = (byte) (v[15] << 1);
+        if ((v[0] & 0x80) != 0)
+            r[15] ^= (byte) 0x87;
+        return r;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.ResponseAPDU;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+// Collects latency histograms and byte counters per INS and per SW of APDU-s sent via GPSession.transmit().
+// All counters are lock-free, so a single instance can be shared between several sessions.
+public final class APDUMetrics implements TransmitInterceptor {
+
+    public enum Phase {
+        TOTAL, WRAP, WIRE, UNWRAP;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final AtomicReferenceArray<InsSeries> ins = new AtomicReferenceArray<>(256);
+    private final ConcurrentMap<Integer, SWSeries> sw = new ConcurrentHashMap<>();
+
+    @Override
+    public ResponseAPDU intercept(CommandAPDU command, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        ResponseAPDU response = chain.proceed(command);
+        long total = System.nanoTime() - start;
+        record(command, response, chain.getWireCommand(), chain.getWireResponse(), chain.getWrapNanos(), chain.getWireNanos(), chain.getUnwrapNanos(), total);
+        return response;
+    }
+
+    public void record(CommandAPDU command, ResponseAPDU response, CommandAPDU wireCommand, ResponseAPDU wireResponse, long wrapNanos, long wireNanos, long unwrapNanos, long totalNanos) {
+        InsSeries series = insSeries(command.getINS());
+        series.count.incrementAndGet();
+        series.commandBytes.addAndGet(command.getNc());
+        series.responseBytes.addAndGet(response.getData().length);
+        series.wireCommandBytes.addAndGet(wireCommand.getBytes().length);
+        series.wireResponseBytes.addAndGet(wireResponse.getBytes().length);
+        series.latency[Phase.TOTAL.ordinal()].record(totalNanos);
+        series.latency[Phase.WRAP.ordinal()].record(wrapNanos);
+        series.latency[Phase.WIRE.ordinal()].record(wireNanos);
+        series.latency[Phase.UNWRAP.ordinal()].record(unwrapNanos);
+
+        SWSeries swSeries = sw.computeIfAbsent(response.getSW(), k -> new SWSeries());
+        swSeries.count.incrementAndGet();
+        swSeries.latency.record(totalNanos);
+    }
+
+    private InsSeries insSeries(int i) {
+        InsSeries series = ins.get(i);
+        if (series == null) {
+            ins.compareAndSet(i, null, new InsSeries());
+            series = ins.get(i);
+        }
+        return series;
+    }
+
+    // Returns the histogram of the given INS and phase, if any commands with the INS have been seen
+    public Histogram getHistogram(int i, Phase phase) {
+        InsSeries series = ins.get(i & 0xFF);
+        return series == null ? null : series.latency[phase.ordinal()];
+    }
+
+    public long getCount(int i) {
+        InsSeries series = ins.get(i & 0xFF);
+        return series == null ? 0 : series.count.get();
+    }
+
+    public long getSWCount(int s) {
+        SWSeries series = sw.get(s);
+        return series == null ? 0 : series.count.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < ins.length(); i++)
+            ins.set(i, null);
+        sw.clear();
+    }
+
+    // Writes metrics to file, in JSON if file name ends with .json, Prometheus text format otherwise
+    public void export(Path path) throws IOException {
+        try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            if (path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json"))
+                writeJSON(w);
+            else
+                writePrometheus(w);
+        }
+    }
+
+    // Prometheus text exposition format. Buckets are powers of two nanoseconds from ~1us to ~69s,
+    // which match the boundaries of the histogram exactly
+    public void writePrometheus(Writer w) throws IOException {
+        w.write("# HELP gp_apdu_duration_seconds Duration of APDU exchange by INS and phase\n");
+        w.write("# TYPE gp_apdu_duration_seconds histogram\n");
+        for (int i = 0; i < ins.length(); i++) {
+            InsSeries series = ins.get(i);
+            if (series == null)
+                continue;
+            for (Phase phase : Phase.values()) {
+                String labels = String.format("ins=\"%02X\",phase=\"%s\"", i, phase.label());
+                writePrometheusHistogram(w, "gp_apdu_duration_seconds", labels, series.latency[phase.ordinal()]);
+            }
+        }
+        w.write("# HELP gp_apdu_sw_duration_seconds Duration of APDU exchange by status word\n");
+        w.write("# TYPE gp_apdu_sw_duration_seconds histogram\n");
+        for (Map.Entry<Integer, SWSeries> e : new TreeMap<>(sw).entrySet()) {
+            String labels = String.format("sw=\"%04X\"", e.getKey());
+            writePrometheusHistogram(w, "gp_apdu_sw_duration_seconds", labels, e.getValue().latency);
+        }
+        writePrometheusCounter(w, "gp_apdu_command_bytes_total", "Plaintext command data bytes by INS", s -> s.commandBytes);
+        writePrometheusCounter(w, "gp_apdu_response_bytes_total", "Plaintext response data bytes by INS", s -> s.responseBytes);
+        writePrometheusCounter(w, "gp_apdu_wire_command_bytes_total", "Command APDU bytes sent to the card by INS", s -> s.wireCommandBytes);
+        writePrometheusCounter(w, "gp_apdu_wire_response_bytes_total", "Response APDU bytes received from the card by INS", s -> s.wireResponseBytes);
+        w.write("# HELP gp_apdu_sw_total Responses by status word\n");
+        w.write("# TYPE gp_apdu_sw_total counter\n");
+        for (Map.Entry<Integer, SWSeries> e : new TreeMap<>(sw).entrySet()) {
+            w.write(String.format("gp_apdu_sw_total{sw=\"%04X\"} %d\n", e.getKey(), e.getValue().count.get()));
+        }
+    }
+
+    private void writePrometheusCounter(Writer w, String name, String help, Function<InsSeries, AtomicLong> f) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " counter\n");
+        for (int i = 0; i < ins.length(); i++) {
+            InsSeries series = ins.get(i);
+            if (series == null)
+                continue;
+            w.write(String.format("%s{ins=\"%02X\"} %d\n", name, i, f.apply(series).get()));
+        }
+    }
+
+    private static void writePrometheusHistogram(Writer w, String name, String labels, Histogram h) throws IOException {
+        long[] counts = h.snapshot();
+        long cumulative = 0;
+        int bucket = 0;
+        for (int exp = 10; exp <= 36; exp++) {
+            long limit = 1L << exp;
+            while (bucket < counts.length && Histogram.lowerBound(bucket) < limit)
+                cumulative += counts[bucket++];
+            w.write(String.format(Locale.ROOT, "%s_bucket{%s,le=\"%s\"} %d\n", name, labels, seconds(limit), cumulative));
+        }
+        long count = 0;
+        for (long c : counts)
+            count += c;
+        w.write(String.format(Locale.ROOT, "%s_bucket{%s,le=\"+Inf\"} %d\n", name, labels, count));
+        w.write(String.format(Locale.ROOT, "%s_sum{%s} %s\n", name, labels, seconds(h.getSum())));
+        w.write(String.format(Locale.ROOT, "%s_count{%s} %d\n", name, labels, count));
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    public void writeJSON(Writer w) throws IOException {
+        w.write("{\"ins\":{");
+        boolean first = true;
+        for (int i = 0; i < ins.length(); i++) {
+            InsSeries series = ins.get(i);
+            if (series == null)
+                continue;
+            if (!first)
+                w.write(",");
+            first = false;
+            w.write(String.format("\"%02X\":{\"count\":%d,\"command_bytes\":%d,\"response_bytes\":%d,\"wire_command_bytes\":%d,\"wire_response_bytes\":%d,\"latency\":{",
+                    i, series.count.get(), series.commandBytes.get(), series.responseBytes.get(), series.wireCommandBytes.get(), series.wireResponseBytes.get()));
+            for (Phase phase : Phase.values()) {
+                if (phase.ordinal() > 0)
+                    w.write(",");
+                w.write("\"" + phase.label() + "\":");
+                writeJSONHistogram(w, series.latency[phase.ordinal()]);
+            }
+            w.write("}}");
+        }
+        w.write("},\"sw\":{");
+        first = true;
+        for (Map.Entry<Integer, SWSeries> e : new TreeMap<>(sw).entrySet()) {
+            if (!first)
+                w.write(",");
+            first = false;
+            w.write(String.format("\"%04X\":{\"count\":%d,\"latency\":", e.getKey(), e.getValue().count.get()));
+            writeJSONHistogram(w, e.getValue().latency);
+            w.write("}");
+        }
+        w.write("}}\n");
+    }
+
+    private static void writeJSONHistogram(Writer w, Histogram h) throws IOException {
+        w.write(String.format("{\"count\":%d,\"sum_ns\":%d,\"min_ns\":%d,\"max_ns\":%d,\"p50_ns\":%d,\"p90_ns\":%d,\"p99_ns\":%d,\"p999_ns\":%d}",
+                h.getCount(), h.getSum(), h.getMin(), h.getMax(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getPercentile(99.9)));
+    }
+
+    private static final class InsSeries {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong commandBytes = new AtomicLong();
+        final AtomicLong responseBytes = new AtomicLong();
+        final AtomicLong wireCommandBytes = new AtomicLong();
+        final AtomicLong wireResponseBytes = new AtomicLong();
+        final Histogram[] latency = new Histogram[Phase.values().length];
+
+        InsSeries() {
+            for (int i = 0; i < latency.length; i++)
+                latency[i] = new Histogram();
+        }
+    }
+
+    private static final class SWSeries {
+        final AtomicLong count = new AtomicLong();
+        final Histogram latency = new Histogram();
+    }
+
+    // Log-linear histogram of nanosecond values, in the spirit of HdrHistogram: every power of two
+    // is split into 32 linear sub-buckets, giving ~3% relative precision. Values above ~2^40ns (18 minutes)
+    // are clamped to the last bucket. Recording is a handful of atomic increments, without locks or allocation.
+    public static final class Histogram {
+        static final int SUB_BITS = 5;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int MAX_EXP = 40;
+        static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        static int index(long value) {
+            if (value < SUB_COUNT)
+                return (int) Math.max(0, value);
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            if (exp > MAX_EXP)
+                return BUCKETS - 1;
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        static long lowerBound(int index) {
+            if (index < SUB_COUNT)
+                return index;
+            int exp = index / SUB_COUNT + SUB_BITS - 1;
+            int sub = index % SUB_COUNT;
+            return (long) (SUB_COUNT + sub) << (exp - SUB_BITS);
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_COUNT)
+                return index;
+            int exp = index / SUB_COUNT + SUB_BITS - 1;
+            return lowerBound(index) + (1L << (exp - SUB_BITS)) - 1;
+        }
+
+        public void record(long nanos) {
+            counts.incrementAndGet(index(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            min.accumulateAndGet(nanos, Math::min);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMin() {
+            long v = min.get();
+            return v == Long.MAX_VALUE ? 0 : v;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket containing the given percentile, capped to the observed maximum
+        public long getPercentile(double percentile) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long c : snapshot)
+                total += c;
+            if (total == 0)
+                return 0;
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= target)
+                    return Math.min(upperBound(i), getMax());
+            }
+            return getMax();
+        }
+
+        long[] snapshot() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                result[i] = counts.get(i);
+            return result;
+        }
+    }
+}
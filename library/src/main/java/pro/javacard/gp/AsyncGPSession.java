@@ -0,0 +1,213 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.gp.GPRegistryEntry.Privilege;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+// Asynchronous facade for GPSession. All operations of a session are queued to a serial executor
+// on top of the given (shared) pool, so a few threads can drive many cards while every card
+// still sees its APDU-s strictly in submission order. Failures complete the future exceptionally
+// with the original IOException or GPException.
+public final class AsyncGPSession {
+    private final GPSession session;
+    private final SerialExecutor executor;
+
+    // Like Callable, but with the checked exception of GPSession
+    @FunctionalInterface
+    public interface Operation<T> {
+        T run(GPSession session) throws IOException;
+    }
+
+    public AsyncGPSession(GPSession session, Executor pool) {
+        if (session == null || pool == null)
+            throw new IllegalArgumentException("Session and executor are required");
+        this.session = session;
+        this.executor = new SerialExecutor(pool);
+    }
+
+    // Thread per task: virtual threads on Java 21+, cached platform threads otherwise.
+    // The library is built for Java 11, thus the reflection.
+    public static ExecutorService newCardExecutor() {
+        Method virtual = virtualThreadExecutor();
+        if (virtual != null) {
+            try {
+                return (ExecutorService) virtual.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Fall through
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public static boolean hasVirtualThreads() {
+        return virtualThreadExecutor() != null;
+    }
+
+    private static Method virtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // The wrapped session must only be touched via submit() once async operations are in flight
+    public GPSession getSession() {
+        return session;
+    }
+
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (result.isCancelled())
+                return;
+            try {
+                result.complete(operation.run(session));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, result::completeExceptionally);
+        return result;
+    }
+
+    public CompletableFuture<Void> openSecureChannel(GPCardKeys keys, GPSecureChannelVersion scp, byte[] hostChallenge, EnumSet<GPSession.APDUMode> securityLevel) {
+        return submit(s -> {
+            s.openSecureChannel(keys, scp, hostChallenge, securityLevel);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> loadCapFile(CAPFile cap, AID targetDomain, GPData.LFDBH hashFunction) {
+        return submit(s -> {
+            s.loadCapFile(cap, targetDomain, hashFunction);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> loadCapFile(CAPFile cap, AID targetDomain, AID dapDomain, byte[] dap, GPData.LFDBH hashFunction) {
+        return submit(s -> {
+            s.loadCapFile(cap, targetDomain, dapDomain, dap, hashFunction);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> installAndMakeSelectable(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) {
+        return submit(s -> {
+            s.installAndMakeSelectable(packageAID, appletAID, instanceAID, privileges, installParams);
+            return null;
+        });
+    }
+
+    public CompletableFuture<GPRegistry> getRegistry() {
+        return submit(GPSession::getRegistry);
+    }
+
+    public CompletableFuture<Void> storeData(byte[] data, int P1) {
+        return submit(s -> {
+            s.storeData(data, P1);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<byte[]>> storeData(List<byte[]> blocks, int P1) {
+        return submit(s -> s.storeData(blocks, P1));
+    }
+
+    public CompletableFuture<Void> putKeys(GPCardKeys keys, boolean replace) {
+        return submit(s -> {
+            s.putKeys(keys, replace);
+            return null;
+        });
+    }
+
+    // Runs tasks one at a time, in order, on the underlying executor. Does not hold a thread while idle.
+    // A task rejected by the underlying executor is handed to its rejection handler and the queue moves on.
+    static final class SerialExecutor {
+        private final Queue<Task> tasks = new ArrayDeque<>();
+        private final Executor pool;
+        private Task active;
+
+        SerialExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        private final class Task implements Runnable {
+            private final Runnable r;
+            private final Consumer<RejectedExecutionException> rejected;
+
+            Task(Runnable r, Consumer<RejectedExecutionException> rejected) {
+                this.r = r;
+                this.rejected = rejected;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    next();
+                }
+            }
+        }
+
+        synchronized void execute(Runnable r, Consumer<RejectedExecutionException> rejected) {
+            tasks.add(new Task(r, rejected));
+            if (active == null) {
+                next();
+            }
+        }
+
+        private void next() {
+            while (true) {
+                final Task task;
+                final RejectedExecutionException e;
+                synchronized (this) {
+                    if ((active = tasks.poll()) == null)
+                        return;
+                    try {
+                        pool.execute(active);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        task = active;
+                        e = ex;
+                    }
+                }
+                // The handler may submit more work. active is still set, so such work is only queued
+                task.rejected.accept(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.generators.KDFCounterBytesGenerator;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.KDFCounterParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import javax.crypto.IllegalBlockSizeException;
+import java.security.GeneralSecurityException;
+
+// BouncyCastle lightweight API: no provider lookups, no JCA key and parameter objects
+final class BCCryptoBackend implements GPCryptoBackend {
+
+    @Override
+    public String getName() {
+        return "bc";
+    }
+
+    private static byte[] crypt(boolean encrypt, Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (length % algorithm.blockSize != 0)
+            throw new IllegalBlockSizeException("Data length not a multiple of " + algorithm.blockSize + ": " + length);
+        final BlockCipher engine;
+        final KeyParameter k;
+        switch (algorithm) {
+            case DES:
+                engine = new DESEngine();
+                k = new KeyParameter(GPCrypto.resizeDES(key, 8));
+                break;
+            case DES3:
+                engine = new DESedeEngine();
+                k = new KeyParameter(GPCrypto.resizeDES(key, 24));
+                break;
+            default:
+                engine = AESEngine.newInstance();
+                k = new KeyParameter(key);
+        }
+        BufferedBlockCipher cipher = new BufferedBlockCipher(iv == null ? engine : CBCBlockCipher.newInstance(engine));
+        CipherParameters params = iv == null ? k : new ParametersWithIV(k, iv);
+        cipher.init(encrypt, params);
+        byte[] result = new byte[length];
+        try {
+            int n = cipher.processBytes(data, offset, length, result, 0);
+            cipher.doFinal(result, n);
+        } catch (DataLengthException | IllegalStateException | InvalidCipherTextException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] encrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        return crypt(true, algorithm, key, iv, data, offset, length);
+    }
+
+    @Override
+    public byte[] decrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        return crypt(false, algorithm, key, iv, data, offset, length);
+    }
+
+    @Override
+    public byte[] cmac(byte[] key, byte[] data, int offset, int length) {
+        CMac cmac = new CMac(AESEngine.newInstance());
+        cmac.init(new KeyParameter(key));
+        cmac.update(data, offset, length);
+        byte[] out = new byte[cmac.getMacSize()];
+        cmac.doFinal(out, 0);
+        return out;
+    }
+
+    @Override
+    public byte[] kdf(byte[] key, byte[] a, byte[] b, int bytes) {
+        KDFCounterBytesGenerator kdf = new KDFCounterBytesGenerator(new CMac(AESEngine.newInstance()));
+        kdf.init(new KDFCounterParameters(key, a, b, 8)); // counter size is in bits
+        byte[] result = new byte[bytes];
+        kdf.generateBytes(result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -1,8 +1,26 @@
 package pro.javacard.gp;
 
+import java.io.IOException;
 import java.util.Optional;
+import java.util.Set;
 
-// The interface is here not in gptool, to be able to depend on library for plugins
-public interface CardKeysProvider {
+// The interface is here not in gptool, to be able to depend on library for plugins.
+// Instances are kept in CardKeysRegistry and shared between sessions and threads.
+public interface CardKeysProvider extends AutoCloseable {
     Optional<GPCardKeys> getCardKeys(String spec);
+
+    // Spec prefixes (the part before ':', case-insensitive) this provider handles, like "hsm" for "hsm:label".
+    // A provider with prefixes is only asked for specs with one of them; empty means any spec.
+    default Set<String> prefixes() {
+        return Set.of();
+    }
+
+    // Called once, before the first getCardKeys(). Expensive setup (opening a keystore) belongs here, not to the constructor
+    default void init() throws IOException {
+    }
+
+    // Called once when the provider is no longer needed, if init() succeeded
+    @Override
+    default void close() {
+    }
 }
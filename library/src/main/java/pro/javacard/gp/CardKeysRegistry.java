@@ -0,0 +1,137 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+// Card key providers, discovered once and kept for the lifetime of the registry, so that
+// many sessions (daemon, batch, fleet) share the same provider instances.
+// Specs with a prefix ("hsm:label") go to the providers that declared the prefix, then to the
+// generic providers; specs without one only go to the generic providers, in discovery order.
+// Providers are initialized on first use and closed together with the registry. Thread safe.
+public final class CardKeysRegistry implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CardKeysRegistry.class);
+
+    private final List<CardKeysProvider> providers;
+    private final List<CardKeysProvider> generic = new ArrayList<>();
+    private final Map<String, List<CardKeysProvider>> prefixed = new HashMap<>();
+
+    private final List<CardKeysProvider> initialized = new ArrayList<>();
+    private final List<CardKeysProvider> failed = new ArrayList<>();
+    private boolean closed = false;
+
+    public CardKeysRegistry(List<CardKeysProvider> providers) {
+        this.providers = List.copyOf(providers);
+        for (CardKeysProvider p : this.providers) {
+            if (p.prefixes().isEmpty())
+                generic.add(p);
+            else
+                p.prefixes().forEach(prefix -> prefixed.computeIfAbsent(prefix.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(p));
+        }
+    }
+
+    // Providers that fail to load are logged and skipped, instead of failing all of them
+    public static CardKeysRegistry load(ClassLoader loader) {
+        List<CardKeysProvider> list = new ArrayList<>();
+        Iterator<CardKeysProvider> it = ServiceLoader.load(CardKeysProvider.class, loader).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext())
+                    break;
+                list.add(it.next());
+            } catch (ServiceConfigurationError e) {
+                logger.warn("Could not load key provider: {}", e.getMessage());
+            }
+        }
+        logger.debug("Key providers: {}", list);
+        return new CardKeysRegistry(list);
+    }
+
+    public List<CardKeysProvider> getProviders() {
+        return Collections.unmodifiableList(providers);
+    }
+
+    public Optional<GPCardKeys> getCardKeys(String spec) {
+        if (spec == null)
+            return Optional.empty();
+        List<CardKeysProvider> candidates = new ArrayList<>();
+        int colon = spec.indexOf(':');
+        if (colon > 0)
+            candidates.addAll(prefixed.getOrDefault(spec.substring(0, colon).trim().toLowerCase(Locale.ROOT), List.of()));
+        candidates.addAll(generic);
+        for (CardKeysProvider p : candidates) {
+            if (!ready(p))
+                continue;
+            Optional<GPCardKeys> keys = p.getCardKeys(spec);
+            if (keys.isPresent())
+                return keys;
+        }
+        return Optional.empty();
+    }
+
+    // Initializes the provider on first use. A provider that failed to initialize is not retried
+    private synchronized boolean ready(CardKeysProvider p) {
+        if (closed)
+            throw new IllegalStateException("Key providers already closed");
+        if (initialized.contains(p))
+            return true;
+        if (failed.contains(p))
+            return false;
+        try {
+            p.init();
+            initialized.add(p);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not initialize key provider {}: {}", p.getClass().getName(), e.getMessage());
+            failed.add(p);
+            return false;
+        }
+    }
+
+    // Closes initialized providers, in reverse order of initialization
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (int i = initialized.size() - 1; i >= 0; i--) {
+            CardKeysProvider p = initialized.get(i);
+            try {
+                p.close();
+            } catch (RuntimeException e) {
+                logger.warn("Could not close key provider {}: {}", p.getClass().getName(), e.getMessage());
+            }
+        }
+        initialized.clear();
+    }
+}
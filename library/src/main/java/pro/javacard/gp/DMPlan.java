@@ -0,0 +1,94 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.CommandAPDU;
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.gp.GPRegistryEntry.Privilege;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+// Delegated Management commands of a workflow, known before the first APDU is sent. The DTBS of a DM token
+// only depends on the command, so all tokens can be computed up front (and in parallel):
+//
+//   DMPlan plan = new DMPlan().load(cap, ssd, null).install(pkg, applet, instance, privs, null);
+//   tokenizer.precompute(plan.getCommands());
+//   gp.setTokenizer(tokenizer);
+//   try {
+//       gp.loadCapFile(cap, ssd, null); ...
+//   } finally {
+//       tokenizer.clearPrecomputed();
+//   }
+//
+// GPSession then finds the token ready when it sends the same command. Tokens of commands that are
+// never sent stay with the tokenizer until clearPrecomputed().
+public final class DMPlan {
+    private final List<CommandAPDU> commands = new ArrayList<>();
+
+    // INSTALL [for load]
+    public DMPlan load(CAPFile cap, AID targetDomain, GPData.LFDBH hashFunction) {
+        commands.add(GPSession.installForLoadCommand(cap, targetDomain, hashFunction));
+        return this;
+    }
+
+    // INSTALL [for install and make selectable]
+    public DMPlan install(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) {
+        commands.add(GPSession.installAndMakeSelectableCommand(packageAID, appletAID, instanceAID, privileges, installParams));
+        return this;
+    }
+
+    // INSTALL [for make selectable]
+    public DMPlan makeDefaultSelected(AID aid) {
+        commands.add(GPSession.makeDefaultSelectedCommand(aid));
+        return this;
+    }
+
+    // INSTALL [for extradition]
+    public DMPlan extradite(AID what, AID to) {
+        commands.add(GPSession.extraditeCommand(what, to));
+        return this;
+    }
+
+    // DELETE
+    public DMPlan delete(AID aid, boolean deleteDeps) {
+        commands.add(GPSession.deleteCommand(aid, deleteDeps));
+        return this;
+    }
+
+    // Commands without tokens, in order
+    public List<CommandAPDU> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    // Commands with tokens, in order
+    public List<CommandAPDU> tokenize(DMTokenizer tokenizer, Executor executor) {
+        return tokenizer.tokenize(commands, executor);
+    }
+
+    public List<CommandAPDU> tokenize(DMTokenizer tokenizer) {
+        return tokenize(tokenizer, ForkJoinPool.commonPool());
+    }
+}
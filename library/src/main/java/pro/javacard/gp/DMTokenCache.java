@@ -0,0 +1,166 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.HexUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DM tokens (PKCS#1 v1.5, so deterministic) by key fingerprint and SHA-256 of the DTBS. The same INSTALL or DELETE
+// for many cards under one SSD is thus signed only once. Keeps at most capacity tokens in memory (least recently
+// used go first) and, if a directory is given, all tokens on disk as <directory>/<key>/<dtbs>, shared between
+// runs and parallel workers. Files are written atomically; unreadable or wrong-sized files are ignored.
+public final class DMTokenCache {
+    private static final Logger logger = LoggerFactory.getLogger(DMTokenCache.class);
+
+    private final int capacity;
+    private final Path directory;
+    private final Map<String, byte[]> tokens;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DMTokenCache(int capacity) {
+        this(capacity, null);
+    }
+
+    public DMTokenCache(int capacity, Path directory) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.directory = directory;
+        this.tokens = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > DMTokenCache.this.capacity;
+            }
+        };
+    }
+
+    // SHA-256 of the modulus
+    public static String fingerprint(RSAPrivateKey key) {
+        return HexUtils.bin2hex(sha256(key.getModulus().toByteArray()));
+    }
+
+    public Optional<byte[]> get(RSAPrivateKey key, byte[] dtbs) {
+        return get(fingerprint(key), dtbs, (key.getModulus().bitLength() + 7) / 8);
+    }
+
+    public void put(RSAPrivateKey key, byte[] dtbs, byte[] token) {
+        put(fingerprint(key), dtbs, token);
+    }
+
+    Optional<byte[]> get(String fingerprint, byte[] dtbs, int length) {
+        String digest = HexUtils.bin2hex(sha256(dtbs));
+        String id = fingerprint + "/" + digest;
+        byte[] token;
+        synchronized (tokens) {
+            token = tokens.get(id);
+        }
+        if (token == null && directory != null) {
+            token = read(directory.resolve(fingerprint).resolve(digest), length);
+            if (token != null) {
+                synchronized (tokens) {
+                    tokens.put(id, token);
+                }
+            }
+        }
+        if (token == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        return Optional.of(token.clone());
+    }
+
+    void put(String fingerprint, byte[] dtbs, byte[] token) {
+        String digest = HexUtils.bin2hex(sha256(dtbs));
+        synchronized (tokens) {
+            tokens.put(fingerprint + "/" + digest, token.clone());
+        }
+        if (directory != null)
+            write(directory.resolve(fingerprint), digest, token);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (tokens) {
+            return tokens.size();
+        }
+    }
+
+    private static byte[] read(Path file, int length) {
+        try {
+            byte[] token = Files.readAllBytes(file);
+            if (token.length == length)
+                return token;
+            logger.warn("Ignoring cached DM token of wrong length: {}", file);
+        } catch (NoSuchFileException e) {
+            // Not cached
+        } catch (IOException e) {
+            logger.warn("Could not read cached DM token {}: {}", file, e.getMessage());
+        }
+        return null;
+    }
+
+    private static void write(Path dir, String name, byte[] token) {
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, name, ".tmp");
+            try {
+                Files.write(tmp, token);
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not cache DM token in {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
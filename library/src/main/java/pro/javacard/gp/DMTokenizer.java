@@ -29,6 +29,16 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.Signature;
 import java.security.interfaces.RSAPrivateKey;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 // NOTE: Thanks goes to Gregor Johannson for initial implementation
 public abstract class DMTokenizer {
@@ -64,6 +74,27 @@ public abstract class DMTokenizer {
         }
     }
 
+    // Start computing tokens for commands that will be tokenized later, so that tokenize() does not have to wait
+    // for the signature. Only makes a difference for tokenizers that compute tokens (RSA)
+    public void precompute(Collection<CommandAPDU> commands, Executor executor) {
+    }
+
+    public void precompute(Collection<CommandAPDU> commands) {
+        precompute(commands, ForkJoinPool.commonPool());
+    }
+
+    // Drop precomputed tokens that were never used, like when a workflow stops halfway.
+    // Returns the number of dropped tokens
+    public int clearPrecomputed() {
+        return 0;
+    }
+
+    // Tokenize a known sequence of commands, with tokens computed in parallel
+    public List<CommandAPDU> tokenize(List<CommandAPDU> commands, Executor executor) {
+        precompute(commands, executor);
+        return commands.stream().map(this::tokenize).collect(Collectors.toList());
+    }
+
     protected byte[] dtbs(CommandAPDU apdu) {
         try {
             ByteArrayOutputStream bo = new ByteArrayOutputStream();
@@ -78,7 +109,12 @@ public abstract class DMTokenizer {
     }
 
     public static DMTokenizer forPrivateKey(RSAPrivateKey pkey) {
-        return new RSATokenizer(pkey);
+        return new RSATokenizer(pkey, null);
+    }
+
+    // Tokens are looked up from (and stored to) the cache before signing
+    public static DMTokenizer forPrivateKey(RSAPrivateKey pkey, DMTokenCache cache) {
+        return new RSATokenizer(pkey, cache);
     }
 
     public static DMTokenizer forToken(byte[] token) {
@@ -93,9 +129,17 @@ public abstract class DMTokenizer {
     static class RSATokenizer extends DMTokenizer {
 
         private final RSAPrivateKey privateKey;
+        private final DMTokenCache cache;
+        private final String fingerprint;
+        private final int length;
+        // Tokens from precompute(), by hex of DTBS
+        private final Map<String, CompletableFuture<byte[]>> precomputed = new ConcurrentHashMap<>();
 
-        RSATokenizer(RSAPrivateKey privateKey) {
+        RSATokenizer(RSAPrivateKey privateKey, DMTokenCache cache) {
             this.privateKey = privateKey;
+            this.cache = cache;
+            this.fingerprint = cache == null ? null : DMTokenCache.fingerprint(privateKey);
+            this.length = (privateKey.getModulus().bitLength() + 7) / 8;
         }
 
         @Override
@@ -103,14 +147,62 @@ public abstract class DMTokenizer {
             return true;
         }
 
+        @Override
+        public void precompute(Collection<CommandAPDU> commands, Executor executor) {
+            for (CommandAPDU apdu : commands) {
+                byte[] dtbs = dtbs(apdu);
+                precomputed.computeIfAbsent(HexUtils.bin2hex(dtbs), k -> CompletableFuture.supplyAsync(() -> sign(dtbs), executor));
+            }
+        }
+
+        @Override
+        public int clearPrecomputed() {
+            int dropped = 0;
+            for (String dtbs : precomputed.keySet()) {
+                CompletableFuture<byte[]> token = precomputed.remove(dtbs);
+                if (token != null) {
+                    token.cancel(false);
+                    dropped++;
+                }
+            }
+            return dropped;
+        }
+
         @Override
         protected byte[] getToken(CommandAPDU apdu) {
+            byte[] dtbs = dtbs(apdu);
+            CompletableFuture<byte[]> token = precomputed.remove(HexUtils.bin2hex(dtbs));
+            if (token == null)
+                return sign(dtbs);
+            try {
+                return token.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof GPException)
+                    throw (GPException) e.getCause();
+                throw new GPException("Can not calculate DM token: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        private byte[] sign(byte[] dtbs) {
+            if (cache == null)
+                return signature(dtbs);
+            Optional<byte[]> cached = cache.get(fingerprint, dtbs, length);
+            if (cached.isPresent()) {
+                logger.debug("Cached DM token: {}", GPUtils.hex(cached.get()));
+                return cached.get();
+            }
+            byte[] token = signature(dtbs);
+            cache.put(fingerprint, dtbs, token);
+            return token;
+        }
+
+        private byte[] signature(byte[] dtbs) {
             try {
                 Signature signer = Signature.getInstance("SHA1withRSA");
                 signer.initSign(privateKey);
-                signer.update(dtbs(apdu));
+                signer.update(dtbs);
                 byte[] signature = signer.sign();
-                logger.debug("Generated DM token: {}", HexUtils.bin2hex(signature));
+                logger.debug("Generated DM token: {}", GPUtils.hex(signature));
                 return signature;
             } catch (GeneralSecurityException e) {
                 throw new GPException("Can not calculate DM token: " + e.getMessage(), e);
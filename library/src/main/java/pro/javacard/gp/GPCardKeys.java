@@ -25,7 +25,9 @@ import org.slf4j.LoggerFactory;
 
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 
@@ -78,6 +80,19 @@ public abstract class GPCardKeys {
     // Get KCV of a card key
     public abstract byte[] kcv(KeyPurpose p);
 
+    // KCV-s of all card keys. Providers that have them precomputed (or cached) can return them without crypto
+    public Map<KeyPurpose, byte[]> kcvs() {
+        EnumMap<KeyPurpose, byte[]> r = new EnumMap<>(KeyPurpose.class);
+        for (KeyPurpose p : KeyPurpose.cardKeys())
+            r.put(p, kcv(p));
+        return r;
+    }
+
+    // SCP03 keys that can derive all session keys and cryptograms at once, instead of getSessionKey() for each
+    public Optional<SCP03KeySchedule> getKeySchedule() {
+        return Optional.empty();
+    }
+
     // Diversify card keys automatically, based on INITIALIZE UPDATE response
     public GPCardKeys diversify(GPSecureChannelVersion.SCP scp, byte[] kdd) {
         if (diversified)
@@ -98,6 +113,7 @@ public abstract class GPCardKeys {
 
     @Override
     public String toString() {
-        return String.format("KCV-s (%s) ENC=%s MAC=%s DEK=%s", scp, HexUtils.bin2hex(kcv(KeyPurpose.ENC)), HexUtils.bin2hex(kcv(KeyPurpose.MAC)), HexUtils.bin2hex(kcv(KeyPurpose.DEK)));
+        Map<KeyPurpose, byte[]> kcvs = kcvs();
+        return String.format("KCV-s (%s) ENC=%s MAC=%s DEK=%s", scp, HexUtils.bin2hex(kcvs.get(KeyPurpose.ENC)), HexUtils.bin2hex(kcvs.get(KeyPurpose.MAC)), HexUtils.bin2hex(kcvs.get(KeyPurpose.DEK)));
     }
 }
@@ -0,0 +1,877 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pro.javacard.capfile.AID;
+import pro.javacard.gp.GPRegistryEntry.Kind;
+import pro.javacard.gp.GPRegistryEntry.Privilege;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static pro.javacard.gp.GPSession.*;
+
+// A GlobalPlatform card in memory, for tests and benchmarks that should not need a card and a reader:
+//
+//   GPSession gp = GPSession.discover(new APDUBIBO(new GPCardSimulator(SCP.SCP03, key)));
+//
+// The card has an ISD with one keyset and handles SELECT, INITIALIZE UPDATE and EXTERNAL AUTHENTICATE for
+// SCP02 (i=55, C-MAC and C-ENC) and SCP03 (C-MAC, C-ENC, R-MAC and R-ENC), GET STATUS with tags and paging,
+// INSTALL, LOAD, DELETE, PUT KEY, STORE DATA and GET DATA for CPLC and the key information template.
+// MANAGE CHANNEL opens logical channels 1..3, each with its own selection and secure channel.
+// Card challenges come from a seeded PRNG, so the same commands always get the same responses.
+// Latency can be set per instruction, to get the timing of a real card without the variance of one.
+public final class GPCardSimulator implements BIBO {
+    private static final Logger logger = LoggerFactory.getLogger(GPCardSimulator.class);
+
+    public static final AID ISD = new AID(GPData.defaultISDBytes);
+
+    // Java Card API packages, so that the registry is not empty
+    private static final String[] PACKAGES = {"A0000000620001", "A0000000620002", "A0000000620101", "A0000000620102", "A0000000620201", "A0000000620202"};
+
+    // KDD and CPLC are fixed, challenges are not
+    static final byte[] KDD = HexUtils.hex2bin("00112233445566778899");
+    static final byte[] CPLC = HexUtils.hex2bin("4790D321479123205100" + "2C80" + "0000FACE" + "2813" + "0000".repeat(6) + "00000000" + "00000000" + "00000000");
+
+    private static final int SW_MORE_DATA = 0x6310;
+    private static final int SW_AUTHENTICATION_FAILED = 0x6300;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6A80;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+    private static final int SW_INCORRECT_P1P2 = 0x6A86;
+    private static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CHANNEL_NOT_SUPPORTED = 0x6881;
+
+    private final GPSecureChannelVersion.SCP scp;
+    // Keysets by version, first is the default
+    private final Map<Integer, byte[][]> keys = new LinkedHashMap<>();
+    private final List<Entry> registry = new ArrayList<>();
+    private final List<byte[]> stored = new ArrayList<>();
+
+    private Random random = new Random(0);
+    private int sequence = 0;
+    private byte[] cplc = CPLC;
+    private int statusLimit = 200;
+    private long latency = 0;
+    private final Map<Integer, Long> latencies = new HashMap<>();
+
+    // Logical channels 0..3 (ISO 7816-4 first interindustry class), null if closed
+    private final Channel[] channels = new Channel[]{new Channel(), null, null, null};
+    // Channel of the command being processed
+    private Channel ch = channels[0];
+
+    // Secure channel and command state of a logical channel
+    private static final class Channel {
+        AID selected;
+        Session session;
+        Load load;
+        Deque<byte[]> status;
+        ByteArrayOutputStream storeData;
+        int storeBlock;
+    }
+
+    private static final class Entry {
+        final Kind kind;
+        final AID aid;
+        int lifecycle;
+        byte[] privileges = new byte[3];
+        AID source;
+        byte[] version;
+        final List<AID> modules = new ArrayList<>();
+
+        Entry(Kind kind, AID aid, int lifecycle) {
+            this.kind = kind;
+            this.aid = aid;
+            this.lifecycle = lifecycle;
+        }
+    }
+
+    private static final class Session {
+        final int version;
+        final byte[] host;
+        final byte[] challenge;
+        final byte[] enc;
+        final byte[] mac;
+        final byte[] rmac;
+        final byte[] dek;
+        boolean authenticated;
+        int level;
+        byte[] icv; // SCP02
+        final byte[] chaining = new byte[16]; // SCP03
+        final byte[] counter = new byte[16]; // SCP03
+
+        Session(int version, byte[] host, byte[] challenge, byte[] enc, byte[] mac, byte[] rmac, byte[] dek) {
+            this.version = version;
+            this.host = host;
+            this.challenge = challenge;
+            this.enc = enc;
+            this.mac = mac;
+            this.rmac = rmac;
+            this.dek = dek;
+        }
+
+        boolean has(APDUMode mode) {
+            return (level & APDUMode.getSetValue(EnumSet.of(mode))) != 0;
+        }
+    }
+
+    private static final class Load {
+        final AID aid;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int block;
+
+        Load(AID aid) {
+            this.aid = aid;
+        }
+    }
+
+    private static final class Response {
+        final byte[] data;
+        final int sw;
+
+        Response(byte[] data, int sw) {
+            this.data = data;
+            this.sw = sw;
+        }
+
+        Response(int sw) {
+            this(new byte[0], sw);
+        }
+
+        byte[] getBytes() {
+            return GPUtils.concatenate(data, new byte[]{(byte) (sw >> 8), (byte) sw});
+        }
+
+        boolean isSuccess() {
+            // GPC AmdD 6.2.5, only these carry data and R-MAC
+            return sw == SW_NO_ERROR || (sw >> 8) == 0x62 || (sw >> 8) == 0x63;
+        }
+    }
+
+    // Same keys for ENC, MAC and DEK, key version 0x01
+    public GPCardSimulator(GPSecureChannelVersion.SCP scp, byte[] key) {
+        this(scp, 0x01, key, key, key);
+    }
+
+    public GPCardSimulator(GPSecureChannelVersion.SCP scp, int version, byte[] enc, byte[] mac, byte[] dek) {
+        if (scp != GPSecureChannelVersion.SCP.SCP02 && scp != GPSecureChannelVersion.SCP.SCP03)
+            throw new IllegalArgumentException("Only SCP02 and SCP03 are supported: " + scp);
+        int length = scp == GPSecureChannelVersion.SCP.SCP02 ? 16 : enc.length;
+        if (enc.length != length || mac.length != length || dek.length != length || (length != 16 && length != 24 && length != 32))
+            throw new IllegalArgumentException("Invalid key length for " + scp);
+        this.scp = scp;
+        keys.put(version, new byte[][]{enc.clone(), mac.clone(), dek.clone()});
+
+        Entry isd = new Entry(Kind.IssuerSecurityDomain, ISD, 0x0F); // SECURED
+        isd.privileges = Privilege.toBytes(EnumSet.of(Privilege.SecurityDomain, Privilege.CardLock, Privilege.CardTerminate, Privilege.CVMManagement,
+                Privilege.TrustedPath, Privilege.AuthorizedManagement, Privilege.GlobalDelete, Privilege.GlobalLock, Privilege.GlobalRegistry, Privilege.FinalApplication));
+        registry.add(isd);
+        for (String p : PACKAGES) {
+            Entry pkg = new Entry(Kind.ExecutableLoadFile, new AID(p), 0x01); // LOADED
+            pkg.version = new byte[]{0x01, 0x00};
+            registry.add(pkg);
+        }
+    }
+
+    // Re-seeds card challenges
+    public synchronized void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    // Latency of any command
+    public synchronized void setLatency(Duration latency) {
+        this.latency = latency.toNanos();
+    }
+
+    // Latency of a specific instruction, overrides the default
+    public synchronized void setLatency(int ins, Duration latency) {
+        latencies.put(ins & 0xFF, latency.toNanos());
+    }
+
+    // Maximum length of a GET STATUS response, before paging with 6310
+    public synchronized void setStatusLimit(int bytes) {
+        if (bytes < 1 || bytes > 256)
+            throw new IllegalArgumentException("Invalid GET STATUS limit: " + bytes);
+        this.statusLimit = bytes;
+    }
+
+    public synchronized void setCPLC(byte[] cplc) {
+        if (cplc.length != 0x2A)
+            throw new IllegalArgumentException("CPLC must be 42 bytes");
+        this.cplc = cplc.clone();
+    }
+
+    // Data sent with STORE DATA, one element per sequence of blocks
+    public synchronized List<byte[]> getStoredData() {
+        List<byte[]> result = new ArrayList<>();
+        stored.forEach(e -> result.add(e.clone()));
+        return result;
+    }
+
+    public synchronized List<Integer> getKeyVersions() {
+        return new ArrayList<>(keys.keySet());
+    }
+
+    @Override
+    public synchronized byte[] transceive(byte[] command) throws BIBOException {
+        final long start = System.nanoTime();
+        byte[] response = process(command);
+        if (command.length > 1) {
+            long deadline = start + latencies.getOrDefault(command[1] & 0xFF, latency);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(remaining);
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private byte[] process(byte[] raw) {
+        CommandAPDU command;
+        try {
+            command = new CommandAPDU(raw);
+        } catch (IllegalArgumentException e) {
+            return new Response(SW_WRONG_LENGTH).getBytes();
+        }
+        int cla = command.getCLA();
+        int ins = command.getINS() & 0xFF;
+        // Channels 4..19 are not supported
+        if ((cla & 0x40) != 0 || channels[cla & 0x03] == null)
+            return new Response(SW_CHANNEL_NOT_SUPPORTED).getBytes();
+        ch = channels[cla & 0x03];
+        if ((cla & 0x03) != 0) {
+            // Secure messaging is as on the basic channel
+            byte[] basic = raw.clone();
+            basic[0] &= ~0x03;
+            command = new CommandAPDU(basic);
+            cla = command.getCLA();
+        }
+        if (ins == (INS_MANAGE_CHANNEL & 0xFF) && (cla & 0x80) == 0)
+            return manageChannel(command).getBytes();
+        if (ins == (INS_SELECT & 0xFF) && (cla & 0x80) == 0)
+            return select(command).getBytes();
+        // Applications don't know GlobalPlatform commands
+        if (!ISD.equals(ch.selected))
+            return new Response(SW_INS_NOT_SUPPORTED).getBytes();
+        // GET DATA is also available outside of a secure channel, without affecting it
+        if (ins == (INS_GET_DATA & 0xFF) && (cla & 0x04) == 0)
+            return getData(command).getBytes();
+        if ((cla & 0x80) == 0)
+            return new Response(SW_INS_NOT_SUPPORTED).getBytes();
+        if (ins == (INS_INITIALIZE_UPDATE & 0xFF))
+            return initializeUpdate(command).getBytes();
+        if (ins == (INS_EXTERNAL_AUTHENTICATE_82 & 0xFF))
+            return externalAuthenticate(command).getBytes();
+
+        if (ch.session == null || !ch.session.authenticated)
+            return new Response(SW_SECURITY_STATUS_NOT_SATISFIED).getBytes();
+        final Session current = ch.session;
+        final CommandAPDU plain;
+        try {
+            plain = unwrap(current, command);
+        } catch (GeneralSecurityException e) {
+            logger.debug("Closing secure channel: {}", e.getMessage());
+            ch.session = null;
+            return new Response(SW_SECURITY_STATUS_NOT_SATISFIED).getBytes();
+        }
+        try {
+            return wrap(current, dispatch(plain)).getBytes();
+        } catch (GeneralSecurityException e) {
+            throw new BIBOException("Could not wrap response", e);
+        }
+    }
+
+    private Response dispatch(CommandAPDU command) throws GeneralSecurityException {
+        switch (command.getINS() & 0xFF) {
+            case INS_GET_STATUS & 0xFF:
+                return getStatus(command);
+            case INS_INSTALL & 0xFF:
+                return install(command);
+            case INS_LOAD & 0xFF:
+                return load(command);
+            case INS_DELETE & 0xFF:
+                return delete(command);
+            case INS_PUT_KEY & 0xFF:
+                return putKey(command);
+            case INS_STORE_DATA & 0xFF:
+                return storeData(command);
+            case INS_GET_DATA & 0xFF:
+                return getData(command);
+            default:
+                return new Response(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    // Nothing is selected on a new channel
+    private Response manageChannel(CommandAPDU command) {
+        if (command.getP1() == 0x00 && command.getP2() == 0x00) {
+            for (int i = 1; i < channels.length; i++) {
+                if (channels[i] == null) {
+                    channels[i] = new Channel();
+                    return new Response(new byte[]{(byte) i}, SW_NO_ERROR);
+                }
+            }
+            return new Response(SW_CHANNEL_NOT_SUPPORTED);
+        } else if (command.getP1() == 0x80 && command.getP2() > 0 && command.getP2() < channels.length) {
+            if (channels[command.getP2()] == null)
+                return new Response(SW_CHANNEL_NOT_SUPPORTED);
+            channels[command.getP2()] = null;
+            return new Response(SW_NO_ERROR);
+        }
+        return new Response(SW_INCORRECT_P1P2);
+    }
+
+    private Response select(CommandAPDU command) {
+        if (command.getP1() != 0x04)
+            return new Response(SW_INCORRECT_P1P2);
+        byte[] aid = command.getData();
+        // Selection always closes the secure channel
+        ch.session = null;
+        ch.load = null;
+        ch.status = null;
+        ch.storeData = null;
+        if (aid.length == 0 || ISD.equals(new AID(aid))) {
+            ch.selected = ISD;
+            // FCI with the AID and the maximum length of a command
+            byte[] a5 = HexUtils.hex2bin("9F6501FF");
+            byte[] fci = GPUtils.concatenate(new byte[]{(byte) 0x84, (byte) ISD.getLength()}, ISD.getBytes(), new byte[]{(byte) 0xA5, (byte) a5.length}, a5);
+            return new Response(GPUtils.concatenate(new byte[]{0x6F, (byte) fci.length}, fci), SW_NO_ERROR);
+        }
+        Optional<Entry> app = find(new AID(aid)).filter(e -> e.kind != Kind.ExecutableLoadFile && (e.lifecycle & 0x07) == 0x07);
+        if (app.isEmpty())
+            return new Response(SW_FILE_NOT_FOUND);
+        ch.selected = app.get().aid;
+        return new Response(SW_NO_ERROR);
+    }
+
+    private Response initializeUpdate(CommandAPDU command) {
+        ch.session = null;
+        if (command.getNc() != 8)
+            return new Response(SW_WRONG_LENGTH);
+        int version = command.getP1() == 0 ? keys.keySet().iterator().next() : command.getP1();
+        byte[][] keyset = keys.get(version);
+        if (keyset == null)
+            return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+        byte[] host = command.getData();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.writeBytes(KDD);
+        response.write(version);
+        if (scp == GPSecureChannelVersion.SCP.SCP02) {
+            // Sequence counter and 6 bytes of challenge
+            sequence = (sequence + 1) & 0xFFFF;
+            byte[] seq = new byte[]{(byte) (sequence >> 8), (byte) sequence};
+            byte[] challenge = new byte[8];
+            random.nextBytes(challenge);
+            System.arraycopy(seq, 0, challenge, 0, 2);
+            byte[] enc = scp02(keyset[0], 0x0182, seq);
+            ch.session = new Session(version, host, challenge, enc, scp02(keyset[1], 0x0101, seq), scp02(keyset[1], 0x0102, seq), scp02(keyset[2], 0x0181, seq));
+            response.write(0x02);
+            response.writeBytes(challenge);
+            response.writeBytes(GPCrypto.mac_3des_nulliv(enc, GPUtils.concatenate(host, challenge)));
+        } else {
+            byte[] challenge = new byte[8];
+            random.nextBytes(challenge);
+            byte[] context = GPUtils.concatenate(host, challenge);
+            int bits = keyset[0].length * 8;
+            byte[] mac = GPCrypto.scp03_kdf(keyset[1], (byte) 0x06, context, bits);
+            ch.session = new Session(version, host, challenge, GPCrypto.scp03_kdf(keyset[0], (byte) 0x04, context, bits), mac,
+                    GPCrypto.scp03_kdf(keyset[1], (byte) 0x07, context, bits), keyset[2]);
+            response.write(0x03);
+            response.write(0x60); // random challenge, R-MAC and R-ENC
+            response.writeBytes(challenge);
+            response.writeBytes(GPCrypto.scp03_kdf(mac, (byte) 0x00, context, 64));
+        }
+        return new Response(response.toByteArray(), SW_NO_ERROR);
+    }
+
+    private Response externalAuthenticate(CommandAPDU command) {
+        final Session current = ch.session;
+        ch.session = null;
+        if (current == null || current.authenticated)
+            return new Response(SW_CONDITIONS_NOT_SATISFIED);
+        final CommandAPDU plain;
+        try {
+            plain = unwrap(current, command);
+        } catch (GeneralSecurityException e) {
+            return new Response(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        final byte[] expected;
+        if (scp == GPSecureChannelVersion.SCP.SCP02) {
+            expected = GPCrypto.mac_3des_nulliv(current.enc, GPUtils.concatenate(current.challenge, current.host));
+        } else {
+            expected = GPCrypto.scp03_kdf(current.mac, (byte) 0x01, GPUtils.concatenate(current.host, current.challenge), 64);
+        }
+        if (!Arrays.equals(expected, plain.getData()))
+            return new Response(SW_AUTHENTICATION_FAILED);
+        int level = command.getP1();
+        List<Integer> levels = scp == GPSecureChannelVersion.SCP.SCP02 ? List.of(0x00, 0x01, 0x03) : List.of(0x00, 0x01, 0x03, 0x11, 0x13, 0x33);
+        if (!levels.contains(level))
+            return new Response(SW_INCORRECT_P1P2);
+        current.authenticated = true;
+        current.level = level;
+        ch.session = current;
+        return new Response(SW_NO_ERROR);
+    }
+
+    // Removes C-MAC and C-ENC
+    private CommandAPDU unwrap(Session s, CommandAPDU command) throws GeneralSecurityException {
+        int cla = command.getCLA();
+        boolean macced = command.getINS() == (INS_EXTERNAL_AUTHENTICATE_82 & 0xFF) || s.has(APDUMode.MAC);
+        if (!macced) {
+            if ((cla & 0x04) != 0)
+                throw new GeneralSecurityException("Unexpected secure messaging");
+            return command;
+        }
+        byte[] data = command.getData();
+        if ((cla & 0x04) == 0 || data.length < 8)
+            throw new GeneralSecurityException("No C-MAC");
+        byte[] body = Arrays.copyOf(data, data.length - 8);
+        byte[] mac = Arrays.copyOfRange(data, data.length - 8, data.length);
+        final byte[] expected;
+        if (scp == GPSecureChannelVersion.SCP.SCP02) {
+            if (s.has(APDUMode.ENC) && body.length > 0)
+                body = GPCrypto.unpad80(cipher("DESede/CBC/NoPadding", Cipher.DECRYPT_MODE, GPCrypto.des3key(s.enc), new byte[8], body));
+            // ICV is zero for EXTERNAL AUTHENTICATE and the encrypted previous C-MAC after that
+            s.icv = s.icv == null ? new byte[8] : cipher("DES/ECB/NoPadding", Cipher.ENCRYPT_MODE, new SecretKeySpec(GPCrypto.resizeDES(s.mac, 8), "DES"), null, s.icv);
+            byte[] header = new byte[]{(byte) cla, (byte) command.getINS(), (byte) command.getP1(), (byte) command.getP2(), (byte) (body.length + 8)};
+            expected = GPCrypto.mac_des_3des(s.mac, GPUtils.concatenate(header, body), s.icv);
+            s.icv = expected;
+        } else {
+            byte[] header = new byte[]{(byte) cla, (byte) command.getINS(), (byte) command.getP1(), (byte) command.getP2()};
+            byte[] cmac = GPCrypto.scp03_mac(s.mac, GPUtils.concatenate(s.chaining, header, GPUtils.encodeLcLength(data.length, command.getNe()), body), 128);
+            System.arraycopy(cmac, 0, s.chaining, 0, 16);
+            expected = Arrays.copyOf(cmac, 8);
+            if (s.has(APDUMode.ENC)) {
+                GPCrypto.buffer_increment(s.counter);
+                if (body.length > 0) {
+                    byte[] iv = cipher("AES/ECB/NoPadding", Cipher.ENCRYPT_MODE, GPCrypto.aeskey(s.enc), null, s.counter);
+                    body = GPCrypto.unpad80(cipher("AES/CBC/NoPadding", Cipher.DECRYPT_MODE, GPCrypto.aeskey(s.enc), iv, body));
+                }
+            }
+        }
+        if (!Arrays.equals(expected, mac))
+            throw new GeneralSecurityException("Invalid C-MAC");
+        cla &= ~0x04;
+        if (command.getNe() > 0)
+            return new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2(), body, command.getNe());
+        return new CommandAPDU(cla, command.getINS(), command.getP1(), command.getP2(), body);
+    }
+
+    // Adds R-ENC and R-MAC (SCP03 only)
+    private Response wrap(Session s, Response response) throws GeneralSecurityException {
+        if (scp != GPSecureChannelVersion.SCP.SCP03 || !response.isSuccess())
+            return response;
+        byte[] data = response.data;
+        if (s.has(APDUMode.RENC) && data.length > 0) {
+            byte[] counter = s.counter.clone();
+            counter[0] = (byte) 0x80;
+            byte[] iv = cipher("AES/ECB/NoPadding", Cipher.ENCRYPT_MODE, GPCrypto.aeskey(s.enc), null, counter);
+            data = cipher("AES/CBC/NoPadding", Cipher.ENCRYPT_MODE, GPCrypto.aeskey(s.enc), iv, GPCrypto.pad80(data, 16));
+        }
+        if (s.has(APDUMode.RMAC)) {
+            byte[] rmac = GPCrypto.scp03_mac(s.rmac, GPUtils.concatenate(s.chaining, data, new byte[]{(byte) (response.sw >> 8), (byte) response.sw}), 128);
+            data = GPUtils.concatenate(data, Arrays.copyOf(rmac, 8));
+        }
+        return new Response(data, response.sw);
+    }
+
+    private Response getStatus(CommandAPDU command) {
+        int p1 = command.getP1();
+        int p2 = command.getP2();
+        if ((p2 & 0xFE) != 0x02 || (p1 != 0x80 && p1 != 0x40 && p1 != 0x20 && p1 != 0x10))
+            return new Response(SW_INCORRECT_P1P2);
+        if ((p2 & 0x01) == 0) {
+            byte[] criteria = command.getData();
+            if (criteria.length < 2 || criteria[0] != 0x4F || (criteria[1] & 0xFF) != criteria.length - 2)
+                return new Response(SW_WRONG_DATA);
+            byte[] prefix = Arrays.copyOfRange(criteria, 2, criteria.length);
+            ch.status = new ArrayDeque<>();
+            for (Entry e : registry) {
+                boolean kind = p1 == 0x80 ? e.kind == Kind.IssuerSecurityDomain : p1 == 0x40 ? (e.kind == Kind.Application || e.kind == Kind.SecurityDomain) : e.kind == Kind.ExecutableLoadFile;
+                byte[] aid = e.aid.getBytes();
+                if (kind && aid.length >= prefix.length && Arrays.equals(Arrays.copyOf(aid, prefix.length), prefix))
+                    ch.status.add(encode(e, p1 == 0x10));
+            }
+            if (ch.status.isEmpty()) {
+                ch.status = null;
+                return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+            }
+        } else if (ch.status == null) {
+            return new Response(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        // At least one entry per response
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        do {
+            page.writeBytes(ch.status.poll());
+        } while (!ch.status.isEmpty() && page.size() + ch.status.peek().length <= statusLimit);
+        if (ch.status.isEmpty()) {
+            ch.status = null;
+            return new Response(page.toByteArray(), SW_NO_ERROR);
+        }
+        return new Response(page.toByteArray(), SW_MORE_DATA);
+    }
+
+    // GPC 2.3 Table 11-36
+    private static byte[] encode(Entry e, boolean modules) {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        tlv(bo, 0x4F, e.aid.getBytes());
+        tlv(bo, 0x9F70, new byte[]{(byte) e.lifecycle});
+        if (e.kind == Kind.ExecutableLoadFile) {
+            if (e.version != null)
+                tlv(bo, 0xCE, e.version);
+            if (modules)
+                e.modules.forEach(m -> tlv(bo, 0x84, m.getBytes()));
+        } else {
+            tlv(bo, 0xC5, e.privileges);
+            if (e.source != null)
+                tlv(bo, 0xC4, e.source.getBytes());
+        }
+        if (e.kind != Kind.IssuerSecurityDomain)
+            tlv(bo, 0xCC, ISD.getBytes());
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        tlv(entry, 0xE3, bo.toByteArray());
+        return entry.toByteArray();
+    }
+
+    private Response install(CommandAPDU command) {
+        final List<byte[]> fields;
+        try {
+            fields = lvs(command.getData());
+        } catch (IllegalArgumentException e) {
+            return new Response(SW_WRONG_DATA);
+        }
+        if (fields.size() < 3)
+            return new Response(SW_WRONG_DATA);
+        switch (command.getP1() & 0x7F) {
+            case 0x02: {
+                AID aid = new AID(fields.get(0));
+                if (find(aid).isPresent())
+                    return new Response(SW_WRONG_DATA);
+                ch.load = new Load(aid);
+                return new Response(new byte[1], SW_NO_ERROR);
+            }
+            case 0x04:
+            case 0x0C: {
+                if (fields.size() < 5)
+                    return new Response(SW_WRONG_DATA);
+                Optional<Entry> pkg = find(new AID(fields.get(0))).filter(e -> e.kind == Kind.ExecutableLoadFile);
+                AID module = new AID(fields.get(1));
+                if (pkg.isEmpty() || (!pkg.get().modules.isEmpty() && !pkg.get().modules.contains(module)))
+                    return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+                AID instance = new AID(fields.get(2));
+                if (find(instance).isPresent())
+                    return new Response(SW_WRONG_DATA);
+                byte[] privileges = fields.get(3);
+                if (privileges.length != 1 && privileges.length != 3)
+                    return new Response(SW_WRONG_DATA);
+                privileges = Arrays.copyOf(privileges, 3);
+                Kind kind = (privileges[0] & 0x80) != 0 ? Kind.SecurityDomain : Kind.Application;
+                // INSTALLED or SELECTABLE
+                Entry app = new Entry(kind, instance, (command.getP1() & 0x08) != 0 ? 0x07 : 0x03);
+                app.privileges = privileges;
+                app.source = pkg.get().aid;
+                registry.add(app);
+                return new Response(new byte[1], SW_NO_ERROR);
+            }
+            case 0x08: {
+                Optional<Entry> app = find(new AID(fields.get(2))).filter(e -> e.kind != Kind.ExecutableLoadFile);
+                if (app.isEmpty())
+                    return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+                app.get().lifecycle |= 0x07;
+                return new Response(new byte[1], SW_NO_ERROR);
+            }
+            case 0x20: {
+                if (find(new AID(fields.get(2))).filter(e -> e.kind != Kind.ExecutableLoadFile).isEmpty())
+                    return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+                return new Response(new byte[1], SW_NO_ERROR);
+            }
+            default:
+                return new Response(SW_INCORRECT_P1P2);
+        }
+    }
+
+    private Response load(CommandAPDU command) {
+        if (ch.load == null)
+            return new Response(SW_CONDITIONS_NOT_SATISFIED);
+        if (command.getP2() != (ch.load.block & 0xFF)) {
+            ch.load = null;
+            return new Response(SW_INCORRECT_P1P2);
+        }
+        ch.load.data.writeBytes(command.getData());
+        ch.load.block++;
+        if ((command.getP1() & 0x80) == 0)
+            return new Response(SW_NO_ERROR);
+        Load done = ch.load;
+        ch.load = null;
+        Entry pkg = new Entry(Kind.ExecutableLoadFile, done.aid, 0x01);
+        try {
+            parse(pkg, done.data.toByteArray());
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            logger.debug("Invalid load file: {}", e.getMessage());
+            return new Response(SW_WRONG_DATA);
+        }
+        registry.add(pkg);
+        return new Response(new byte[1], SW_NO_ERROR);
+    }
+
+    // Version and applets from the CAP components in the C4 load file data block (GPC 2.3 11.6.2.3)
+    private static void parse(Entry pkg, byte[] block) {
+        int offset = 0;
+        byte[] code = null;
+        while (offset < block.length) {
+            int tag = block[offset++] & 0xFF;
+            int[] length = length(block, offset);
+            offset = length[1];
+            if (tag == 0xC4)
+                code = Arrays.copyOfRange(block, offset, offset + length[0]);
+            offset += length[0];
+        }
+        if (code == null)
+            throw new IllegalArgumentException("No load file data block");
+        offset = 0;
+        while (offset + 3 <= code.length) {
+            int tag = code[offset] & 0xFF;
+            int size = ((code[offset + 1] & 0xFF) << 8) | (code[offset + 2] & 0xFF);
+            int start = offset + 3;
+            // Header: magic, CAP version, flags, package version
+            if (tag == 1 && size >= 9 && (code[start + 6] & 0x08) == 0)
+                pkg.version = new byte[]{code[start + 8], code[start + 7]};
+            // Applet: count, then AID and install method offset for each
+            if (tag == 3) {
+                int p = start + 1;
+                for (int i = 0; i < (code[start] & 0xFF); i++) {
+                    int len = code[p++] & 0xFF;
+                    pkg.modules.add(new AID(Arrays.copyOfRange(code, p, p + len)));
+                    p += len + 2;
+                }
+            }
+            offset = start + size;
+        }
+        if (offset != code.length)
+            throw new IllegalArgumentException("Truncated component");
+    }
+
+    private Response delete(CommandAPDU command) {
+        byte[] data = command.getData();
+        if (data.length < 2 || (data[1] & 0xFF) != data.length - 2)
+            return new Response(SW_WRONG_DATA);
+        byte[] value = Arrays.copyOfRange(data, 2, data.length);
+        if (data[0] == (byte) 0xD2) {
+            if (value.length != 1 || keys.size() < 2 || keys.remove(value[0] & 0xFF) == null)
+                return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+            return new Response(new byte[1], SW_NO_ERROR);
+        }
+        if (data[0] != 0x4F)
+            return new Response(SW_WRONG_DATA);
+        AID aid = new AID(value);
+        Optional<Entry> entry = find(aid);
+        if (entry.isEmpty())
+            return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+        if (entry.get().kind == Kind.IssuerSecurityDomain)
+            return new Response(SW_CONDITIONS_NOT_SATISFIED);
+        if (entry.get().kind == Kind.ExecutableLoadFile) {
+            boolean instances = registry.stream().anyMatch(e -> aid.equals(e.source) && e.kind != Kind.ExecutableLoadFile);
+            if (instances && (command.getP2() & 0x80) == 0)
+                return new Response(SW_CONDITIONS_NOT_SATISFIED);
+            registry.removeIf(e -> aid.equals(e.source) && e.kind != Kind.ExecutableLoadFile);
+        }
+        registry.remove(entry.get());
+        return new Response(new byte[1], SW_NO_ERROR);
+    }
+
+    // ENC, MAC and DEK in one command, encrypted with the (session) DEK
+    private Response putKey(CommandAPDU command) throws GeneralSecurityException {
+        int replace = command.getP1();
+        if (command.getP2() != 0x81)
+            return new Response(SW_INCORRECT_P1P2);
+        if (replace != 0 && !keys.containsKey(replace))
+            return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+        byte[] data = command.getData();
+        if (data.length < 1)
+            return new Response(SW_WRONG_DATA);
+        int version = data[0] & 0xFF;
+        if (version == 0 || (version != replace && keys.containsKey(version)))
+            return new Response(SW_WRONG_DATA);
+        byte[][] keyset = new byte[3][];
+        ByteArrayOutputStream kcvs = new ByteArrayOutputStream();
+        kcvs.write(version);
+        int offset = 1;
+        try {
+            for (int i = 0; i < keyset.length; i++) {
+                int type = data[offset++] & 0xFF;
+                int length = data[offset++] & 0xFF;
+                if (type == GPKeyInfo.GPKey.AES.getType() && scp == GPSecureChannelVersion.SCP.SCP03) {
+                    int actual = data[offset] & 0xFF;
+                    byte[] cgram = Arrays.copyOfRange(data, offset + 1, offset + length);
+                    keyset[i] = Arrays.copyOf(cipher("AES/CBC/NoPadding", Cipher.DECRYPT_MODE, GPCrypto.aeskey(ch.session.dek), new byte[16], cgram), actual);
+                } else if (type == GPKeyInfo.GPKey.DES3.getType() && scp == GPSecureChannelVersion.SCP.SCP02) {
+                    byte[] cgram = Arrays.copyOfRange(data, offset, offset + length);
+                    keyset[i] = cipher("DESede/ECB/NoPadding", Cipher.DECRYPT_MODE, GPCrypto.des3key(ch.session.dek), null, cgram);
+                } else {
+                    return new Response(SW_WRONG_DATA);
+                }
+                offset += length;
+                byte[] kcv = Arrays.copyOfRange(data, offset + 1, offset + 1 + (data[offset] & 0xFF));
+                offset += 1 + kcv.length;
+                byte[] expected = scp == GPSecureChannelVersion.SCP.SCP02 ? GPCrypto.kcv_3des(keyset[i]) : GPCrypto.kcv_aes(keyset[i]);
+                if (keyset[i].length != keyset[0].length || !Arrays.equals(kcv, expected))
+                    return new Response(SW_WRONG_DATA);
+                kcvs.writeBytes(kcv);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            return new Response(SW_WRONG_DATA);
+        }
+        if (offset != data.length)
+            return new Response(SW_WRONG_DATA);
+        if (replace != 0)
+            keys.remove(replace);
+        keys.put(version, keyset);
+        return new Response(kcvs.toByteArray(), SW_NO_ERROR);
+    }
+
+    private Response storeData(CommandAPDU command) {
+        int block = command.getP2();
+        if (block == 0) {
+            ch.storeData = new ByteArrayOutputStream();
+            ch.storeBlock = 0;
+        } else if (ch.storeData == null || block != (ch.storeBlock & 0xFF)) {
+            ch.storeData = null;
+            return new Response(SW_INCORRECT_P1P2);
+        }
+        ch.storeData.writeBytes(command.getData());
+        ch.storeBlock++;
+        if ((command.getP1() & 0x80) != 0) {
+            stored.add(ch.storeData.toByteArray());
+            ch.storeData = null;
+        }
+        return new Response(SW_NO_ERROR);
+    }
+
+    private Response getData(CommandAPDU command) {
+        int tag = (command.getP1() << 8) | command.getP2();
+        if (tag == 0x9F7F) {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            tlv(bo, 0x9F7F, cplc);
+            return new Response(bo.toByteArray(), SW_NO_ERROR);
+        } else if (tag == 0x00E0) {
+            ByteArrayOutputStream template = new ByteArrayOutputStream();
+            int type = (scp == GPSecureChannelVersion.SCP.SCP03 ? GPKeyInfo.GPKey.AES : GPKeyInfo.GPKey.DES3).getType() & 0xFF;
+            for (Map.Entry<Integer, byte[][]> keyset : keys.entrySet()) {
+                for (int id = 1; id <= keyset.getValue().length; id++)
+                    tlv(template, 0xC0, new byte[]{(byte) id, keyset.getKey().byteValue(), (byte) type, (byte) keyset.getValue()[id - 1].length});
+            }
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            tlv(bo, 0xE0, template.toByteArray());
+            return new Response(bo.toByteArray(), SW_NO_ERROR);
+        }
+        return new Response(SW_REFERENCED_DATA_NOT_FOUND);
+    }
+
+    private Optional<Entry> find(AID aid) {
+        return registry.stream().filter(e -> e.aid.equals(aid)).findFirst();
+    }
+
+    // SCP02 session key: 3DES-CBC of constant and sequence counter
+    private static byte[] scp02(byte[] key, int constant, byte[] seq) {
+        byte[] derivation = new byte[16];
+        derivation[0] = (byte) (constant >> 8);
+        derivation[1] = (byte) constant;
+        System.arraycopy(seq, 0, derivation, 2, 2);
+        try {
+            return cipher("DESede/CBC/NoPadding", Cipher.ENCRYPT_MODE, GPCrypto.des3key(key), new byte[8], derivation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Session key derivation failed", e);
+        }
+    }
+
+    private static byte[] cipher(String algorithm, int mode, Key key, byte[] iv, byte[] data) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance(algorithm);
+        if (iv == null)
+            c.init(mode, key);
+        else
+            c.init(mode, key, new IvParameterSpec(iv));
+        if (data.length % c.getBlockSize() != 0)
+            throw new BadPaddingException("Not a multiple of block size");
+        return c.doFinal(data);
+    }
+
+    private static void tlv(ByteArrayOutputStream bo, int tag, byte[] value) {
+        if (tag > 0xFF)
+            bo.write(tag >> 8);
+        bo.write(tag);
+        bo.writeBytes(GPUtils.encodeLength(value.length));
+        bo.writeBytes(value);
+    }
+
+    // Returns length and offset of value
+    private static int[] length(byte[] data, int offset) {
+        int first = data[offset++] & 0xFF;
+        if (first < 0x80)
+            return new int[]{first, offset};
+        int length = 0;
+        for (int i = 0; i < (first & 0x7F); i++)
+            length = (length << 8) | (data[offset++] & 0xFF);
+        if (offset + length > data.length)
+            throw new IllegalArgumentException("Invalid length");
+        return new int[]{length, offset};
+    }
+
+    private static List<byte[]> lvs(byte[] data) {
+        List<byte[]> result = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            int[] length = length(data, offset);
+            if (length[1] + length[0] > data.length)
+                throw new IllegalArgumentException("Invalid length");
+            result.add(Arrays.copyOfRange(data, length[1], length[1] + length[0]));
+            offset = length[1] + length[0];
+        }
+        return result;
+    }
+}
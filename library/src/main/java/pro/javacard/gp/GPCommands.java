@@ -35,6 +35,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 // Middle layer between GPTool (CLI) and GlobalPlatform (session)
+// Stateless, runs on the thread of the caller. To run many cards at once, submit to AsyncGPSession
 public class GPCommands {
 
     private GPCommands() {}
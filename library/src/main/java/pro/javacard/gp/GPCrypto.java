@@ -26,18 +26,12 @@ import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
-import org.bouncycastle.crypto.BlockCipher;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.generators.KDFCounterBytesGenerator;
-import org.bouncycastle.crypto.macs.CMac;
-import org.bouncycastle.crypto.params.KDFCounterParameters;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.slf4j.LoggerFactory;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
@@ -48,6 +42,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
+import java.util.Objects;
 
 // Various cryptographic primitives used for secure channel or plaintext keys
 @SuppressWarnings("lgtm[java/weak-cryptographic-algorithm]")
@@ -69,7 +64,9 @@ public final class GPCrypto {
     public static final IvParameterSpec iv_null_8 = new IvParameterSpec(null_bytes_8);
     static final IvParameterSpec iv_null_16 = new IvParameterSpec(null_bytes_16);
 
-    // Shared random
+    // Shared random. SHA1PRNG nextBytes() is synchronized, but after the forced seeding below it only hashes
+    // and never blocks, so it does not pin virtual threads for longer than a few microseconds.
+    // Sessions use getRandom() instead, which does not serialize all threads on one instance.
     public static final SecureRandom random;
 
     static {
@@ -81,6 +78,52 @@ public final class GPCrypto {
         }
     }
 
+    // Crypto backend for the whole process, see GPCryptoBackend
+    public static final String BACKEND = "globalplatformpro.crypto";
+    private static volatile GPCryptoBackend backend = defaultBackend();
+
+    private static GPCryptoBackend defaultBackend() {
+        String env = System.getenv().getOrDefault(BACKEND.replace(".", "_").toUpperCase(), "jca");
+        String name = System.getProperty(BACKEND, env);
+        try {
+            return GPCryptoBackend.forName(name);
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(GPCrypto.class).warn("Using default crypto backend: {}", e.getMessage());
+            return GPCryptoBackend.jca();
+        }
+    }
+
+    // Random source for the whole process, see GPRandom
+    public static final String RANDOM = "globalplatformpro.random";
+    private static volatile GPRandom randomSource = defaultRandom();
+
+    private static GPRandom defaultRandom() {
+        String env = System.getenv().getOrDefault(RANDOM.replace(".", "_").toUpperCase(), "shared");
+        String name = System.getProperty(RANDOM, env);
+        try {
+            return GPRandom.forName(name);
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(GPCrypto.class).warn("Using shared random: {}", e.getMessage());
+            return GPRandom.shared();
+        }
+    }
+
+    public static GPRandom getRandom() {
+        return randomSource;
+    }
+
+    public static void setRandom(GPRandom random) {
+        GPCrypto.randomSource = Objects.requireNonNull(random);
+    }
+
+    public static GPCryptoBackend getBackend() {
+        return backend;
+    }
+
+    public static void setBackend(GPCryptoBackend backend) {
+        GPCrypto.backend = Objects.requireNonNull(backend);
+    }
+
     public static byte[] pad80(byte[] text, int blocksize) {
         int total = (text.length / blocksize + 1) * blocksize;
         byte[] result = Arrays.copyOfRange(text, 0, total);
@@ -120,7 +163,11 @@ public final class GPCrypto {
     // 3des mac
     public static byte[] mac_3des(byte[] key, byte[] text, byte[] iv) {
         byte[] d = pad80(text, 8);
-        return mac_3des(new SecretKeySpec(resizeDES(key, 24), "DESede"), d, 0, d.length, iv);
+        try {
+            return backend.cbcMac(GPCryptoBackend.Algorithm.DES3, key, iv, d, 0, d.length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("MAC computation failed.", e);
+        }
     }
 
 
@@ -128,19 +175,6 @@ public final class GPCrypto {
         return mac_3des(key, d, null_bytes_8);
     }
 
-    static byte[] mac_3des(Key key, byte[] text, int offset, int length, byte[] iv) {
-        try {
-            Cipher cipher = Cipher.getInstance(DES3_CBC_CIPHER);
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-            byte[] result = new byte[8];
-            byte[] res = cipher.doFinal(text, offset, length);
-            System.arraycopy(res, res.length - 8, result, 0, 8);
-            return result;
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException("MAC computation failed.", e);
-        }
-    }
-
     // The weird mac
     public static byte[] mac_des_3des(byte[] key, byte[] text, byte[] iv) {
         byte[] d = pad80(text, 8);
@@ -149,22 +183,11 @@ public final class GPCrypto {
 
     private static byte[] mac_des_3des(byte[] key, byte[] text, int offset, int length, byte[] iv) {
         try {
-            Cipher cipher1 = Cipher.getInstance(DES_CBC_CIPHER);
-            cipher1.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(resizeDES(key, 8), "DES"), new IvParameterSpec(iv));
-            Cipher cipher2 = Cipher.getInstance(DES3_CBC_CIPHER);
-            cipher2.init(Cipher.ENCRYPT_MODE, des3key(key), new IvParameterSpec(iv));
-
-            byte[] result = new byte[8];
-            byte[] temp;
-
+            byte[] result = iv;
             if (length > 8) {
-                temp = cipher1.doFinal(text, offset, length - 8);
-                System.arraycopy(temp, temp.length - 8, result, 0, 8);
-                cipher2.init(Cipher.ENCRYPT_MODE, des3key(key), new IvParameterSpec(result));
+                result = backend.cbcMac(GPCryptoBackend.Algorithm.DES, key, iv, text, offset, length - 8);
             }
-            temp = cipher2.doFinal(text, (offset + length) - 8, 8);
-            System.arraycopy(temp, temp.length - 8, result, 0, 8);
-            return result;
+            return backend.cbcMac(GPCryptoBackend.Algorithm.DES3, key, result, text, (offset + length) - 8, 8);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("MAC computation failed.", e);
         }
@@ -172,14 +195,11 @@ public final class GPCrypto {
 
     // SCP03 related
     public static byte[] scp03_mac(byte[] keybytes, byte[] msg, int lengthBits) {
-        // Use BouncyCastle light interface.
-        BlockCipher cipher = AESEngine.newInstance();
-        CMac cmac = new CMac(cipher);
-        cmac.init(new KeyParameter(keybytes));
-        cmac.update(msg, 0, msg.length);
-        byte[] out = new byte[cmac.getMacSize()];
-        cmac.doFinal(out, 0);
-        return Arrays.copyOf(out, lengthBits / 8);
+        try {
+            return Arrays.copyOf(backend.cmac(keybytes, msg, 0, msg.length), lengthBits / 8);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("MAC computation failed.", e);
+        }
     }
 
     // GP 2.2.1 Amendment D v 1.1.1
@@ -204,22 +224,18 @@ public final class GPCrypto {
 
     // Generic KDF in counter mode with one byte counter.
     public static byte[] scp03_kdf(byte[] key, byte[] a, byte[] b, int bytes) {
-        BlockCipher cipher = AESEngine.newInstance();
-        CMac cmac = new CMac(cipher);
-        KDFCounterBytesGenerator kdf = new KDFCounterBytesGenerator(cmac);
-        kdf.init(new KDFCounterParameters(key, a, b, 8)); // counter size is in bits
-        byte[] cgram = new byte[bytes];
-        kdf.generateBytes(cgram, 0, cgram.length);
-        return cgram;
+        try {
+            return backend.kdf(key, a, b, bytes);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("KDF failed.", e);
+        }
     }
 
 
     // GPC 2.2.1 Amendment D 7.2.2
     public static byte[] kcv_aes(byte[] key) {
         try {
-            Cipher c = Cipher.getInstance(AES_CBC_CIPHER);
-            c.init(Cipher.ENCRYPT_MODE, aeskey(key), iv_null_16);
-            byte[] cv = c.doFinal(one_bytes_16);
+            byte[] cv = backend.encrypt(GPCryptoBackend.Algorithm.AES, key, null_bytes_16, one_bytes_16, 0, 16);
             return Arrays.copyOfRange(cv, 0, 3);
         } catch (GeneralSecurityException e) {
             throw new GPException("Could not calculate KCV", e);
@@ -228,9 +244,7 @@ public final class GPCrypto {
 
     public static byte[] kcv_aes0(byte[] key) {
         try {
-            Cipher c = Cipher.getInstance(AES_CBC_CIPHER);
-            c.init(Cipher.ENCRYPT_MODE, aeskey(key), iv_null_16);
-            byte[] cv = c.doFinal(null_bytes_16);
+            byte[] cv = backend.encrypt(GPCryptoBackend.Algorithm.AES, key, null_bytes_16, null_bytes_16, 0, 16);
             return Arrays.copyOfRange(cv, 0, 3);
         } catch (GeneralSecurityException e) {
             throw new GPException("Could not calculate KCV", e);
@@ -239,9 +253,7 @@ public final class GPCrypto {
 
     public static byte[] kcv_3des(byte[] key) {
         try {
-            Cipher cipher = Cipher.getInstance(DES3_ECB_CIPHER);
-            cipher.init(Cipher.ENCRYPT_MODE, des3key(key));
-            byte[] check = cipher.doFinal(GPCrypto.null_bytes_8);
+            byte[] check = backend.encrypt(GPCryptoBackend.Algorithm.DES3, key, null, null_bytes_8, 0, 8);
             return Arrays.copyOf(check, 3);
         } catch (GeneralSecurityException e) {
             throw new GPException("Could not calculate KCV", e);
@@ -257,15 +269,11 @@ public final class GPCrypto {
     }
 
     public static byte[] dek_encrypt_des(byte[] key, byte[] data) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(DES3_ECB_CIPHER);
-        cipher.init(Cipher.ENCRYPT_MODE, des3key(key));
-        return cipher.doFinal(data);
+        return backend.encrypt(GPCryptoBackend.Algorithm.DES3, key, null, data, 0, data.length);
     }
 
     public static byte[] dek_encrypt_aes(byte[] key, byte[] data) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(AES_CBC_CIPHER);
-        cipher.init(Cipher.ENCRYPT_MODE, aeskey(key), iv_null_16);
-        return cipher.doFinal(data);
+        return backend.encrypt(GPCryptoBackend.Algorithm.AES, key, null_bytes_16, data, 0, data.length);
     }
 
 
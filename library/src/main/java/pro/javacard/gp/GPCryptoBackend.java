@@ -0,0 +1,157 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Block cipher, MAC and KDF primitives under GPCrypto and the secure channel wrappers.
+// Select with GPCrypto.setBackend(), or for the whole deployment with globalplatformpro.crypto system property
+// (or GLOBALPLATFORMPRO_CRYPTO environment variable): "jca", "jca:<provider name>", "bc" or "auto" (fastest of these)
+public interface GPCryptoBackend {
+
+    enum Algorithm {
+        DES(8), DES3(8), AES(16);
+
+        public final int blockSize;
+
+        Algorithm(int blockSize) {
+            this.blockSize = blockSize;
+        }
+    }
+
+    String getName();
+
+    // CBC with the given IV, ECB if IV is null. No padding, so length must be a multiple of block size.
+    // DES keys are the first 8 bytes and 3DES keys the first 16 bytes of the key, as two key 3DES
+    byte[] encrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException;
+
+    byte[] decrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException;
+
+    // Last block of CBC encryption
+    default byte[] cbcMac(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        byte[] cgram = encrypt(algorithm, key, iv, data, offset, length);
+        return Arrays.copyOfRange(cgram, cgram.length - algorithm.blockSize, cgram.length);
+    }
+
+    // AES-CMAC, NIST SP 800-38B
+    byte[] cmac(byte[] key, byte[] data, int offset, int length) throws GeneralSecurityException;
+
+    // NIST SP 800-108 KDF in counter mode with AES-CMAC and one byte counter: a || i || b
+    default byte[] kdf(byte[] key, byte[] a, byte[] b, int bytes) throws GeneralSecurityException {
+        byte[] input = new byte[a.length + 1 + b.length];
+        System.arraycopy(a, 0, input, 0, a.length);
+        System.arraycopy(b, 0, input, a.length + 1, b.length);
+        byte[] result = new byte[bytes];
+        for (int i = 1, done = 0; done < bytes; i++) {
+            if (i > 0xFF)
+                throw new IllegalArgumentException("KDF output too long: " + bytes);
+            input[a.length] = (byte) i;
+            byte[] block = cmac(key, input, 0, input.length);
+            int n = Math.min(block.length, bytes - done);
+            System.arraycopy(block, 0, result, done, n);
+            done += n;
+        }
+        return result;
+    }
+
+    // Java Cryptography Architecture, with providers resolved once per algorithm
+    static GPCryptoBackend jca() {
+        return new JCACryptoBackend(null);
+    }
+
+    // Java Cryptography Architecture, with all algorithms from the given provider
+    static GPCryptoBackend jca(Provider provider) {
+        return new JCACryptoBackend(provider);
+    }
+
+    // BouncyCastle lightweight API, without JCA
+    static GPCryptoBackend bouncycastle() {
+        return new BCCryptoBackend();
+    }
+
+    // Measures the given backends on a mix of secure channel operations and returns the fastest
+    static GPCryptoBackend fastest(List<GPCryptoBackend> backends) {
+        Logger logger = LoggerFactory.getLogger(GPCryptoBackend.class);
+        GPCryptoBackend fastest = null;
+        long best = Long.MAX_VALUE;
+        for (GPCryptoBackend backend : backends) {
+            try {
+                long took = Long.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long start = System.nanoTime();
+                    workload(backend);
+                    took = Math.min(took, System.nanoTime() - start);
+                }
+                logger.debug("Crypto backend {}: {}us", backend.getName(), took / 1000);
+                if (took < best) {
+                    best = took;
+                    fastest = backend;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                logger.debug("Crypto backend {} not usable: {}", backend.getName(), e.getMessage());
+            }
+        }
+        if (fastest == null)
+            throw new IllegalArgumentException("No usable crypto backend");
+        logger.debug("Using crypto backend {}", fastest.getName());
+        return fastest;
+    }
+
+    private static void workload(GPCryptoBackend backend) throws GeneralSecurityException {
+        byte[] key = new byte[16];
+        byte[] data = new byte[256];
+        for (int i = 0; i < 50; i++) {
+            backend.kdf(key, GPCrypto.null_bytes_16, data, 16);
+            backend.cmac(key, data, 0, data.length);
+            backend.encrypt(Algorithm.AES, key, GPCrypto.null_bytes_16, data, 0, data.length);
+            backend.cbcMac(Algorithm.DES3, key, GPCrypto.null_bytes_8, data, 0, data.length);
+        }
+    }
+
+    // As in globalplatformpro.crypto
+    static GPCryptoBackend forName(String name) {
+        String n = name.trim().toLowerCase(Locale.ROOT);
+        if (n.equals("jca"))
+            return jca();
+        if (n.startsWith("jca:")) {
+            String p = name.trim().substring(4);
+            Provider provider = Security.getProvider(p);
+            if (provider == null && p.equals("BC"))
+                provider = new BouncyCastleProvider();
+            if (provider == null)
+                throw new IllegalArgumentException("No such security provider: " + p);
+            return jca(provider);
+        }
+        if (n.equals("bc"))
+            return bouncycastle();
+        if (n.equals("auto"))
+            return fastest(List.of(jca(), bouncycastle()));
+        throw new IllegalArgumentException("Unknown crypto backend: " + name);
+    }
+}
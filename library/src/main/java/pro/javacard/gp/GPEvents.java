@@ -0,0 +1,111 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import jdk.jfr.*;
+
+// JDK Flight Recorder events. Enable with
+// java -XX:StartFlightRecording:filename=gp.jfr,settings=profile ...
+// When recording is not active, begin()/end()/shouldCommit() are no-ops for the JIT
+final class GPEvents {
+    private GPEvents() {
+    }
+
+    @Name("pro.javacard.gp.Transmit")
+    @Label("APDU Exchange")
+    @Description("Command sent via GPSession.transmit(), including secure channel processing")
+    @Category({"GlobalPlatform", "APDU"})
+    @StackTrace(false)
+    static final class Transmit extends Event {
+        @Label("CLA")
+        int cla;
+        @Label("INS")
+        int ins;
+        @Label("P1")
+        int p1;
+        @Label("P2")
+        int p2;
+        @Label("Lc")
+        int lc;
+        @Label("Le")
+        int le;
+        @Label("Status Word")
+        String sw;
+    }
+
+    @Name("pro.javacard.gp.SecureChannel")
+    @Label("Secure Channel Setup")
+    @Description("Phase of GPSession.openSecureChannel()")
+    @Category({"GlobalPlatform", "Secure Channel"})
+    @StackTrace(false)
+    static final class SecureChannel extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Protocol")
+        String scp;
+    }
+
+    @Name("pro.javacard.gp.Wrap")
+    @Label("Secure Channel Wrap")
+    @Category({"GlobalPlatform", "Secure Channel"})
+    @StackTrace(false)
+    static final class Wrap extends Event {
+        @Label("INS")
+        int ins;
+        @Label("Plaintext Length")
+        @DataAmount
+        int plaintext;
+        @Label("Wrapped Length")
+        @DataAmount
+        int wrapped;
+    }
+
+    @Name("pro.javacard.gp.Unwrap")
+    @Label("Secure Channel Unwrap")
+    @Category({"GlobalPlatform", "Secure Channel"})
+    @StackTrace(false)
+    static final class Unwrap extends Event {
+        @Label("INS")
+        int ins;
+        @Label("Wrapped Length")
+        @DataAmount
+        int wrapped;
+        @Label("Plaintext Length")
+        @DataAmount
+        int plaintext;
+    }
+
+    // Phases of openSecureChannel(), with a shared event type
+    static SecureChannel phase(String phase, GPSecureChannelVersion scp) {
+        SecureChannel event = new SecureChannel();
+        if (event.isEnabled()) {
+            event.phase = phase;
+            event.scp = scp == null ? null : scp.toString();
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commit(SecureChannel event) {
+        event.end();
+        if (event.shouldCommit())
+            event.commit();
+    }
+}
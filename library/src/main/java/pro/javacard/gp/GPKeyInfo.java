@@ -244,13 +244,15 @@ public final class GPKeyInfo {
 
         public GPKeyInfoElement(byte[] buf, int offset) {
             if (buf[offset] == (byte) 0xFF) {
-                logger.trace("Parsing E {}", HexUtils.bin2hex(Arrays.copyOfRange(buf, offset, offset + 4)));
+                if (logger.isTraceEnabled())
+                    logger.trace("Parsing E {}", GPUtils.hex(Arrays.copyOfRange(buf, offset, offset + 4)));
                 // extended length
                 key = GPKey.get(buf[++offset] & 0xFF).get();
                 keyLength = (buf[++offset] << 8) + (buf[++offset] & 0xFF);
                 templateLength = 4;
             } else {
-                logger.trace("Parsing B {}", HexUtils.bin2hex(Arrays.copyOfRange(buf, offset, offset + 2)));
+                if (logger.isTraceEnabled())
+                    logger.trace("Parsing B {}", GPUtils.hex(Arrays.copyOfRange(buf, offset, offset + 2)));
                 key = GPKey.get(buf[offset++] & 0xFF).get();
                 // Page 162 of GP 2.3.1 "the indicated length shall be set to '00' (meaning ‘greater than or equal to 256 bytes’)"
                 int l = buf[offset++] & 0xFF;
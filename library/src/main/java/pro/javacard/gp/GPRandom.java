@@ -0,0 +1,83 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Randomness for host challenges and key padding. SecureRandom methods are synchronized, so a single
+// instance shared by all card sessions of a process serializes them. Select with GPCrypto.setRandom() or
+// GPSession.setRandom(), or for the whole deployment with globalplatformpro.random system property
+// (or GLOBALPLATFORMPRO_RANDOM environment variable):
+//   "shared" - GPCrypto.random
+//   "thread[:algorithm[:reseed]]" - one generator per thread
+//   "pool[:size[:algorithm[:reseed]]]" - fixed number of generators, picked by thread ("pool:<2 x CPU-s>:SHA1PRNG:0")
+// Default is "shared", per thread and pooled generators are opt-in and seeded on first use.
+// Reseed is the number of bytes after which a generator is reseeded, 0 for never.
+public interface GPRandom {
+
+    void nextBytes(byte[] bytes);
+
+    static GPRandom shared() {
+        return GPCrypto.random::nextBytes;
+    }
+
+    static GPRandom perThread(String algorithm, long reseed) {
+        SecureRandomSource.check(algorithm);
+        ThreadLocal<SecureRandomSource> sources = ThreadLocal.withInitial(() -> new SecureRandomSource(algorithm, reseed));
+        return bytes -> sources.get().nextBytes(bytes);
+    }
+
+    // Suits thread per task executors (like virtual threads), where per thread generators would be seeded all the time
+    static GPRandom pooled(String algorithm, int size, long reseed) {
+        SecureRandomSource.check(algorithm);
+        if (size < 1)
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        AtomicReferenceArray<SecureRandomSource> pool = new AtomicReferenceArray<>(size);
+        return bytes -> {
+            int i = (int) (Thread.currentThread().getId() % size);
+            SecureRandomSource source = pool.get(i);
+            if (source == null) {
+                pool.compareAndSet(i, null, new SecureRandomSource(algorithm, reseed));
+                source = pool.get(i);
+            }
+            source.nextBytes(bytes);
+        };
+    }
+
+    // As in globalplatformpro.random
+    static GPRandom forName(String name) {
+        String[] parts = name.trim().split(":");
+        String kind = parts[0].toLowerCase(Locale.ROOT);
+        try {
+            if (kind.equals("shared") && parts.length == 1)
+                return shared();
+            if (kind.equals("thread") && parts.length <= 3)
+                return perThread(parts.length > 1 ? parts[1] : "SHA1PRNG", parts.length > 2 ? Long.parseLong(parts[2]) : 0);
+            if (kind.equals("pool") && parts.length <= 4) {
+                int size = parts.length > 1 ? Integer.parseInt(parts[1]) : 2 * Runtime.getRuntime().availableProcessors();
+                return pooled(parts.length > 2 ? parts[2] : "SHA1PRNG", size, parts.length > 3 ? Long.parseLong(parts[3]) : 0);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid random source: " + name, e);
+        }
+        throw new IllegalArgumentException("Unknown random source: " + name);
+    }
+}
@@ -40,8 +40,15 @@ import pro.javacard.gp.GPKeyInfo.GPKey;
 import pro.javacard.gp.GPRegistryEntry.Kind;
 import pro.javacard.gp.GPRegistryEntry.Privilege;
 
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
@@ -72,6 +79,7 @@ public class GPSession {
     public static final byte CLA_MAC = (byte) 0x84;
 
     public static final byte INS_SELECT = (byte) 0xA4;
+    public static final byte INS_MANAGE_CHANNEL = (byte) 0x70;
     public static final byte INS_INITIALIZE_UPDATE = (byte) 0x50;
     public static final byte INS_INSTALL = (byte) 0xE6;
     public static final byte INS_LOAD = (byte) 0xE8;
@@ -93,6 +101,9 @@ public class GPSession {
     public static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
     public static final int SW_AUTHENTICATION_METHOD_BLOCKED = 0x6983;
 
+    // "GPSC" and format version of exportSecureChannel()
+    private static final byte[] SESSION_EXPORT_HEADER = new byte[]{0x47, 0x50, 0x53, 0x43, 0x01};
+
     // (I)SD AID
     private AID sdAID;
     private GPSecureChannelVersion scpVersion;
@@ -103,10 +114,22 @@ public class GPSession {
     private byte[] sessionContext;
     private SecureChannelWrapper wrapper = null;
     private APDUBIBO channel;
+    private final int logicalChannel;
     private GPRegistry registry = null;
     private DMTokenizer tokenizer = DMTokenizer.none();
+    private GPRandom random = GPCrypto.getRandom();
+    private LoadListener loadListener = null;
     private boolean dirty = true; // True if registry is dirty.
 
+    private final List<TransmitInterceptor> interceptors = new ArrayList<>();
+
+    // Details of the last exchange via transmit(), for instrumentation
+    private long lastWrapNanos;
+    private long lastWireNanos;
+    private long lastUnwrapNanos;
+    private CommandAPDU lastWireCommand;
+    private ResponseAPDU lastWireResponse;
+
     /*
      * Maintaining locks to the underlying hardware is the duty of the caller
      */
@@ -115,12 +138,21 @@ public class GPSession {
     }
 
     public GPSession(APDUBIBO channel, AID sdAID, GPCardProfile profile) {
+        this(channel, sdAID, profile, 0);
+    }
+
+    // Session on a logical channel, opened with LogicalChannel.open()
+    public GPSession(APDUBIBO channel, AID sdAID, GPCardProfile profile, int logicalChannel) {
         if (channel == null) {
             throw new IllegalArgumentException("A card session is required");
         }
+        if (logicalChannel < 0 || logicalChannel > LogicalChannel.MAX) {
+            throw new IllegalArgumentException("Invalid logical channel: " + logicalChannel);
+        }
         this.channel = channel;
         this.sdAID = sdAID;
         this.profile = profile;
+        this.logicalChannel = logicalChannel;
     }
 
     // Try to find GlobalPlatform from a card
@@ -177,7 +209,7 @@ public class GPSession {
             // WORKAROUND: exists a card that returns a zero length AID in template
             if (isdaid != null && isdaid.getBytesValue().length > 0) {
                 AID detectedAID = new AID(isdaid.getBytesValue());
-                logger.debug("Auto-detected ISD: " + detectedAID);
+                logger.debug("Auto-detected ISD: {}", detectedAID);
                 return new GPSession(channel, detectedAID);
             }
         }
@@ -193,12 +225,23 @@ public class GPSession {
             throw new IllegalArgumentException("Security Domain AID is required");
         }
 
-        logger.debug("(I)SD AID: " + sdAID);
+        logger.debug("(I)SD AID: {}", sdAID);
         GPSession gp = new GPSession(channel, sdAID);
         gp.select(sdAID);
         return gp;
     }
 
+    // Selects a specific AID on a logical channel, leaving the other channels (and their secure channels) as is
+    public static GPSession connect(APDUBIBO channel, AID sdAID, int logicalChannel) throws IOException, GPException {
+        if (sdAID == null) {
+            throw new IllegalArgumentException("Security Domain AID is required");
+        }
+        logger.debug("(I)SD AID: {} on logical channel {}", sdAID, logicalChannel);
+        GPSession gp = new GPSession(channel, sdAID, GPCardProfile.defaultProfile(), logicalChannel);
+        gp.select(sdAID);
+        return gp;
+    }
+
     /*
      * Get the version and build information of the library.
      */
@@ -224,6 +267,23 @@ public class GPSession {
         return tokenizer;
     }
 
+    // Host challenges and key padding
+    public void setRandom(GPRandom random) {
+        this.random = Objects.requireNonNull(random);
+    }
+
+    public void setLoadListener(LoadListener listener) {
+        this.loadListener = listener;
+    }
+
+    public void addInterceptor(TransmitInterceptor interceptor) {
+        interceptors.add(Objects.requireNonNull(interceptor));
+    }
+
+    public void removeInterceptor(TransmitInterceptor interceptor) {
+        interceptors.remove(interceptor);
+    }
+
     public AID getAID() {
         return new AID(sdAID.getBytes());
     }
@@ -236,6 +296,10 @@ public class GPSession {
         return channel;
     }
 
+    public int getLogicalChannel() {
+        return logicalChannel;
+    }
+
     /**
      * Return the key version of the keyset used to open this session
      *
@@ -248,7 +312,7 @@ public class GPSession {
     void select(AID sdAID) throws GPException {
         // Try to select ISD (default selected)
         final CommandAPDU command = new CommandAPDU(CLA_ISO7816, INS_SELECT, 0x04, 0x00, sdAID.getBytes(), 256);
-        ResponseAPDU resp = channel.transmit(command);
+        ResponseAPDU resp = channel.transmit(LogicalChannel.on(command, logicalChannel));
 
         // If the ISD is locked, log it, but do not stop
         if (resp.getSW() == 0x6283) {
@@ -298,7 +362,7 @@ public class GPSession {
                                 BerTlv veroid = vertag.find(new BerTag(0x06));
                                 if (veroid != null) {
                                     // TODO: react to it maybe? Not that relevant in 2.2 era
-                                    logger.debug("Auto-detected GP version: " + GPData.oid2version(veroid.getBytesValue()));
+                                    logger.debug("Auto-detected GP version: {}", GPUtils.lazy(() -> GPData.oid2version(veroid.getBytesValue())));
                                 }
                             }
                         } else {
@@ -312,7 +376,7 @@ public class GPSession {
                 // Lifecycle
                 BerTlv lc = prop.find(new BerTag(0x9F, 0x6E));
                 if (lc != null) {
-                    logger.debug("Lifecycle data (ignored): " + HexUtils.bin2hex(lc.getBytesValue()));
+                    logger.debug("Lifecycle data (ignored): {}", GPUtils.hex(lc.getBytesValue()));
                 }
                 // Max block size
                 BerTlv maxbs = prop.find(new BerTag(0x9F, 0x65));
@@ -333,7 +397,7 @@ public class GPSession {
             logger.warn("Ignoring auto-detected block size that exceeds set maximum: " + bs);
         } else {
             this.blockSize = bs;
-            logger.debug("Auto-detected block size: " + blockSize);
+            logger.debug("Auto-detected block size: {}", blockSize);
         }
     }
 
@@ -343,7 +407,8 @@ public class GPSession {
             // FIXME: check for 0x9000
             tmpl = transmit(new CommandAPDU(CLA_GP, INS_GET_DATA, 0x00, 0xE0, 256)).getData();
         } else {
-            tmpl = GPData.fetchKeyInfoTemplate(channel);
+            // From the domain selected on the channel of this session
+            tmpl = GPData.fetchKeyInfoTemplate(logicalChannel == 0 ? channel : LogicalChannel.over(channel, logicalChannel));
         }
         return new ArrayList<>(GPKeyInfo.parseTemplate(tmpl));
     }
@@ -372,15 +437,17 @@ public class GPSession {
         // DWIM: Generate host challenge
         if (host_challenge == null) {
             host_challenge = new byte[8];
-            GPCrypto.random.nextBytes(host_challenge);
-            logger.trace("Generated host challenge: " + HexUtils.bin2hex(host_challenge));
+            random.nextBytes(host_challenge);
+            logger.trace("Generated host challenge: {}", GPUtils.hex(host_challenge));
         }
 
         // P1 key version (all)
         // P2 either key ID (SCP01) or 0 (SCP02)
         CommandAPDU initUpdate = new CommandAPDU(CLA_GP, INS_INITIALIZE_UPDATE, keys.getKeyInfo().getVersion(), (scp != null && scp.scp == GPSecureChannelVersion.SCP.SCP01) ? keys.getKeyInfo().getID() : 0, host_challenge, 256);
 
-        ResponseAPDU response = channel.transmit(initUpdate);
+        GPEvents.SecureChannel phase = GPEvents.phase("INITIALIZE UPDATE", scp);
+        ResponseAPDU response = channel.transmit(LogicalChannel.on(initUpdate, logicalChannel));
+        GPEvents.commit(phase);
         int sw = response.getSW();
 
         // Detect and report locked cards in a more sensible way.
@@ -438,11 +505,11 @@ public class GPSession {
             //throw new GPDataException("Unhandled data in INITIALIZE UPDATE response", Arrays.copyOfRange(update_response, offset, update_response.length));
         }
 
-        logger.debug("KDD: {}", HexUtils.bin2hex(diversification_data));
+        logger.debug("KDD: {}", GPUtils.hex(diversification_data));
         if (seq != null)
-            logger.debug("SSC: {}", HexUtils.bin2hex(seq));
-        logger.debug("Host challenge: " + HexUtils.bin2hex(host_challenge));
-        logger.debug("Card challenge: " + HexUtils.bin2hex(card_challenge));
+            logger.debug("SSC: {}", GPUtils.hex(seq));
+        logger.debug("Host challenge: {}", GPUtils.hex(host_challenge));
+        logger.debug("Card challenge: {}", GPUtils.hex(card_challenge));
         logger.debug("Card reports {} with key version {}", this.scpVersion, GPUtils.intString(scpKeyVersion));
 
         // Verify response
@@ -458,6 +525,7 @@ public class GPSession {
         }
 
         // Give the card key a chance to be automatically diversifed based on KDD from INITIALIZE UPDATE
+        phase = GPEvents.phase("Key derivation", this.scpVersion);
         cardKeys = keys.diversify(this.scpVersion.scp, diversification_data);
 
         logger.info("Diversified card keys: {}", cardKeys);
@@ -469,18 +537,27 @@ public class GPSession {
             sessionContext = GPUtils.concatenate(host_challenge, card_challenge);
         }
 
-        byte[] encKey = cardKeys.getSessionKey(KeyPurpose.ENC, sessionContext);
-        byte[] macKey = cardKeys.getSessionKey(KeyPurpose.MAC, sessionContext);
-        byte[] rmacKey = cardKeys.getSessionKey(KeyPurpose.RMAC, sessionContext);
-        logger.info("Session keys: ENC={} MAC={} RMAC={}", HexUtils.bin2hex(encKey), HexUtils.bin2hex(macKey), rmacKey == null ? "N/A" : HexUtils.bin2hex(rmacKey));
+        SCP03KeySchedule.SessionKeys scheduled = null;
+        if (this.scpVersion.scp == SCP03) {
+            // A schedule made for a different backend would bypass the configured one
+            Optional<SCP03KeySchedule> schedule = cardKeys.getKeySchedule().filter(s -> s.getBackend() == GPCrypto.getBackend());
+            if (schedule.isPresent())
+                scheduled = schedule.get().derive(sessionContext);
+        }
+        byte[] encKey = scheduled != null ? scheduled.getEnc() : cardKeys.getSessionKey(KeyPurpose.ENC, sessionContext);
+        byte[] macKey = scheduled != null ? scheduled.getMac() : cardKeys.getSessionKey(KeyPurpose.MAC, sessionContext);
+        byte[] rmacKey = scheduled != null ? scheduled.getRmac() : cardKeys.getSessionKey(KeyPurpose.RMAC, sessionContext);
+        GPEvents.commit(phase);
+        logger.info("Session keys: ENC={} MAC={} RMAC={}", GPUtils.hex(encKey), GPUtils.hex(macKey), rmacKey == null ? "N/A" : GPUtils.hex(rmacKey));
 
         // Verify card cryptogram
+        phase = GPEvents.phase("Card cryptogram", this.scpVersion);
         byte[] my_card_cryptogram;
         byte[] cntx = GPUtils.concatenate(host_challenge, card_challenge);
         if (this.scpVersion.scp == SCP01 || this.scpVersion.scp == SCP02) {
             my_card_cryptogram = GPCrypto.mac_3des_nulliv(encKey, cntx);
         } else {
-            my_card_cryptogram = GPCrypto.scp03_kdf(macKey, (byte) 0x00, cntx, 64);
+            my_card_cryptogram = scheduled != null ? scheduled.getCardCryptogram() : GPCrypto.scp03_kdf(macKey, (byte) 0x00, cntx, 64);
         }
 
         // This is the main check for possible successful authentication.
@@ -490,10 +567,12 @@ public class GPSession {
                     "\nExpected: " + HexUtils.bin2hex(my_card_cryptogram) +
                     "\n!!! DO NOT RE-TRY THE SAME COMMAND/KEYS OR YOU MAY BRICK YOUR CARD !!!");
         } else {
-            logger.debug("Verified card cryptogram: " + HexUtils.bin2hex(my_card_cryptogram));
+            logger.debug("Verified card cryptogram: {}", GPUtils.hex(my_card_cryptogram));
         }
+        GPEvents.commit(phase);
 
         // Calculate host cryptogram and initialize SCP wrapper
+        phase = GPEvents.phase("Host cryptogram", this.scpVersion);
         final byte[] host_cryptogram;
         switch (scpVersion.scp) {
             case SCP01:
@@ -505,29 +584,170 @@ public class GPSession {
                 wrapper = new SCP02Wrapper(encKey, macKey, rmacKey, blockSize);
                 break;
             case SCP03:
-                host_cryptogram = GPCrypto.scp03_kdf(macKey, (byte) 0x01, cntx, 64);
+                host_cryptogram = scheduled != null ? scheduled.getHostCryptogram() : GPCrypto.scp03_kdf(macKey, (byte) 0x01, cntx, 64);
                 wrapper = new SCP03Wrapper(encKey, macKey, rmacKey, blockSize);
                 break;
             default:
                 throw new IllegalStateException("Unknown SCP");
         }
+        wrapper.logicalChannel = logicalChannel;
+
+        GPEvents.commit(phase);
 
-        logger.debug("Calculated host cryptogram: " + HexUtils.bin2hex(host_cryptogram));
+        logger.debug("Calculated host cryptogram: {}", GPUtils.hex(host_cryptogram));
         int P1 = APDUMode.getSetValue(securityLevel);
         CommandAPDU externalAuthenticate = new CommandAPDU(CLA_MAC, INS_EXTERNAL_AUTHENTICATE_82, P1, 0, host_cryptogram);
+        phase = GPEvents.phase("EXTERNAL AUTHENTICATE", this.scpVersion);
         response = transmit(externalAuthenticate);
+        GPEvents.commit(phase);
         GPException.check(response, "EXTERNAL AUTHENTICATE failed");
 
         // After opening the session with MAC mode, set it to target level
         wrapper.setSecurityLevel(securityLevel);
     }
 
+    // Hands the open secure channel over to another GPSession (another thread or process) on the same card connection,
+    // without a new handshake. The blob holds session keys, ICV-s or chaining value and counter, and the security
+    // level, encrypted and authenticated with AES-GCM under the given key. The chaining state moves with the blob, so
+    // this session can not send commands after the export.
+    public byte[] exportSecureChannel(byte[] key) throws GPException {
+        if (wrapper == null)
+            throw new IllegalStateException("No secure channel to export");
+        try {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bo);
+            out.writeByte(scpVersion.scp.getValue());
+            out.writeByte(scpVersion.i);
+            out.writeByte(scpKeyVersion);
+            out.writeShort(blockSize);
+            out.writeByte(logicalChannel);
+            SecureChannelWrapper.writeBytes(out, sdAID.getBytes());
+            SecureChannelWrapper.writeBytes(out, sessionContext);
+            SecureChannelWrapper.writeBytes(out, wrapper.encKey);
+            SecureChannelWrapper.writeBytes(out, wrapper.macKey);
+            SecureChannelWrapper.writeBytes(out, wrapper.rmacKey);
+            wrapper.writeState(out);
+            out.flush();
+
+            byte[] nonce = new byte[12];
+            random.nextBytes(nonce);
+            Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+            gcm.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+            gcm.updateAAD(SESSION_EXPORT_HEADER);
+            byte[] blob = GPUtils.concatenate(SESSION_EXPORT_HEADER, nonce, gcm.doFinal(bo.toByteArray()));
+            wrapper = null;
+            return blob;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new GPException("Could not export secure channel: " + e.getMessage(), e);
+        }
+    }
+
+    // Card keys are only needed for PUT KEY and may be null. Profile is not part of the blob, pass the one of the exporting session
+    public static GPSession importSecureChannel(APDUBIBO channel, byte[] blob, byte[] key, GPCardKeys cardKeys, GPCardProfile profile) throws GPException {
+        if (profile == null)
+            throw new IllegalArgumentException("Card profile is required");
+        int header = SESSION_EXPORT_HEADER.length;
+        if (blob.length < header + 12 + 16 || !Arrays.equals(Arrays.copyOf(blob, header), SESSION_EXPORT_HEADER))
+            throw new GPDataException("Not an exported secure channel", blob);
+        try {
+            Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+            gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, blob, header, 12));
+            gcm.updateAAD(SESSION_EXPORT_HEADER);
+            byte[] plain = gcm.doFinal(blob, header + 12, blob.length - header - 12);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+            GPSecureChannelVersion scp = GPSecureChannelVersion.valueOf(in.readUnsignedByte(), in.readUnsignedByte());
+            int keyVersion = in.readUnsignedByte();
+            int blockSize = in.readUnsignedShort();
+            int logicalChannel = in.readUnsignedByte();
+            GPSession gp = new GPSession(channel, new AID(SecureChannelWrapper.readBytes(in)), profile, logicalChannel);
+            gp.scpVersion = scp;
+            gp.scpKeyVersion = keyVersion;
+            gp.blockSize = blockSize;
+            gp.sessionContext = SecureChannelWrapper.readBytes(in);
+            gp.cardKeys = cardKeys;
+            byte[] enc = SecureChannelWrapper.readBytes(in);
+            byte[] mac = SecureChannelWrapper.readBytes(in);
+            byte[] rmac = SecureChannelWrapper.readBytes(in);
+            switch (scp.scp) {
+                case SCP01:
+                    gp.wrapper = new SCP01Wrapper(enc, mac, blockSize);
+                    break;
+                case SCP02:
+                    gp.wrapper = new SCP02Wrapper(enc, mac, rmac, blockSize);
+                    break;
+                case SCP03:
+                    gp.wrapper = new SCP03Wrapper(enc, mac, rmac, blockSize);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown SCP");
+            }
+            gp.wrapper.readState(in);
+            return gp;
+        } catch (AEADBadTagException e) {
+            throw new GPException("Exported secure channel is corrupted or key is wrong", e);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            throw new GPException("Could not import secure channel: " + e.getMessage(), e);
+        }
+    }
+
     // Pipe through secure channel
     public ResponseAPDU transmit(CommandAPDU command) throws IOException {
+        GPEvents.Transmit event = new GPEvents.Transmit();
+        event.begin();
+        final ResponseAPDU response;
+        if (interceptors.isEmpty())
+            response = exchange(command);
+        else
+            response = new TransmitChain(0).proceed(command);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cla = command.getCLA();
+            event.ins = command.getINS();
+            event.p1 = command.getP1();
+            event.p2 = command.getP2();
+            event.lc = command.getNc();
+            event.le = command.getNe();
+            event.sw = String.format("%04X", response.getSW());
+            event.commit();
+        }
+        return response;
+    }
+
+    private ResponseAPDU exchange(CommandAPDU command) throws IOException {
+        if (wrapper == null)
+            throw new IllegalStateException("No secure channel");
         try {
             // TODO: BIBO pretty printer
             //logger.trace("PT> {}", HexUtils.bin2hex(command.getBytes()));
-            ResponseAPDU unwrapped = wrapper.unwrap(channel.transmit(wrapper.wrap(command)));
+            GPEvents.Wrap wrapEvent = new GPEvents.Wrap();
+            wrapEvent.begin();
+            long start = System.nanoTime();
+            CommandAPDU wrapped = wrapper.wrapForChannel(command);
+            long sent = System.nanoTime();
+            wrapEvent.end();
+            ResponseAPDU response = channel.transmit(wrapped);
+            long received = System.nanoTime();
+            GPEvents.Unwrap unwrapEvent = new GPEvents.Unwrap();
+            unwrapEvent.begin();
+            ResponseAPDU unwrapped = wrapper.unwrap(response);
+            unwrapEvent.end();
+            lastUnwrapNanos = System.nanoTime() - received;
+            if (wrapEvent.shouldCommit()) {
+                wrapEvent.ins = command.getINS();
+                wrapEvent.plaintext = command.getBytes().length;
+                wrapEvent.wrapped = wrapped.getBytes().length;
+                wrapEvent.commit();
+            }
+            if (unwrapEvent.shouldCommit()) {
+                unwrapEvent.ins = command.getINS();
+                unwrapEvent.wrapped = response.getBytes().length;
+                unwrapEvent.plaintext = unwrapped.getBytes().length;
+                unwrapEvent.commit();
+            }
+            lastWireNanos = received - sent;
+            lastWrapNanos = sent - start;
+            lastWireCommand = wrapped;
+            lastWireResponse = response;
             //logger.trace("PT < {}", HexUtils.bin2hex(unwrapped.getBytes()));
             return unwrapped;
         } catch (GPException e) {
@@ -535,24 +755,69 @@ public class GPSession {
         }
     }
 
+    // Every interceptor gets its own chain element, so that proceed() can be called more than once
+    private final class TransmitChain implements TransmitInterceptor.Chain {
+        private final int index;
+
+        TransmitChain(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public ResponseAPDU proceed(CommandAPDU command) throws IOException {
+            if (index < interceptors.size())
+                return interceptors.get(index).intercept(command, new TransmitChain(index + 1));
+            return exchange(command);
+        }
+
+        @Override
+        public long getWrapNanos() {
+            return lastWrapNanos;
+        }
+
+        @Override
+        public long getWireNanos() {
+            return lastWireNanos;
+        }
+
+        @Override
+        public long getUnwrapNanos() {
+            return lastUnwrapNanos;
+        }
+
+        @Override
+        public CommandAPDU getWireCommand() {
+            return lastWireCommand;
+        }
+
+        @Override
+        public ResponseAPDU getWireResponse() {
+            return lastWireResponse;
+        }
+    }
+
     // given a LV APDU content, pretty-print into log
     private ResponseAPDU transmitLV(CommandAPDU command) throws IOException {
-        logger.trace("LV payload: ");
-        try {
-            GPUtils.trace_lv(command.getData(), logger);
-        } catch (Exception e) {
-            logger.error("Invalid LV: {}", HexUtils.bin2hex(command.getData()));
+        if (logger.isTraceEnabled()) {
+            logger.trace("LV payload: ");
+            try {
+                GPUtils.trace_lv(command.getData(), logger);
+            } catch (Exception e) {
+                logger.error("Invalid LV: {}", HexUtils.bin2hex(command.getData()));
+            }
         }
         return transmit(command);
     }
 
     // Given a TLV APDU content, pretty-print into log
     private ResponseAPDU transmitTLV(CommandAPDU command) throws IOException {
-        logger.trace("TLV payload: ");
-        try {
-            GPUtils.trace_tlv(command.getData(), logger);
-        } catch (Exception e) {
-            logger.error("Invalid TLV: {}", HexUtils.bin2hex(command.getData()));
+        if (logger.isTraceEnabled()) {
+            logger.trace("TLV payload: ");
+            try {
+                GPUtils.trace_tlv(command.getData(), logger);
+            } catch (Exception e) {
+                logger.error("Invalid TLV: {}", HexUtils.bin2hex(command.getData()));
+            }
         }
         return transmit(command);
     }
@@ -566,31 +831,9 @@ public class GPSession {
 
     public void loadCapFile(CAPFile cap, AID targetDomain, AID dapDomain, byte[] dap, GPData.LFDBH hashFunction)
             throws GPException, IOException {
-        byte[] hash = hashFunction == null ? new byte[0] : cap.getLoadFileDataHash(hashFunction.algo);
         byte[] code = cap.getCode();
-        byte[] loadParams = new byte[0]; // FIXME
-
-
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
-
-        try {
-            bo.write(cap.getPackageAID().getLength());
-            bo.write(cap.getPackageAID().getBytes());
-
-            bo.write(targetDomain.getLength());
-            bo.write(targetDomain.getBytes());
-
-            bo.write(hash.length);
-            bo.write(hash);
 
-            // XXX: would be nice to check in CLI when payload length exceeds encodable length
-            bo.write(GPUtils.encodeLength(loadParams.length));
-            bo.write(loadParams);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-        }
-
-        CommandAPDU command = new CommandAPDU(CLA_GP, INS_INSTALL, P1_INSTALL_FOR_LOAD, 0x00, bo.toByteArray(), 256);
+        CommandAPDU command = installForLoadCommand(cap, targetDomain, hashFunction);
         command = tokenizer.tokenize(command);
         ResponseAPDU response = transmitLV(command);
         GPException.check(response, "INSTALL [for load] failed");
@@ -620,29 +863,65 @@ public class GPSession {
         // Split according to available block size
         List<byte[]> blocks = GPUtils.splitArray(loadBlock.toByteArray(), wrapper.getBlockSize());
 
+        long started = System.nanoTime();
+        long sent = 0;
         for (int i = 0; i < blocks.size(); i++) {
             byte p1 = (i == (blocks.size() - 1)) ? P1_LAST_BLOCK : P1_MORE_BLOCKS;
             CommandAPDU load = new CommandAPDU(CLA_GP, INS_LOAD, p1, (byte) i, blocks.get(i));
             response = transmit(load);
             GPException.check(response, "LOAD failed");
+            sent += blocks.get(i).length;
+            if (loadListener != null) {
+                loadListener.blockLoaded(new LoadListener.Progress(i, blocks.size(), blocks.get(i).length, lastWrapNanos, lastWireNanos, sent, System.nanoTime() - started));
+            }
         }
         // Mark the registry as dirty
         dirty = true;
     }
 
-    public void installAndMakeSelectable(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) throws GPException, IOException {
+    // Commands that can carry a DM token are built separately, so that DMPlan can know them before they are sent
+    static CommandAPDU installForLoadCommand(CAPFile cap, AID targetDomain, GPData.LFDBH hashFunction) {
+        byte[] hash = hashFunction == null ? new byte[0] : cap.getLoadFileDataHash(hashFunction.algo);
+        byte[] loadParams = new byte[0]; // FIXME
+
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+
+        try {
+            bo.write(cap.getPackageAID().getLength());
+            bo.write(cap.getPackageAID().getBytes());
+
+            bo.write(targetDomain.getLength());
+            bo.write(targetDomain.getBytes());
+
+            bo.write(hash.length);
+            bo.write(hash);
+
+            // XXX: would be nice to check in CLI when payload length exceeds encodable length
+            bo.write(GPUtils.encodeLength(loadParams.length));
+            bo.write(loadParams);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        return new CommandAPDU(CLA_GP, INS_INSTALL, P1_INSTALL_FOR_LOAD, 0x00, bo.toByteArray(), 256);
+    }
+
+    static CommandAPDU installAndMakeSelectableCommand(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) {
         if (instanceAID == null) {
             instanceAID = appletAID;
         }
         byte[] data = buildInstallData(packageAID, appletAID, instanceAID, privileges, installParams);
-        CommandAPDU command = new CommandAPDU(CLA_GP, INS_INSTALL, P1_INSTALL_AND_MAKE_SELECTABLE, 0x00, data);
+        return new CommandAPDU(CLA_GP, INS_INSTALL, P1_INSTALL_AND_MAKE_SELECTABLE, 0x00, data);
+    }
+
+    public void installAndMakeSelectable(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) throws GPException, IOException {
+        CommandAPDU command = installAndMakeSelectableCommand(packageAID, appletAID, instanceAID, privileges, installParams);
         command = tokenizer.tokenize(command);
         ResponseAPDU response = transmitLV(command);
         GPException.check(response, "INSTALL [for install and make selectable] failed");
         dirty = true;
     }
 
-    private byte[] buildInstallData(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) {
+    private static byte[] buildInstallData(AID packageAID, AID appletAID, AID instanceAID, Set<Privilege> privileges, byte[] installParams) {
         if (instanceAID == null) {
             instanceAID = appletAID;
         }
@@ -682,7 +961,7 @@ public class GPSession {
         return bo.toByteArray();
     }
 
-    public void extradite(AID what, AID to) throws GPException, IOException {
+    static CommandAPDU extraditeCommand(AID what, AID to) {
         // GP 2.2.1 Table 11-45
         ByteArrayOutputStream bo = new ByteArrayOutputStream();
         try {
@@ -699,8 +978,11 @@ public class GPSession {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        return new CommandAPDU(CLA_GP, INS_INSTALL, 0x10, 0x00, bo.toByteArray());
+    }
 
-        CommandAPDU command = new CommandAPDU(CLA_GP, INS_INSTALL, 0x10, 0x00, bo.toByteArray());
+    public void extradite(AID what, AID to) throws GPException, IOException {
+        CommandAPDU command = extraditeCommand(what, to);
         command = tokenizer.tokenize(command);
         ResponseAPDU response = transmitLV(command);
         GPException.check(response, "INSTALL [for extradition] failed");
@@ -776,7 +1058,7 @@ public class GPSession {
         return GPException.check(transmit(store), "STORE DATA failed").getData();
     }
 
-    public void makeDefaultSelected(AID aid) throws IOException, GPException {
+    static CommandAPDU makeDefaultSelectedCommand(AID aid) {
         // FIXME: only works for some 2.1.1 cards ? Clarify and document
         ByteArrayOutputStream bo = new ByteArrayOutputStream();
         // Only supported privilege.
@@ -793,8 +1075,11 @@ public class GPSession {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        return new CommandAPDU(CLA_GP, INS_INSTALL, 0x08, 0x00, bo.toByteArray());
+    }
 
-        CommandAPDU command = new CommandAPDU(CLA_GP, INS_INSTALL, 0x08, 0x00, bo.toByteArray());
+    public void makeDefaultSelected(AID aid) throws IOException, GPException {
+        CommandAPDU command = makeDefaultSelectedCommand(aid);
         command = tokenizer.tokenize(command);
         ResponseAPDU response = transmitLV(command);
         GPException.check(response, "INSTALL [for make selectable] failed");
@@ -820,7 +1105,7 @@ public class GPSession {
      * Delete file {@code aid} on the card. Delete dependencies as well if
      * {@code deleteDeps} is true.
      */
-    public void deleteAID(AID aid, boolean deleteDeps) throws GPException, IOException {
+    static CommandAPDU deleteCommand(AID aid, boolean deleteDeps) {
         ByteArrayOutputStream bo = new ByteArrayOutputStream();
         try {
             bo.write(0x4f);
@@ -829,7 +1114,11 @@ public class GPSession {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        CommandAPDU command = new CommandAPDU(CLA_GP, INS_DELETE, 0x00, deleteDeps ? 0x80 : 0x00, bo.toByteArray());
+        return new CommandAPDU(CLA_GP, INS_DELETE, 0x00, deleteDeps ? 0x80 : 0x00, bo.toByteArray());
+    }
+
+    public void deleteAID(AID aid, boolean deleteDeps) throws GPException, IOException {
+        CommandAPDU command = deleteCommand(aid, deleteDeps);
         command = tokenizer.tokenize(command);
         ResponseAPDU response = transmitTLV(command);
         GPException.check(response, "DELETE failed");
@@ -875,7 +1164,7 @@ public class GPSession {
                 // Pad with random
                 int n = other.length % 16 + 1;
                 byte[] plaintext = new byte[n * other.length];
-                GPCrypto.random.nextBytes(plaintext);
+                random.nextBytes(plaintext);
                 System.arraycopy(other, 0, plaintext, 0, other.length);
 
                 byte[] cgram = dek.encrypt(plaintext, sessionContext);
@@ -901,12 +1190,11 @@ public class GPSession {
         }
     }
 
-    private byte[] encodeKey(GPCardKeys dek, GPCardKeys other, KeyPurpose p) {
+    private byte[] encodeKey(GPCardKeys dek, GPCardKeys other, KeyPurpose p, byte[] kcv) {
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             if (other.getKeyInfo().getType() == GPKey.AES) {
                 byte[] cgram = dek.encryptKey(other, p, sessionContext);
-                byte[] kcv = other.kcv(p);
 
                 baos.write(GPKey.AES.getType());
                 baos.write(cgram.length + 1); // +1 for actual length
@@ -916,7 +1204,6 @@ public class GPSession {
                 baos.write(kcv);
             } else if (other.getKeyInfo().getType() == GPKey.DES3) {
                 byte[] cgram = dek.encryptKey(other, p, sessionContext);
-                byte[] kcv = other.kcv(p);
 
                 baos.write(GPKey.DES3.getType());
                 baos.write(cgram.length); // Length
@@ -948,9 +1235,10 @@ public class GPSession {
 
         // New key version
         bo.write(keys.getKeyInfo().getVersion());
-        // Key data
+        // Key data, with KCV-s of all keys at once
+        Map<KeyPurpose, byte[]> kcvs = keys.kcvs();
         for (KeyPurpose p : KeyPurpose.cardKeys()) {
-            bo.write(encodeKey(cardKeys, keys, p));
+            bo.write(encodeKey(cardKeys, keys, p, kcvs.get(p)));
         }
 
         CommandAPDU command = new CommandAPDU(CLA_GP, INS_PUT_KEY, P1, P2, bo.toByteArray());
@@ -1074,7 +1362,7 @@ public class GPSession {
             }
             // Filter out common noise when modules are not reported by card.
             if (sw == 0x6A86 && p1 == 0x10) {
-                logger.debug("GET STATUS failed for " + HexUtils.bin2hex(cmd.getBytes()) + " with " + GPData.sw2str(response.getSW()));
+                logger.debug("GET STATUS failed for {} with {}", GPUtils.hex(cmd.getBytes()), GPUtils.lazy(() -> GPData.sw2str(sw)));
             } else {
                 // 0x6A86 - no tags support or ISD asked from SSD
                 // 0a6A81 - Same as 6A88 ?
@@ -35,6 +35,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class GPUtils {
     private GPUtils() {}
@@ -158,6 +159,8 @@ public class GPUtils {
     }
 
     static void trace_lv(byte[] data, Logger logger) {
+        if (!logger.isTraceEnabled())
+            return;
         try {
             for (String s : visualize_lv(data))
                 logger.trace(s);
@@ -218,6 +221,8 @@ public class GPUtils {
     }
 
     static void trace_tlv(byte[] data, Logger l) {
+        if (!l.isTraceEnabled())
+            return;
         try {
             for (String s : visualize_tlv(data))
                 l.trace(s);
@@ -225,4 +230,27 @@ public class GPUtils {
             l.error("Invalid TLV data: {}", Hex.toHexString(data), e);
         }
     }
+
+    // Logger arguments that are rendered only if the message is actually logged.
+    // Hot paths should still use a level guard, as the wrapper itself is an allocation.
+    static Object hex(byte[] data) {
+        return new Lazy(() -> data == null ? "(null)" : HexUtils.bin2hex(data));
+    }
+
+    static Object lazy(Supplier<?> supplier) {
+        return new Lazy(supplier);
+    }
+
+    private static final class Lazy {
+        private final Supplier<?> supplier;
+
+        Lazy(Supplier<?> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(supplier.get());
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cipher.getInstance(transformation) walks the provider list on every call. Here the provider is fixed
+// (or looked up on first use of a transformation), and passed to getInstance() directly.
+// JCA has no AES-CMAC by default, so unless the provider has "AESCMAC", CMAC is done with AES/CBC (see AESCMAC)
+final class JCACryptoBackend implements GPCryptoBackend {
+    private static final String CMAC = "AESCMAC";
+
+    private final Provider provider;
+    private final Map<String, Provider> providers = new ConcurrentHashMap<>();
+    // Ciphers are re-initialized on every use, but instances are reused: no lookups, and SunJCE
+    // does not expand the AES key again if it has not changed
+    private final ThreadLocal<Map<String, Cipher>> ciphers = ThreadLocal.withInitial(HashMap::new);
+    private final boolean cmac;
+
+    JCACryptoBackend(Provider provider) {
+        this.provider = provider;
+        this.cmac = provider != null && provider.getService("Mac", CMAC) != null;
+    }
+
+    @Override
+    public String getName() {
+        return provider == null ? "jca" : "jca:" + provider.getName();
+    }
+
+    private Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> cache = ciphers.get();
+        Cipher c = cache.get(transformation);
+        if (c == null) {
+            c = newCipher(transformation);
+            cache.put(transformation, c);
+        }
+        return c;
+    }
+
+    // A fresh instance from the same provider, for callers that keep the cipher (see SCP03KeySchedule)
+    Cipher newCipher(String transformation) throws GeneralSecurityException {
+        if (provider != null)
+            return Cipher.getInstance(transformation, provider);
+        Provider p = providers.get(transformation);
+        Cipher c = p == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, p);
+        providers.putIfAbsent(transformation, c.getProvider());
+        return c;
+    }
+
+    private byte[] crypt(int mode, Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        final String name;
+        final SecretKeySpec spec;
+        switch (algorithm) {
+            case DES:
+                name = "DES";
+                spec = new SecretKeySpec(GPCrypto.resizeDES(key, 8), name);
+                break;
+            case DES3:
+                name = "DESede";
+                spec = new SecretKeySpec(GPCrypto.resizeDES(key, 24), name);
+                break;
+            default:
+                name = "AES";
+                spec = new SecretKeySpec(key, name);
+        }
+        Cipher c = cipher(name + (iv == null ? "/ECB/NoPadding" : "/CBC/NoPadding"));
+        if (iv == null)
+            c.init(mode, spec);
+        else
+            c.init(mode, spec, new IvParameterSpec(iv));
+        return c.doFinal(data, offset, length);
+    }
+
+    @Override
+    public byte[] encrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        return crypt(Cipher.ENCRYPT_MODE, algorithm, key, iv, data, offset, length);
+    }
+
+    @Override
+    public byte[] decrypt(Algorithm algorithm, byte[] key, byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        return crypt(Cipher.DECRYPT_MODE, algorithm, key, iv, data, offset, length);
+    }
+
+    @Override
+    public byte[] cmac(byte[] key, byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (!cmac) {
+            Cipher c = cipher("AES/CBC/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(GPCrypto.null_bytes_16));
+            return AESCMAC.mac(c, data, offset, length);
+        }
+        Mac mac = Mac.getInstance(CMAC, provider);
+        mac.init(new SecretKeySpec(key, "AES"));
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+// Receives a callback after every LOAD block has been acknowledged by the card.
+// Allows to tell apart time spent in host crypto (wrap) from time spent in reader and card (round-trip)
+public interface LoadListener {
+
+    void blockLoaded(Progress progress);
+
+    final class Progress {
+        private final int index;
+        private final int total;
+        private final int bytes;
+        private final long wrapNanos;
+        private final long roundTripNanos;
+        private final long totalBytes;
+        private final long elapsedNanos;
+
+        Progress(int index, int total, int bytes, long wrapNanos, long roundTripNanos, long totalBytes, long elapsedNanos) {
+            this.index = index;
+            this.total = total;
+            this.bytes = bytes;
+            this.wrapNanos = wrapNanos;
+            this.roundTripNanos = roundTripNanos;
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // Zero based index of the block
+        public int getIndex() {
+            return index;
+        }
+
+        // Total number of LOAD blocks
+        public int getTotal() {
+            return total;
+        }
+
+        // Payload bytes in this block (before wrapping)
+        public int getBytes() {
+            return bytes;
+        }
+
+        // Time spent wrapping this block
+        public long getWrapNanos() {
+            return wrapNanos;
+        }
+
+        // Time spent in the reader and card for this block
+        public long getRoundTripNanos() {
+            return roundTripNanos;
+        }
+
+        // Payload bytes sent so far, including this block
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        // Time since the first LOAD block was started
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public boolean isLast() {
+            return index == total - 1;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : totalBytes * 1e9 / elapsedNanos;
+        }
+
+        public double getAPDUsPerSecond() {
+            return elapsedNanos == 0 ? 0 : (index + 1) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LOAD %d/%d: %d bytes, wrap %dus, round-trip %dus, %.0f bytes/s", index + 1, total, bytes, wrapNanos / 1000, roundTripNanos / 1000, getBytesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.ResponseAPDU;
+
+import static pro.javacard.gp.GPSession.CLA_ISO7816;
+import static pro.javacard.gp.GPSession.INS_MANAGE_CHANNEL;
+
+// Logical channels (ISO 7816-4 5.1.1 and 11.1), so that applications and security domains can be used side by
+// side without re-selecting, and thus without tearing down a secure channel on another channel:
+//
+//   GPSession isd = GPSession.discover(channel);
+//   isd.openSecureChannel(...);
+//   int n = LogicalChannel.open(channel);
+//   APDUBIBO applet = LogicalChannel.over(channel, n); // plain APDU-s to an applet, ISD session stays open
+//   ...
+//   LogicalChannel.close(channel, n);
+//
+// Commands are built for the basic channel and moved to a logical channel with on(). A GPSession on a logical
+// channel (see GPSession.connect(channel, aid, number)) does the same after wrapping, so the C-MAC is always
+// calculated over a CLA without the channel number.
+public final class LogicalChannel {
+    public static final int MAX = 19;
+
+    private LogicalChannel() {
+    }
+
+    // MANAGE CHANNEL open, returns the number assigned by the card
+    public static int open(APDUBIBO channel) throws GPException {
+        ResponseAPDU response = channel.transmit(new CommandAPDU(CLA_ISO7816, INS_MANAGE_CHANNEL, 0x00, 0x00, 1));
+        GPException.check(response, "MANAGE CHANNEL failed");
+        if (response.getData().length != 1)
+            throw new GPDataException("Invalid MANAGE CHANNEL response", response.getData());
+        return response.getData()[0] & 0xFF;
+    }
+
+    // MANAGE CHANNEL close
+    public static void close(APDUBIBO channel, int number) throws GPException {
+        if (number < 1 || number > MAX)
+            throw new IllegalArgumentException("Invalid logical channel: " + number);
+        GPException.check(channel.transmit(new CommandAPDU(CLA_ISO7816, INS_MANAGE_CHANNEL, 0x80, number)), "MANAGE CHANNEL failed");
+    }
+
+    // CLA of the basic channel (first interindustry coding) for the given channel. Channels 4..19 use the further
+    // interindustry coding, where secure messaging is b6 instead of b4-b3
+    public static int cla(int cla, int number) {
+        if (number < 0 || number > MAX)
+            throw new IllegalArgumentException("Invalid logical channel: " + number);
+        if (number < 4)
+            return (cla & 0x9C) | number;
+        int sm = (cla & 0x0C) != 0 ? 0x20 : 0x00;
+        return (cla & 0x90) | 0x40 | sm | (number - 4);
+    }
+
+    public static CommandAPDU on(CommandAPDU command, int number) {
+        if (number == 0)
+            return command;
+        byte[] bytes = command.getBytes();
+        bytes[0] = (byte) cla(command.getCLA(), number);
+        return new CommandAPDU(bytes);
+    }
+
+    // For sending basic channel APDU-s to whatever is selected on the logical channel
+    public static APDUBIBO over(APDUBIBO channel, int number) {
+        return new APDUBIBO(new BIBO() {
+            @Override
+            public byte[] transceive(byte[] command) throws BIBOException {
+                return channel.transmit(on(new CommandAPDU(command), number)).getBytes();
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
@@ -22,9 +22,10 @@ package pro.javacard.gp;
 import apdu4j.core.CommandAPDU;
 import apdu4j.core.ResponseAPDU;
 
-import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
@@ -78,9 +79,7 @@ class SCP01Wrapper extends SecureChannelWrapper {
                 if (icv == null) {
                     icv = new byte[8];
                 } else if (icvEnc) {
-                    Cipher c = Cipher.getInstance(GPCrypto.DES3_ECB_CIPHER);
-                    c.init(Cipher.ENCRYPT_MODE, GPCrypto.des3key(macKey));
-                    icv = c.doFinal(icv);
+                    icv = GPCrypto.getBackend().encrypt(GPCryptoBackend.Algorithm.DES3, macKey, null, icv, 0, icv.length);
                 }
 
                 if (preAPDU) {
@@ -117,9 +116,8 @@ class SCP01Wrapper extends SecureChannelWrapper {
 
                 newLc += t.size() - origData.length;
 
-                Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
-                c.init(Cipher.ENCRYPT_MODE, GPCrypto.des3key(encKey), GPCrypto.iv_null_8);
-                newData = c.doFinal(t.toByteArray());
+                byte[] plaintext = t.toByteArray();
+                newData = GPCrypto.getBackend().encrypt(GPCryptoBackend.Algorithm.DES3, encKey, GPCrypto.null_bytes_8, plaintext, 0, plaintext.length);
                 t.reset();
             }
 
@@ -152,4 +150,16 @@ class SCP01Wrapper extends SecureChannelWrapper {
     public ResponseAPDU unwrap(ResponseAPDU response) throws GPException {
         return response;
     }
+
+    @Override
+    void writeChaining(DataOutputStream out) throws IOException {
+        writeBytes(out, icv);
+        out.writeBoolean(icvEnc);
+    }
+
+    @Override
+    void readChaining(DataInputStream in) throws IOException {
+        icv = readBytes(in);
+        icvEnc = in.readBoolean();
+    }
 }
@@ -25,10 +25,10 @@ import apdu4j.core.ResponseAPDU;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
@@ -105,10 +105,8 @@ class SCP02Wrapper extends SecureChannelWrapper {
                 if (icv == null) {
                     icv = new byte[8];
                 } else if (icvEnc) {
-                    Cipher c = Cipher.getInstance(GPCrypto.DES_ECB_CIPHER);
-                    c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(GPCrypto.resizeDES(macKey, 8), "DES"));
                     // encrypts the future ICV ?
-                    icv = c.doFinal(icv);
+                    icv = GPCrypto.getBackend().encrypt(GPCryptoBackend.Algorithm.DES, macKey, null, icv, 0, icv.length);
                 }
 
                 if (macModifiedAPDU) {
@@ -123,7 +121,8 @@ class SCP02Wrapper extends SecureChannelWrapper {
                 t.write(origData);
 
 
-                logger.trace("MAC input: {}", HexUtils.bin2hex(t.toByteArray()));
+                if (logger.isTraceEnabled())
+                    logger.trace("MAC input: {}", HexUtils.bin2hex(t.toByteArray()));
                 icv = GPCrypto.mac_des_3des(macKey, t.toByteArray(), icv);
 
                 if (postAPDU) {
@@ -138,9 +137,8 @@ class SCP02Wrapper extends SecureChannelWrapper {
                 t.write(GPCrypto.pad80(origData, 8));
                 newLc += t.size() - origData.length;
 
-                Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
-                c.init(Cipher.ENCRYPT_MODE, GPCrypto.des3key(encKey), GPCrypto.iv_null_8);
-                newData = c.doFinal(t.toByteArray());
+                byte[] plaintext = t.toByteArray();
+                newData = GPCrypto.getBackend().encrypt(GPCryptoBackend.Algorithm.DES3, encKey, GPCrypto.null_bytes_8, plaintext, 0, plaintext.length);
                 t.reset();
             }
 
@@ -196,4 +194,16 @@ class SCP02Wrapper extends SecureChannelWrapper {
         }
         return response;
     }
+
+    @Override
+    void writeChaining(DataOutputStream out) throws IOException {
+        writeBytes(out, icv);
+        writeBytes(out, ricv);
+    }
+
+    @Override
+    void readChaining(DataInputStream in) throws IOException {
+        icv = readBytes(in);
+        ricv = readBytes(in);
+    }
 }
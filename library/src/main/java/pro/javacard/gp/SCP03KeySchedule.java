@@ -0,0 +1,157 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// SCP03 session keys and cryptograms (GP 2.2.1 Amendment D 6.2.1) for a session context, in one go.
+// With a JCA backend the CMAC of both static keys is set up once, with ciphers from the provider of the backend,
+// and reused for any number of sessions, so keep an instance around for as long as the static keys do not change.
+// Other backends derive with GPCryptoBackend.kdf(), like GPCrypto.scp03_kdf().
+public final class SCP03KeySchedule {
+    // Derivation constants
+    private static final byte CARD_CRYPTOGRAM = 0x00;
+    private static final byte HOST_CRYPTOGRAM = 0x01;
+    private static final byte S_ENC = 0x04;
+    private static final byte S_MAC = 0x06;
+    private static final byte S_RMAC = 0x07;
+
+    private final GPCryptoBackend backend;
+    private final byte[] encKey;
+    private final byte[] macKey;
+    // JCA only, null otherwise
+    private final AESCMAC enc;
+    private final AESCMAC mac;
+    // Re-keyed with S-MAC for the cryptograms of every session
+    private final Cipher session;
+
+    public SCP03KeySchedule(byte[] enc, byte[] mac) {
+        this(enc, mac, GPCrypto.getBackend());
+    }
+
+    public SCP03KeySchedule(byte[] enc, byte[] mac, GPCryptoBackend backend) {
+        for (byte[] key : new byte[][]{enc, mac}) {
+            if (key.length != 16 && key.length != 24 && key.length != 32)
+                throw new IllegalArgumentException("Invalid SCP03 key length: " + key.length);
+        }
+        this.backend = backend;
+        this.encKey = enc.clone();
+        this.macKey = mac.clone();
+        AESCMAC encCMAC = null;
+        AESCMAC macCMAC = null;
+        Cipher sessionCipher = null;
+        if (backend instanceof JCACryptoBackend) {
+            JCACryptoBackend jca = (JCACryptoBackend) backend;
+            try {
+                encCMAC = new AESCMAC(jca.newCipher(GPCrypto.AES_CBC_CIPHER), enc);
+                macCMAC = new AESCMAC(jca.newCipher(GPCrypto.AES_CBC_CIPHER), mac);
+                sessionCipher = jca.newCipher(GPCrypto.AES_CBC_CIPHER);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                // Provider without AES/CBC, derive with the backend
+                encCMAC = macCMAC = null;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Invalid SCP03 key: " + e.getMessage(), e);
+            }
+        }
+        this.enc = encCMAC;
+        this.mac = macCMAC;
+        this.session = encCMAC == null ? null : sessionCipher;
+    }
+
+    public GPCryptoBackend getBackend() {
+        return backend;
+    }
+
+    public static final class SessionKeys {
+        private final byte[] enc;
+        private final byte[] mac;
+        private final byte[] rmac;
+        private final byte[] cardCryptogram;
+        private final byte[] hostCryptogram;
+
+        SessionKeys(byte[] enc, byte[] mac, byte[] rmac, byte[] cardCryptogram, byte[] hostCryptogram) {
+            this.enc = enc;
+            this.mac = mac;
+            this.rmac = rmac;
+            this.cardCryptogram = cardCryptogram;
+            this.hostCryptogram = hostCryptogram;
+        }
+
+        public byte[] getEnc() {
+            return enc.clone();
+        }
+
+        public byte[] getMac() {
+            return mac.clone();
+        }
+
+        public byte[] getRmac() {
+            return rmac.clone();
+        }
+
+        public byte[] getCardCryptogram() {
+            return cardCryptogram.clone();
+        }
+
+        public byte[] getHostCryptogram() {
+            return hostCryptogram.clone();
+        }
+    }
+
+    // Context is host challenge followed by card challenge
+    public synchronized SessionKeys derive(byte[] context) {
+        try {
+            // label (11) | constant | separator | L (2) | counter | context
+            byte[] input = new byte[15 + 1 + context.length];
+            System.arraycopy(context, 0, input, 16, context.length);
+            byte[] senc = kdf(enc, encKey, input, S_ENC, encKey.length);
+            byte[] smac = kdf(mac, macKey, input, S_MAC, macKey.length);
+            byte[] srmac = kdf(mac, macKey, input, S_RMAC, macKey.length);
+            AESCMAC cryptograms = session == null ? null : new AESCMAC(session, smac);
+            byte[] card = kdf(cryptograms, smac, input, CARD_CRYPTOGRAM, 8);
+            byte[] host = kdf(cryptograms, smac, input, HOST_CRYPTOGRAM, 8);
+            return new SessionKeys(senc, smac, srmac, card, host);
+        } catch (GeneralSecurityException e) {
+            throw new GPException("SCP03 key derivation failed", e);
+        }
+    }
+
+    private byte[] kdf(AESCMAC cmac, byte[] key, byte[] input, byte constant, int bytes) throws GeneralSecurityException {
+        int bits = bytes * 8;
+        input[11] = constant;
+        input[13] = (byte) (bits >> 8);
+        input[14] = (byte) bits;
+        if (cmac == null)
+            return backend.kdf(key, Arrays.copyOf(input, 15), Arrays.copyOfRange(input, 16, input.length), bytes);
+        byte[] result = new byte[bytes];
+        for (int i = 1, done = 0; done < bytes; i++) {
+            input[15] = (byte) i;
+            byte[] block = cmac.mac(input, 0, input.length);
+            int n = Math.min(block.length, bytes - done);
+            System.arraycopy(block, 0, result, done, n);
+            done += n;
+        }
+        return result;
+    }
+}
@@ -23,10 +23,10 @@ import apdu4j.core.CommandAPDU;
 import apdu4j.core.HexUtils;
 import apdu4j.core.ResponseAPDU;
 
-import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
@@ -70,12 +70,10 @@ class SCP03Wrapper extends SecureChannelWrapper {
                 if (command.getData().length > 0) {
                     byte[] d = GPCrypto.pad80(command.getData(), 16);
                     // Encrypt with S-ENC, after increasing the counter
-                    Cipher c = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
-                    c.init(Cipher.ENCRYPT_MODE, GPCrypto.aeskey(encKey), GPCrypto.iv_null_16);
-                    byte[] iv = c.doFinal(encryption_counter);
+                    GPCryptoBackend crypto = GPCrypto.getBackend();
+                    byte[] iv = crypto.encrypt(GPCryptoBackend.Algorithm.AES, encKey, GPCrypto.null_bytes_16, encryption_counter, 0, 16);
                     // Now encrypt the data with S-ENC.
-                    c.init(Cipher.ENCRYPT_MODE, GPCrypto.aeskey(encKey), new IvParameterSpec(iv));
-                    data = c.doFinal(d);
+                    data = crypto.encrypt(GPCryptoBackend.Algorithm.AES, encKey, iv, d, 0, d.length);
                     lc = data.length;
                 }
             }
@@ -171,12 +169,10 @@ class SCP03Wrapper extends SecureChannelWrapper {
                 // Encrypt with S-ENC, after changing the first byte of the counter
                 byte[] response_encryption_counter = Arrays.copyOf(encryption_counter, encryption_counter.length);
                 response_encryption_counter[0] = (byte) 0x80;
-                Cipher c = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
-                c.init(Cipher.ENCRYPT_MODE, GPCrypto.aeskey(encKey), GPCrypto.iv_null_16);
-                byte[] iv = c.doFinal(response_encryption_counter);
+                GPCryptoBackend crypto = GPCrypto.getBackend();
+                byte[] iv = crypto.encrypt(GPCryptoBackend.Algorithm.AES, encKey, GPCrypto.null_bytes_16, response_encryption_counter, 0, 16);
                 // Now decrypt the data with S-ENC, with the new IV
-                c.init(Cipher.DECRYPT_MODE, GPCrypto.aeskey(encKey), new IvParameterSpec(iv));
-                byte[] data = c.doFinal(response.getData());
+                byte[] data = crypto.decrypt(GPCryptoBackend.Algorithm.AES, encKey, iv, response.getData(), 0, response.getData().length);
                 ByteArrayOutputStream o = new ByteArrayOutputStream();
                 o.write(GPCrypto.unpad80(data));
                 o.write(response.getSW1());
@@ -192,4 +188,16 @@ class SCP03Wrapper extends SecureChannelWrapper {
             throw new GPException("APDU unwrapping failed", e);
         }
     }
+
+    @Override
+    void writeChaining(DataOutputStream out) throws IOException {
+        out.write(chaining_value);
+        out.write(encryption_counter);
+    }
+
+    @Override
+    void readChaining(DataInputStream in) throws IOException {
+        in.readFully(chaining_value);
+        in.readFully(encryption_counter);
+    }
 }
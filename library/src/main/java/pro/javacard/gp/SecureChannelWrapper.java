@@ -22,6 +22,9 @@ package pro.javacard.gp;
 import apdu4j.core.CommandAPDU;
 import apdu4j.core.ResponseAPDU;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.EnumSet;
 
 abstract class SecureChannelWrapper {
@@ -33,6 +36,7 @@ abstract class SecureChannelWrapper {
     protected boolean enc;
     protected boolean rmac; // could be sessions
     protected boolean renc;
+    protected int logicalChannel; // commands are wrapped as on the basic channel, see wrapForChannel()
 
 
     protected SecureChannelWrapper(byte[] enc, byte[] mac, byte[] rmac, int bs) {
@@ -57,10 +61,59 @@ abstract class SecureChannelWrapper {
 
     abstract ResponseAPDU unwrap(ResponseAPDU response) throws GPException;
 
+    // Wrapped command with the logical channel number (and secure messaging indication) in CLA
+    final CommandAPDU wrapForChannel(CommandAPDU command) throws GPException {
+        return LogicalChannel.on(wrap(command), logicalChannel);
+    }
+
     void setSecurityLevel(EnumSet<GPSession.APDUMode> securityLevel) {
         mac = securityLevel.contains(GPSession.APDUMode.MAC);
         enc = securityLevel.contains(GPSession.APDUMode.ENC);
         rmac = securityLevel.contains(GPSession.APDUMode.RMAC);
         renc = securityLevel.contains(GPSession.APDUMode.RENC);
     }
+
+    // Live state for handing the session over, see GPSession.exportSecureChannel(). Keys and block size
+    // are given to the constructor, the rest is restored with readState()
+    final void writeState(DataOutputStream out) throws IOException {
+        out.writeBoolean(mac);
+        out.writeBoolean(enc);
+        out.writeBoolean(rmac);
+        out.writeBoolean(renc);
+        out.writeByte(logicalChannel);
+        writeChaining(out);
+    }
+
+    final void readState(DataInputStream in) throws IOException {
+        mac = in.readBoolean();
+        enc = in.readBoolean();
+        rmac = in.readBoolean();
+        renc = in.readBoolean();
+        logicalChannel = in.readUnsignedByte();
+        readChaining(in);
+    }
+
+    // ICV-s and counters that change with every command
+    abstract void writeChaining(DataOutputStream out) throws IOException;
+
+    abstract void readChaining(DataInputStream in) throws IOException;
+
+    // Length prefixed, null as -1
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeShort(-1);
+        } else {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
 }
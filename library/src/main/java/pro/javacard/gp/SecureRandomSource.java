@@ -0,0 +1,70 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+// SecureRandom with reseeding after a number of bytes
+final class SecureRandomSource {
+    private final String algorithm;
+    private final long reseed;
+    private SecureRandom random;
+    private long produced;
+
+    SecureRandomSource(String algorithm, long reseed) {
+        this.algorithm = algorithm;
+        this.reseed = reseed;
+        this.random = instance(algorithm);
+    }
+
+    // Does not seed, which is left to the first use
+    static void check(String algorithm) {
+        unseeded(algorithm);
+    }
+
+    private static SecureRandom unseeded(String algorithm) {
+        try {
+            return SecureRandom.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("No such random algorithm: " + algorithm, e);
+        }
+    }
+
+    private static SecureRandom instance(String algorithm) {
+        SecureRandom r = unseeded(algorithm);
+        r.nextBytes(new byte[2]); // Force seeding
+        return r;
+    }
+
+    synchronized void nextBytes(byte[] bytes) {
+        if (reseed > 0 && produced >= reseed) {
+            try {
+                random.reseed();
+            } catch (UnsupportedOperationException e) {
+                // Not a DRBG, start from a fresh seed
+                random = instance(algorithm);
+            }
+            produced = 0;
+        }
+        random.nextBytes(bytes);
+        produced += bytes.length;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gp;
+
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.ResponseAPDU;
+
+import java.io.IOException;
+
+// Wraps around GPSession.transmit(). Interceptors see the plaintext command and response
+// and are called in the order they were added to the session. The last element of the chain
+// does the actual wrap, wire exchange and unwrap.
+public interface TransmitInterceptor {
+
+    ResponseAPDU intercept(CommandAPDU command, Chain chain) throws IOException;
+
+    interface Chain {
+        // Pass the command on to the next interceptor or the card
+        ResponseAPDU proceed(CommandAPDU command) throws IOException;
+
+        // Below are valid only after proceed() has returned, and describe the innermost exchange
+
+        // Time spent in secure channel wrapping
+        long getWrapNanos();
+
+        // Time spent in the reader and card
+        long getWireNanos();
+
+        // Time spent in secure channel unwrapping
+        long getUnwrapNanos();
+
+        // Command as sent to the card, after secure channel wrapping
+        CommandAPDU getWireCommand();
+
+        // Response as received from the card, before secure channel unwrapping
+        ResponseAPDU getWireResponse();
+    }
+}
@@ -0,0 +1,65 @@
+package pro.javacard.gp;
+
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import apdu4j.core.ResponseAPDU;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+
+public class TestAPDUMetrics {
+
+    @Test
+    public void testHistogramBuckets() {
+        // Buckets must be contiguous and non-overlapping
+        for (int i = 1; i < APDUMetrics.Histogram.BUCKETS; i++) {
+            Assert.assertEquals(APDUMetrics.Histogram.lowerBound(i), APDUMetrics.Histogram.upperBound(i - 1) + 1);
+        }
+        long[] values = {0, 1, 31, 32, 33, 1000, 123456789, 1L << 40};
+        for (long v : values) {
+            int i = APDUMetrics.Histogram.index(v);
+            Assert.assertTrue(APDUMetrics.Histogram.lowerBound(i) <= v && v <= APDUMetrics.Histogram.upperBound(i), "value " + v);
+        }
+        Assert.assertEquals(APDUMetrics.Histogram.index(Long.MAX_VALUE), APDUMetrics.Histogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void testPercentiles() {
+        APDUMetrics.Histogram h = new APDUMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++)
+            h.record(i * 1000L);
+        Assert.assertEquals(h.getCount(), 1000);
+        Assert.assertEquals(h.getMin(), 1000);
+        Assert.assertEquals(h.getMax(), 1000000);
+        // Within bucket precision
+        Assert.assertEquals(h.getPercentile(50), 500000, 500000 / 32.0);
+        Assert.assertEquals(h.getPercentile(99), 990000, 990000 / 32.0);
+        Assert.assertEquals(h.getPercentile(100), 1000000);
+    }
+
+    @Test
+    public void testRecordAndExport() throws Exception {
+        APDUMetrics metrics = new APDUMetrics();
+        CommandAPDU cmd = new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[16]);
+        CommandAPDU wire = new CommandAPDU(0x84, 0xE8, 0x00, 0x00, new byte[24]);
+        ResponseAPDU rsp = new ResponseAPDU(HexUtils.hex2bin("9000"));
+        metrics.record(cmd, rsp, wire, rsp, 1000, 2000000, 500, 2002000);
+        metrics.record(cmd, new ResponseAPDU(HexUtils.hex2bin("6A80")), wire, rsp, 1000, 2000000, 500, 2002000);
+
+        Assert.assertEquals(metrics.getCount(0xE8), 2);
+        Assert.assertEquals(metrics.getSWCount(0x9000), 1);
+        Assert.assertEquals(metrics.getSWCount(0x6A80), 1);
+        Assert.assertEquals(metrics.getHistogram(0xE8, APDUMetrics.Phase.WIRE).getSum(), 4000000);
+
+        StringWriter prometheus = new StringWriter();
+        metrics.writePrometheus(prometheus);
+        Assert.assertTrue(prometheus.toString().contains("gp_apdu_duration_seconds_count{ins=\"E8\",phase=\"wire\"} 2"));
+        Assert.assertTrue(prometheus.toString().contains("gp_apdu_wire_command_bytes_total{ins=\"E8\"} 58"));
+        Assert.assertTrue(prometheus.toString().contains("gp_apdu_sw_total{sw=\"6A80\"} 1"));
+
+        StringWriter json = new StringWriter();
+        metrics.writeJSON(json);
+        Assert.assertTrue(json.toString().startsWith("{\"ins\":{\"E8\":{\"count\":2,\"command_bytes\":32,"));
+    }
+}
@@ -0,0 +1,123 @@
+package pro.javacard.gp;
+
+import apdu4j.core.APDUBIBO;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static pro.javacard.gp.TestGPCardSimulator.KEY;
+
+public class TestAsyncGPSession {
+
+    // Runs tasks only when asked to, and rejects them while closed
+    static final class ManualExecutor implements Executor {
+        final Queue<Runnable> queue = new ArrayDeque<>();
+        boolean closed;
+
+        @Override
+        public void execute(Runnable command) {
+            if (closed)
+                throw new RejectedExecutionException("closed");
+            queue.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = queue.poll()) != null)
+                r.run();
+        }
+    }
+
+    static GPSession session() {
+        return new GPSession(new APDUBIBO(new GPCardSimulator(SCP.SCP03, KEY)), GPCardSimulator.ISD);
+    }
+
+    @Test
+    public void testSubmissionOrder() {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            AsyncGPSession async = new AsyncGPSession(session(), pool);
+            List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                final int n = i;
+                results.add(async.submit(s -> {
+                    seen.add(n);
+                    return n;
+                }));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+            Assert.assertEquals(seen, IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCardExecutor() throws Exception {
+        ExecutorService pool = AsyncGPSession.newCardExecutor();
+        try {
+            List<List<Integer>> seen = new ArrayList<>();
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            for (int card = 0; card < 16; card++) {
+                List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+                seen.add(order);
+                AsyncGPSession async = new AsyncGPSession(session(), pool);
+                for (int i = 0; i < 10; i++) {
+                    final int n = i;
+                    results.add(async.submit(s -> {
+                        order.add(n);
+                        return n;
+                    }));
+                }
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (List<Integer> order : seen)
+                Assert.assertEquals(order, IntStream.range(0, 10).boxed().collect(Collectors.toList()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejection() {
+        ManualExecutor pool = new ManualExecutor();
+        AsyncGPSession async = new AsyncGPSession(session(), pool);
+
+        // Rejected right away
+        pool.closed = true;
+        CompletableFuture<String> first = async.submit(s -> "first");
+        Assert.assertTrue(first.isCompletedExceptionally());
+
+        // Rejected when the previous task is done
+        pool.closed = false;
+        CompletableFuture<String> second = async.submit(s -> "second");
+        CompletableFuture<String> third = async.submit(s -> "third");
+        pool.closed = true;
+        pool.runAll();
+        Assert.assertEquals(second.join(), "second");
+        CompletionException e = Assert.expectThrows(CompletionException.class, third::join);
+        Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+        // Nothing is left stuck behind the rejected tasks
+        pool.closed = false;
+        CompletableFuture<String> fourth = async.submit(s -> "fourth");
+        pool.runAll();
+        Assert.assertEquals(fourth.join(), "fourth");
+    }
+}
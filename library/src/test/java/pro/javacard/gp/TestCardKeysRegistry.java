@@ -0,0 +1,79 @@
+package pro.javacard.gp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+public class TestCardKeysRegistry {
+
+    static final class Recording implements CardKeysProvider {
+        final String name;
+        final Set<String> prefixes;
+        final List<String> log;
+        final boolean broken;
+
+        Recording(String name, Set<String> prefixes, List<String> log, boolean broken) {
+            this.name = name;
+            this.prefixes = prefixes;
+            this.log = log;
+            this.broken = broken;
+        }
+
+        @Override
+        public Optional<GPCardKeys> getCardKeys(String spec) {
+            log.add(name + ":" + spec);
+            return Optional.empty();
+        }
+
+        @Override
+        public Set<String> prefixes() {
+            return prefixes;
+        }
+
+        @Override
+        public void init() throws IOException {
+            log.add(name + " init");
+            if (broken)
+                throw new IOException("no keystore");
+        }
+
+        @Override
+        public void close() {
+            log.add(name + " close");
+        }
+    }
+
+    @Test
+    public void testDispatchAndLifecycle() {
+        List<String> log = new ArrayList<>();
+        CardKeysRegistry registry = new CardKeysRegistry(List.of(
+                new Recording("plain", Set.of(), log, false),
+                new Recording("hsm", Set.of("HSM"), log, false),
+                new Recording("broken", Set.of("pkcs11"), log, true)));
+
+        Assert.assertTrue(registry.getCardKeys("hsm:label").isEmpty());
+        Assert.assertEquals(log, List.of("hsm init", "hsm:hsm:label", "plain init", "plain:hsm:label"));
+
+        // Initialized once, prefixed providers not asked for other specs
+        log.clear();
+        Assert.assertTrue(registry.getCardKeys("404142434445464748494A4B4C4D4E4F").isEmpty());
+        Assert.assertEquals(log, List.of("plain:404142434445464748494A4B4C4D4E4F"));
+
+        // Failed init is not retried
+        log.clear();
+        registry.getCardKeys("pkcs11:x");
+        registry.getCardKeys("PKCS11:y");
+        Assert.assertEquals(log, List.of("broken init", "plain:pkcs11:x", "plain:PKCS11:y"));
+
+        log.clear();
+        registry.close();
+        registry.close();
+        Assert.assertEquals(log, List.of("plain close", "hsm close"));
+        Assert.assertThrows(IllegalStateException.class, () -> registry.getCardKeys("x"));
+    }
+}
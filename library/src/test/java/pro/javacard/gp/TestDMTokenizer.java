@@ -4,9 +4,19 @@ import apdu4j.core.CommandAPDU;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
+import pro.javacard.capfile.AID;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.interfaces.RSAPrivateKey;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 import static pro.javacard.gp.GPSession.*;
 
@@ -37,4 +47,62 @@ public class TestDMTokenizer {
         c = t.tokenize(c);
         Assert.assertEquals(c.getData(), new byte[]{0, 0});
     }
+
+    @Test
+    public void testPlan() {
+        AID pkg = AID.fromString("A00000000101");
+        AID applet = AID.fromString("A0000000010101");
+        DMPlan plan = new DMPlan().delete(pkg, true).install(pkg, applet, null, EnumSet.noneOf(GPRegistryEntry.Privilege.class), null);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<CommandAPDU> planned = plan.tokenize(DMTokenizer.forPrivateKey(key), executor);
+            Assert.assertEquals(planned.size(), 2);
+            // PKCS#1 v1.5 is deterministic, so same as tokenized one by one
+            DMTokenizer inline = DMTokenizer.forPrivateKey(key);
+            for (int i = 0; i < planned.size(); i++)
+                Assert.assertEquals(planned.get(i).getBytes(), inline.tokenize(plan.getCommands().get(i)).getBytes());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClearPrecomputed() {
+        AID pkg = AID.fromString("A00000000101");
+        DMPlan plan = new DMPlan().delete(pkg, true).makeDefaultSelected(pkg);
+        DMTokenizer tokenizer = DMTokenizer.forPrivateKey(key);
+        tokenizer.precompute(plan.getCommands());
+        // Workflow stops after the first command
+        tokenizer.tokenize(plan.getCommands().get(0));
+        Assert.assertEquals(tokenizer.clearPrecomputed(), 1);
+        Assert.assertEquals(tokenizer.clearPrecomputed(), 0);
+        Assert.assertEquals(DMTokenizer.none().clearPrecomputed(), 0);
+    }
+
+    @Test
+    public void testTokenCache() throws Exception {
+        Path dir = Files.createTempDirectory("dm-cache");
+        try {
+            CommandAPDU c = new CommandAPDU(CLA_GP, INS_DELETE, 0x00, 0x80, new byte[]{0x4F, 0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x01});
+            byte[] expected = DMTokenizer.forPrivateKey(key).tokenize(c).getBytes();
+
+            DMTokenCache cache = new DMTokenCache(1, dir);
+            DMTokenizer t = DMTokenizer.forPrivateKey(key, cache);
+            Assert.assertEquals(t.tokenize(c).getBytes(), expected);
+            Assert.assertEquals(t.tokenize(c).getBytes(), expected);
+            Assert.assertEquals(cache.getMisses(), 1);
+            Assert.assertEquals(cache.getHits(), 1);
+
+            // Evicted from memory by another command, still on disk
+            t.tokenize(new CommandAPDU(CLA_GP, INS_DELETE, 0x00, 0x00, new byte[]{0x4F, 0x01, 0x01}));
+            Assert.assertEquals(cache.size(), 1);
+            DMTokenCache other = new DMTokenCache(10, dir);
+            Assert.assertEquals(DMTokenizer.forPrivateKey(key, other).tokenize(c).getBytes(), expected);
+            Assert.assertEquals(other.getHits(), 1);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
 }
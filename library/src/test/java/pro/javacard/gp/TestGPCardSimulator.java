@@ -0,0 +1,282 @@
+package pro.javacard.gp;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import apdu4j.core.ResponseAPDU;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.capfile.AID;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static pro.javacard.gp.GPSession.*;
+
+public class TestGPCardSimulator {
+    static final byte[] KEY = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+
+    static final AID PACKAGE = new AID("A000000617");
+    static final AID APPLET = new AID("A00000061701");
+
+    // Header (package A000000617 v1.0) and Applet (A00000061701) components, as in a CAP file
+    static final byte[] CODE = HexUtils.hex2bin("01000F" + "DECAFFED" + "010200" + "0001" + "05A000000617" + "03000A" + "01" + "06A00000061701" + "0000");
+
+    // Plaintext keys for the host side, like PlaintextKeys of the tool
+    static final class Keys extends GPCardKeys {
+        private final byte[] key;
+        private final int version;
+
+        Keys(SCP scp, byte[] key, int version) {
+            this.scp = scp;
+            this.key = key.clone();
+            this.version = version;
+        }
+
+        @Override
+        public GPKeyInfo getKeyInfo() {
+            return new GPKeyInfo(version, 0x01, key.length, scp == SCP.SCP03 ? GPKeyInfo.GPKey.AES : GPKeyInfo.GPKey.DES3);
+        }
+
+        @Override
+        public byte[] encrypt(byte[] data, byte[] sessionContext) throws GeneralSecurityException {
+            if (scp == SCP.SCP02)
+                return GPCrypto.dek_encrypt_des(getSessionKey(KeyPurpose.DEK, sessionContext), data);
+            return GPCrypto.dek_encrypt_aes(key, data);
+        }
+
+        @Override
+        public byte[] encryptKey(GPCardKeys other, KeyPurpose p, byte[] sessionContext) throws GeneralSecurityException {
+            return encrypt(((Keys) other).key, sessionContext);
+        }
+
+        @Override
+        public byte[] getSessionKey(KeyPurpose p, byte[] context) {
+            if (scp == SCP.SCP03) {
+                if (p == KeyPurpose.DEK)
+                    return key;
+                byte constant = p == KeyPurpose.ENC ? (byte) 0x04 : p == KeyPurpose.MAC ? (byte) 0x06 : (byte) 0x07;
+                return GPCrypto.scp03_kdf(key, constant, context, key.length * 8);
+            }
+            byte[] derivation = new byte[16];
+            derivation[0] = 0x01;
+            derivation[1] = p == KeyPurpose.ENC ? (byte) 0x82 : p == KeyPurpose.MAC ? (byte) 0x01 : p == KeyPurpose.RMAC ? (byte) 0x02 : (byte) 0x81;
+            System.arraycopy(context, 0, derivation, 2, 2);
+            try {
+                Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
+                c.init(Cipher.ENCRYPT_MODE, GPCrypto.des3key(key), GPCrypto.iv_null_8);
+                return c.doFinal(derivation);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public byte[] kcv(KeyPurpose p) {
+            return scp == SCP.SCP03 ? GPCrypto.kcv_aes(key) : GPCrypto.kcv_3des(key);
+        }
+    }
+
+    static GPSession open(GPCardSimulator card, GPCardKeys keys, APDUMode... level) throws Exception {
+        GPSession gp = GPSession.discover(new APDUBIBO(card));
+        gp.openSecureChannel(keys, null, null, level.length == 0 ? EnumSet.of(APDUMode.MAC) : EnumSet.of(level[0], level));
+        return gp;
+    }
+
+    @Test
+    public void testSCP03Registry() throws Exception {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        // Forces every GET STATUS to page
+        card.setStatusLimit(40);
+        GPSession gp = open(card, new Keys(SCP.SCP03, KEY, 0), APDUMode.RENC);
+        Assert.assertEquals(gp.getSecureChannel().scp, SCP.SCP03);
+        Assert.assertEquals(gp.getScpKeyVersion(), 1);
+        GPRegistry registry = gp.getRegistry();
+        Assert.assertEquals(registry.getISD().get().getAID(), GPCardSimulator.ISD);
+        Assert.assertEquals(registry.allPackages().size(), 6);
+        Assert.assertEquals(registry.allPackages().get(0).getVersionString(), "1.0");
+
+        List<GPKeyInfo> keys = gp.getKeyInfoTemplate();
+        Assert.assertEquals(keys.size(), 3);
+        Assert.assertEquals(keys.get(0).getType(), GPKeyInfo.GPKey.AES);
+        Assert.assertEquals(GPData.CPLC.fromBytes(GPData.fetchCPLC(gp.getCardChannel())).get(GPData.CPLC.Field.ICFabricator), HexUtils.hex2bin("4790"));
+    }
+
+    @Test
+    public void testLoadInstallDelete() throws Exception {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        GPSession gp = open(card, new Keys(SCP.SCP03, KEY, 0), APDUMode.ENC);
+
+        byte[] install = GPUtils.concatenate(new byte[]{(byte) PACKAGE.getLength()}, PACKAGE.getBytes(), new byte[]{0x00, 0x00, 0x00, 0x00});
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_INSTALL, 0x02, 0x00, install, 256)));
+        byte[] block = GPUtils.concatenate(new byte[]{(byte) 0xC4, (byte) CODE.length}, CODE);
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x00, 0x00, Arrays.copyOf(block, 10))));
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x80, 0x01, Arrays.copyOfRange(block, 10, block.length))));
+
+        gp.installAndMakeSelectable(PACKAGE, APPLET, null, EnumSet.noneOf(GPRegistryEntry.Privilege.class), null);
+        GPRegistry registry = gp.getRegistry();
+        GPRegistryEntry pkg = registry.allPackages().stream().filter(e -> e.getAID().equals(PACKAGE)).findFirst().get();
+        Assert.assertEquals(pkg.getModules(), List.of(APPLET));
+        Assert.assertEquals(pkg.getVersionString(), "1.0");
+        Assert.assertEquals(registry.allApplets().stream().map(GPRegistryEntry::getAID).collect(Collectors.toList()), List.of(APPLET));
+
+        // Instances prevent deleting the package alone
+        Assert.expectThrows(GPException.class, () -> gp.deleteAID(PACKAGE, false));
+        gp.deleteAID(PACKAGE, true);
+        Assert.assertTrue(gp.getRegistry().allApplets().isEmpty());
+        Assert.assertEquals(gp.getRegistry().allPackages().size(), 6);
+    }
+
+    @Test
+    public void testSCP02PutKeyAndStoreData() throws Exception {
+        byte[] other = HexUtils.hex2bin("000102030405060708090A0B0C0D0E0F");
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP02, KEY);
+        GPSession gp = open(card, new Keys(SCP.SCP02, KEY, 0), APDUMode.ENC);
+        Assert.assertEquals(gp.getSecureChannel().scp, SCP.SCP02);
+        gp.putKeys(new Keys(SCP.SCP02, other, 0x02), false);
+        Assert.assertEquals(card.getKeyVersions(), List.of(0x01, 0x02));
+
+        byte[] data = new byte[600];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        gp.storeData(data, 0x00);
+        Assert.assertEquals(card.getStoredData().size(), 1);
+        Assert.assertEquals(card.getStoredData().get(0), data);
+
+        // New keys work, old ones still do
+        gp = open(card, new Keys(SCP.SCP02, other, 0x02), APDUMode.MAC);
+        Assert.assertEquals(gp.getKeyInfoTemplate().size(), 6);
+        gp = open(card, new Keys(SCP.SCP02, KEY, 0x01));
+        Assert.assertEquals(gp.getScpKeyVersion(), 1);
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        byte[] host = HexUtils.hex2bin("0102030405060708");
+        CommandAPDU select = new CommandAPDU(CLA_ISO7816, INS_SELECT, 0x04, 0x00, 256);
+        CommandAPDU update = new CommandAPDU(CLA_GP, INS_INITIALIZE_UPDATE, 0x00, 0x00, host, 256);
+        GPCardSimulator a = new GPCardSimulator(SCP.SCP03, KEY);
+        GPCardSimulator b = new GPCardSimulator(SCP.SCP03, KEY);
+        for (GPCardSimulator card : List.of(a, b))
+            card.transceive(select.getBytes());
+        byte[] first = a.transceive(update.getBytes());
+        Assert.assertEquals(first.length, 29 + 2);
+        Assert.assertEquals(b.transceive(update.getBytes()), first);
+        Assert.assertNotEquals(a.transceive(update.getBytes()), first);
+        a.setSeed(0);
+        Assert.assertEquals(a.transceive(update.getBytes()), first);
+
+        // Management commands need a secure channel
+        ResponseAPDU status = new ResponseAPDU(b.transceive(new CommandAPDU(CLA_GP, INS_GET_STATUS, 0x80, 0x02, HexUtils.hex2bin("4F00"), 256).getBytes()));
+        Assert.assertEquals(status.getSW(), SW_SECURITY_STATUS_NOT_SATISFIED);
+    }
+
+    @Test
+    public void testWrongKeys() {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        GPException e = Assert.expectThrows(GPException.class, () -> open(card, new Keys(SCP.SCP03, new byte[16], 0)));
+        Assert.assertTrue(e.getMessage().startsWith("Card cryptogram invalid"));
+    }
+
+    @Test
+    public void testLatency() {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        card.setLatency(INS_SELECT, Duration.ofMillis(20));
+        long start = System.nanoTime();
+        card.transceive(new CommandAPDU(CLA_ISO7816, INS_SELECT, 0x04, 0x00, 256).getBytes());
+        Assert.assertTrue(System.nanoTime() - start >= Duration.ofMillis(20).toNanos());
+        start = System.nanoTime();
+        card.transceive(new CommandAPDU(CLA_GP, INS_GET_DATA, 0x9F, 0x7F, 256).getBytes());
+        Assert.assertTrue(System.nanoTime() - start < Duration.ofMillis(20).toNanos());
+    }
+
+    @Test
+    public void testLogicalChannels() throws Exception {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        APDUBIBO channel = new APDUBIBO(card);
+        GPSession isd = open(card, new Keys(SCP.SCP03, KEY, 0), APDUMode.ENC);
+        CommandAPDU status = new CommandAPDU(CLA_GP, INS_GET_STATUS, 0x80, 0x02, HexUtils.hex2bin("4F00"), 256);
+
+        // Second authenticated session on channel 1, interleaved with the first one
+        int n = LogicalChannel.open(channel);
+        Assert.assertEquals(n, 1);
+        GPSession other = GPSession.connect(channel, GPCardSimulator.ISD, n);
+        other.openSecureChannel(new Keys(SCP.SCP03, KEY, 0), null, null, EnumSet.of(APDUMode.MAC));
+        Assert.assertEquals(other.getLogicalChannel(), 1);
+        Assert.assertEquals(isd.transmit(status).getSW(), SW_NO_ERROR);
+        Assert.assertEquals(other.transmit(status).getSW(), SW_NO_ERROR);
+        Assert.assertEquals(isd.transmit(status).getSW(), SW_NO_ERROR);
+
+        // Applet traffic on channel 2 does not deselect the ISD
+        int a = LogicalChannel.open(channel);
+        APDUBIBO applet = LogicalChannel.over(channel, a);
+        Assert.assertEquals(applet.transmit(new CommandAPDU(CLA_ISO7816, INS_SELECT, 0x04, 0x00, APPLET.getBytes())).getSW(), 0x6A82);
+        Assert.assertEquals(isd.transmit(status).getSW(), SW_NO_ERROR);
+
+        LogicalChannel.close(channel, n);
+        Assert.assertEquals(channel.transmit(LogicalChannel.on(status, n)).getSW(), 0x6881);
+        Assert.assertEquals(isd.transmit(status).getSW(), SW_NO_ERROR);
+    }
+
+    @Test
+    public void testKeyInfoOnLogicalChannel() throws Exception {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        APDUBIBO channel = new APDUBIBO(card);
+        GPSession isd = open(card, new Keys(SCP.SCP03, KEY, 0), APDUMode.MAC);
+        byte[] install = GPUtils.concatenate(new byte[]{(byte) PACKAGE.getLength()}, PACKAGE.getBytes(), new byte[]{0x00, 0x00, 0x00, 0x00});
+        GPException.check(isd.transmit(new CommandAPDU(CLA_GP, INS_INSTALL, 0x02, 0x00, install, 256)));
+        byte[] block = GPUtils.concatenate(new byte[]{(byte) 0xC4, (byte) CODE.length}, CODE);
+        GPException.check(isd.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x00, 0x00, Arrays.copyOf(block, 10))));
+        GPException.check(isd.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x80, 0x01, Arrays.copyOfRange(block, 10, block.length))));
+        isd.installAndMakeSelectable(PACKAGE, APPLET, null, EnumSet.of(GPRegistryEntry.Privilege.SecurityDomain), null);
+
+        // Basic channel has the new SSD selected, which does not answer for the ISD
+        Assert.assertEquals(channel.transmit(new CommandAPDU(CLA_ISO7816, INS_SELECT, 0x04, 0x00, APPLET.getBytes())).getSW(), SW_NO_ERROR);
+        int n = LogicalChannel.open(channel);
+        GPSession other = GPSession.connect(channel, GPCardSimulator.ISD, n);
+        List<GPKeyInfo> keys = other.getKeyInfoTemplate();
+        Assert.assertEquals(keys.size(), 3);
+        Assert.assertEquals(keys.get(0).getType(), GPKeyInfo.GPKey.AES);
+        LogicalChannel.close(channel, n);
+    }
+
+    @Test
+    public void testLogicalChannelCLA() {
+        Assert.assertEquals(LogicalChannel.cla(0x84, 3), 0x87);
+        Assert.assertEquals(LogicalChannel.cla(0x00, 4), 0x40);
+        Assert.assertEquals(LogicalChannel.cla(0x84, 19), 0xEF);
+        Assert.assertEquals(LogicalChannel.cla(0x90, 5), 0xD1);
+        Assert.expectThrows(IllegalArgumentException.class, () -> LogicalChannel.cla(0x80, 20));
+    }
+
+    @Test
+    public void testSecureChannelHandOver() throws Exception {
+        byte[] transport = HexUtils.hex2bin("000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+        CommandAPDU status = new CommandAPDU(CLA_GP, INS_GET_STATUS, 0x80, 0x02, HexUtils.hex2bin("4F00"), 256);
+        for (SCP scp : List.of(SCP.SCP02, SCP.SCP03)) {
+            GPCardSimulator card = new GPCardSimulator(scp, KEY);
+            GPSession gp = open(card, new Keys(scp, KEY, 0), scp == SCP.SCP03 ? APDUMode.RENC : APDUMode.ENC);
+            Assert.assertEquals(gp.transmit(status).getSW(), SW_NO_ERROR);
+
+            byte[] blob = gp.exportSecureChannel(transport);
+            Assert.expectThrows(IllegalStateException.class, () -> gp.transmit(status));
+            byte[] tampered = blob.clone();
+            tampered[tampered.length - 1] ^= 1;
+            Assert.expectThrows(GPException.class, () -> GPSession.importSecureChannel(gp.getCardChannel(), tampered, transport, null, gp.getProfile()));
+
+            // Chaining continues where the first session left off
+            GPSession next = GPSession.importSecureChannel(gp.getCardChannel(), blob, transport, null, gp.getProfile());
+            Assert.assertEquals(next.getSecureChannel().scp, scp);
+            Assert.assertEquals(next.getAID(), GPCardSimulator.ISD);
+            Assert.assertSame(next.getProfile(), gp.getProfile());
+            Assert.assertEquals(next.transmit(status).getSW(), SW_NO_ERROR);
+            Assert.assertEquals(next.getRegistry().allPackages().size(), 6);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package pro.javacard.gp;
+
+import apdu4j.core.HexUtils;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.gp.GPCryptoBackend.Algorithm;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TestGPCryptoBackend {
+    static final List<GPCryptoBackend> BACKENDS = List.of(GPCryptoBackend.jca(), GPCryptoBackend.jca(Security.getProvider("SunJCE")),
+            GPCryptoBackend.jca(new BouncyCastleProvider()), GPCryptoBackend.bouncycastle());
+
+    @Test
+    public void testCMACVectors() throws Exception {
+        // NIST SP 800-38B, D.1
+        byte[] key = HexUtils.hex2bin("2b7e151628aed2a6abf7158809cf4f3c");
+        byte[] msg = HexUtils.hex2bin("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e5130c81c46a35ce411");
+        for (GPCryptoBackend b : BACKENDS) {
+            Assert.assertEquals(b.cmac(key, msg, 0, 0), HexUtils.hex2bin("bb1d6929e95937287fa37d129b756746"), b.getName());
+            Assert.assertEquals(b.cmac(key, msg, 0, 16), HexUtils.hex2bin("070a16b46b4d4144f79bdd9dd04a287c"), b.getName());
+            Assert.assertEquals(b.cmac(key, msg, 0, 40), HexUtils.hex2bin("dfa66747de9ae63030ca32611497c827"), b.getName());
+        }
+    }
+
+    @Test
+    public void testCMACLengths() throws Exception {
+        byte[] key = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+        byte[] data = new byte[5000];
+        new Random(7).nextBytes(data);
+        GPCryptoBackend reference = GPCryptoBackend.bouncycastle();
+        GPCryptoBackend jca = GPCryptoBackend.jca();
+        // All padding cases and chunk boundaries
+        for (int length : new int[]{0, 1, 15, 16, 17, 31, 32, 33, 255, 1023, 1024, 1025, 1040, 1041, 2048, 4997}) {
+            Assert.assertEquals(jca.cmac(key, data, 3, length), reference.cmac(key, data, 3, length), "length " + length);
+        }
+    }
+
+    @Test
+    public void testSameResults() throws Exception {
+        Random r = new Random(42);
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        byte[] data = new byte[128];
+        for (int i = 0; i < 10; i++) {
+            r.nextBytes(key);
+            r.nextBytes(iv);
+            r.nextBytes(data);
+            GPCryptoBackend reference = GPCryptoBackend.bouncycastle();
+            for (GPCryptoBackend b : BACKENDS) {
+                for (Algorithm a : Algorithm.values()) {
+                    byte[] v = a == Algorithm.AES ? iv : Arrays.copyOf(iv, 8);
+                    byte[] cgram = b.encrypt(a, key, v, data, 8 * i, 32);
+                    Assert.assertEquals(cgram, reference.encrypt(a, key, v, data, 8 * i, 32), b.getName() + " " + a);
+                    Assert.assertEquals(b.decrypt(a, key, v, cgram, 0, 32), Arrays.copyOfRange(data, 8 * i, 8 * i + 32));
+                    Assert.assertEquals(b.encrypt(a, key, null, data, 0, 16), reference.encrypt(a, key, null, data, 0, 16), b.getName() + " " + a);
+                    Assert.assertEquals(b.cbcMac(a, key, v, data, 0, 64), reference.cbcMac(a, key, v, data, 0, 64));
+                }
+                Assert.assertEquals(b.cmac(key, data, i, 50 + i), reference.cmac(key, data, i, 50 + i), b.getName());
+                Assert.assertEquals(b.kdf(key, iv, data, 40), reference.kdf(key, iv, data, 40), b.getName());
+            }
+        }
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        Assert.assertEquals(GPCryptoBackend.forName("bc").getName(), "bc");
+        Assert.assertEquals(GPCryptoBackend.forName("jca:SunJCE").getName(), "jca:SunJCE");
+        Assert.assertEquals(GPCryptoBackend.forName("jca:BC").getName(), "jca:BC");
+        Assert.assertTrue(List.of("jca", "bc").contains(GPCryptoBackend.forName("auto").getName()));
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPCryptoBackend.forName("jca:nonexistent"));
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPCryptoBackend.forName("openssl"));
+    }
+
+    @Test
+    public void testSessionsWithBackends() throws Exception {
+        GPCryptoBackend original = GPCrypto.getBackend();
+        try {
+            for (GPCryptoBackend b : BACKENDS) {
+                GPCrypto.setBackend(b);
+                for (SCP scp : List.of(SCP.SCP02, SCP.SCP03)) {
+                    GPCardSimulator card = new GPCardSimulator(scp, TestGPCardSimulator.KEY);
+                    GPSession gp = TestGPCardSimulator.open(card, new TestGPCardSimulator.Keys(scp, TestGPCardSimulator.KEY, 0),
+                            scp == SCP.SCP03 ? GPSession.APDUMode.RENC : GPSession.APDUMode.ENC);
+                    Assert.assertNotNull(gp.getRegistry().getISD().orElse(null), b.getName());
+                }
+            }
+        } finally {
+            GPCrypto.setBackend(original);
+        }
+    }
+}
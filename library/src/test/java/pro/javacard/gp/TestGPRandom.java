@@ -0,0 +1,80 @@
+package pro.javacard.gp;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.HexUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestGPRandom {
+
+    @Test
+    public void testForName() {
+        for (String name : List.of("shared", "thread", "thread:SHA1PRNG", "thread:DRBG:1024", "pool", "pool:3", "pool:2:SHA1PRNG:64")) {
+            byte[] a = new byte[16];
+            byte[] b = new byte[16];
+            GPRandom r = GPRandom.forName(name);
+            r.nextBytes(a);
+            r.nextBytes(b);
+            Assert.assertFalse(Arrays.equals(a, b), name);
+        }
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPRandom.forName("thread:NoSuchRandom"));
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPRandom.forName("pool:0"));
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPRandom.forName("pool:x"));
+        Assert.expectThrows(IllegalArgumentException.class, () -> GPRandom.forName("urandom"));
+    }
+
+    @Test
+    public void testReseed() {
+        // SHA1PRNG can not reseed and is replaced, DRBG reseeds
+        for (String algorithm : List.of("SHA1PRNG", "DRBG")) {
+            SecureRandomSource source = new SecureRandomSource(algorithm, 32);
+            byte[] bytes = new byte[20];
+            for (int i = 0; i < 10; i++)
+                source.nextBytes(bytes);
+        }
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        GPRandom random = GPRandom.pooled("DRBG", 2, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(pool.submit(() -> {
+                    byte[] bytes = new byte[16];
+                    random.nextBytes(bytes);
+                    return bytes;
+                }));
+            }
+            List<String> values = new ArrayList<>();
+            for (Future<byte[]> f : results)
+                values.add(HexUtils.bin2hex(f.get()));
+            Assert.assertEquals(values.stream().distinct().count(), 16);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSessionRandom() throws Exception {
+        int[] calls = new int[1];
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, TestGPCardSimulator.KEY);
+        GPSession gp = GPSession.discover(new APDUBIBO(card));
+        gp.setRandom(bytes -> {
+            calls[0]++;
+            Arrays.fill(bytes, (byte) 0x42);
+        });
+        gp.openSecureChannel(new TestGPCardSimulator.Keys(SCP.SCP03, TestGPCardSimulator.KEY, 0), null, null, EnumSet.of(GPSession.APDUMode.MAC));
+        Assert.assertEquals(calls[0], 1);
+    }
+}
@@ -0,0 +1,80 @@
+package pro.javacard.gp;
+
+import apdu4j.core.CommandAPDU;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static pro.javacard.gp.GPSession.*;
+import static pro.javacard.gp.TestGPCardSimulator.*;
+
+// With INFO level, trace/debug logging on the APDU path of a live session must not allocate.
+// Runs in its own surefire execution, with org.slf4j.simpleLogger.log.pro.javacard=info (see library/pom.xml)
+public class TestLoggingAllocation {
+    private static final int ROUNDS = 10;
+    private static final int ITERATIONS = 2_000;
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    // Bytes allocated by ITERATIONS runs of op
+    private static long measure(Op op) throws Exception {
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++)
+            op.run();
+        return allocatedBytes() - before;
+    }
+
+    @Test
+    public void testNoAllocationAtInfo() throws Exception {
+        GPCardSimulator card = new GPCardSimulator(SCP.SCP03, KEY);
+        GPSession gp = open(card, new Keys(SCP.SCP03, KEY, 0), APDUMode.ENC);
+
+        byte[] install = GPUtils.concatenate(new byte[]{(byte) PACKAGE.getLength()}, PACKAGE.getBytes(), new byte[]{0x00, 0x00, 0x00, 0x00});
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_INSTALL, 0x02, 0x00, install, 256)));
+        byte[] block = GPUtils.concatenate(new byte[]{(byte) 0xC4, (byte) CODE.length}, CODE);
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x00, 0x00, Arrays.copyOf(block, 10))));
+        GPException.check(gp.transmit(new CommandAPDU(CLA_GP, INS_LOAD, 0x80, 0x01, Arrays.copyOfRange(block, 10, block.length))));
+        gp.installAndMakeSelectable(PACKAGE, APPLET, null, EnumSet.noneOf(GPRegistryEntry.Privilege.class), null);
+
+        Assert.assertFalse(LoggerFactory.getLogger(GPSession.class).isDebugEnabled(), "Run with org.slf4j.simpleLogger.log.pro.javacard=info");
+        // makeDefaultSelected() goes through transmitLV() and transmit(), the reference skips transmitLV()
+        Op lv = () -> gp.makeDefaultSelected(APPLET);
+        Op plain = () -> GPException.check(gp.transmit(gp.getTokenizer().tokenize(makeDefaultSelectedCommand(APPLET))), "INSTALL [for make selectable] failed");
+        // Warm up
+        for (int r = 0; r < ROUNDS; r++) {
+            measure(lv);
+            measure(plain);
+        }
+
+        // Both paths build, wrap, MAC and unwrap the same APDU, so the only difference can come from logging.
+        // The JIT may still compile (and escape-analyze) the two loops at different moments, so the rounds
+        // are interleaved and the least allocating round of each path is compared. That leaves no fixed allowance:
+        // anything from one byte per command up (a pretty printed LV payload is hundreds) fails the test
+        long withLogging = Long.MAX_VALUE;
+        long reference = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            withLogging = Math.min(withLogging, measure(lv));
+            reference = Math.min(reference, measure(plain));
+        }
+        long perCommand = (withLogging - reference) / ITERATIONS;
+        Assert.assertTrue(perCommand <= 0, "Logging allocated " + perCommand + " bytes per command");
+    }
+
+    @Test
+    public void testLazyHex() {
+        Assert.assertEquals(GPUtils.hex(new byte[]{0x01, (byte) 0xAB}).toString(), "01AB");
+        Assert.assertEquals(GPUtils.hex(null).toString(), "(null)");
+        Assert.assertEquals(GPUtils.lazy(() -> 42).toString(), "42");
+    }
+}
@@ -0,0 +1,58 @@
+package pro.javacard.gp;
+
+import apdu4j.core.HexUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class TestSCP03KeySchedule {
+
+    @Test
+    public void testSameAsKDF() {
+        Random r = new Random(3);
+        for (int length : new int[]{16, 24, 32}) {
+            byte[] enc = new byte[length];
+            byte[] mac = new byte[length];
+            r.nextBytes(enc);
+            r.nextBytes(mac);
+            SCP03KeySchedule schedule = new SCP03KeySchedule(enc, mac);
+            for (int i = 0; i < 3; i++) {
+                byte[] context = new byte[16];
+                r.nextBytes(context);
+                SCP03KeySchedule.SessionKeys keys = schedule.derive(context);
+                byte[] smac = GPCrypto.scp03_kdf(mac, (byte) 0x06, context, length * 8);
+                Assert.assertEquals(keys.getEnc(), GPCrypto.scp03_kdf(enc, (byte) 0x04, context, length * 8));
+                Assert.assertEquals(keys.getMac(), smac);
+                Assert.assertEquals(keys.getRmac(), GPCrypto.scp03_kdf(mac, (byte) 0x07, context, length * 8));
+                Assert.assertEquals(keys.getCardCryptogram(), GPCrypto.scp03_kdf(smac, (byte) 0x00, context, 64));
+                Assert.assertEquals(keys.getHostCryptogram(), GPCrypto.scp03_kdf(smac, (byte) 0x01, context, 64));
+            }
+        }
+    }
+
+    @Test
+    public void testBackends() {
+        byte[] enc = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+        byte[] mac = HexUtils.hex2bin("505152535455565758595A5B5C5D5E5F");
+        byte[] context = HexUtils.hex2bin("000102030405060708090A0B0C0D0E0F");
+        byte[] smac = GPCrypto.scp03_kdf(mac, (byte) 0x06, context, 128);
+        // Pinned provider, and a backend without JCA
+        for (GPCryptoBackend backend : List.of(GPCryptoBackend.jca(), GPCryptoBackend.forName("jca:BC"), GPCryptoBackend.bouncycastle())) {
+            SCP03KeySchedule schedule = new SCP03KeySchedule(enc, mac, backend);
+            Assert.assertSame(schedule.getBackend(), backend);
+            SCP03KeySchedule.SessionKeys keys = schedule.derive(context);
+            Assert.assertEquals(keys.getEnc(), GPCrypto.scp03_kdf(enc, (byte) 0x04, context, 128), backend.getName());
+            Assert.assertEquals(keys.getMac(), smac, backend.getName());
+            Assert.assertEquals(keys.getCardCryptogram(), GPCrypto.scp03_kdf(smac, (byte) 0x00, context, 64), backend.getName());
+        }
+    }
+
+    @Test
+    public void testInvalidKey() {
+        Assert.expectThrows(IllegalArgumentException.class, () -> new SCP03KeySchedule(new byte[15], new byte[16]));
+        SCP03KeySchedule schedule = new SCP03KeySchedule(HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F"), HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F"));
+        Assert.assertEquals(schedule.derive(new byte[16]).getCardCryptogram().length, 8);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import joptsimple.OptionException;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Operations for --batch: one gp command line per line, executed within one secure channel.
+// Empty lines and lines starting with # are ignored, arguments can be quoted with ' or ".
+//
+//   --delete A000000617 --force
+//   --load "my applet.cap"
+//   --install my.cap --params C900
+//   --lock 404142434445464748494A4B4C4D4E4F
+final class BatchFile {
+
+    static final class Step {
+        final int line;
+        final String text;
+        final OptionSet args;
+
+        Step(int line, String text, OptionSet args) {
+            this.line = line;
+            this.text = text;
+            this.args = args;
+        }
+    }
+
+    // Options that configure the session or run before authentication. Steps never apply them
+    private static final List<OptionSpec<?>> session = List.of(GPCommandLineInterface.OPT_READER, GPCommandLineInterface.OPT_KEY,
+            GPCommandLineInterface.OPT_KEY_ENC, GPCommandLineInterface.OPT_KEY_MAC, GPCommandLineInterface.OPT_KEY_DEK,
+            GPCommandLineInterface.OPT_KEY_KDF, GPCommandLineInterface.OPT_KEY_VERSION, GPCommandLineInterface.OPT_CONNECT,
+            GPCommandLineInterface.OPT_SC_MODE, GPCommandLineInterface.OPT_BATCH, GPCommandLineInterface.OPT_FLEET,
+            GPCommandLineInterface.OPT_WATCH, GPCommandLineInterface.OPT_DAEMON, GPCommandLineInterface.OPT_METRICS,
+            GPCommandLineInterface.OPT_OUTPUT, GPCommandLineInterface.OPT_APDU, GPCommandLineInterface.OPT_LOGICAL_CHANNEL,
+            GPCommandLineInterface.OPT_INFO, GPCommandLineInterface.OPT_DM_KEY, GPCommandLineInterface.OPT_DM_TOKEN,
+            GPCommandLineInterface.OPT_DM_CACHE, GPCommandLineInterface.OPT_BS, GPCommandLineInterface.OPT_PROFILE);
+
+    private BatchFile() {
+    }
+
+    // All steps are validated before the secure channel is opened
+    static List<Step> parse(Reader reader) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int n = 0;
+        while ((line = in.readLine()) != null) {
+            n++;
+            String text = line.trim();
+            if (text.isEmpty() || text.startsWith("#"))
+                continue;
+            final OptionSet args;
+            try {
+                args = GPCommandLineInterface.parse(tokenize(text).toArray(new String[0]));
+            } catch (OptionException | IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("line %d: %s", n, e.getMessage()));
+            }
+            if (!args.nonOptionArguments().isEmpty())
+                throw new IllegalArgumentException(String.format("line %d: invalid non-option arguments: %s", n, args.nonOptionArguments()));
+            List<String> invalid = session.stream().filter(args::has).map(o -> "--" + o.options().get(o.options().size() - 1)).collect(Collectors.toList());
+            if (!invalid.isEmpty())
+                throw new IllegalArgumentException(String.format("line %d: not allowed in batch: %s", n, String.join(", ", invalid)));
+            steps.add(new Step(n, text, args));
+        }
+        return steps;
+    }
+
+    static List<String> tokenize(String line) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        char quote = 0;
+        boolean token = false;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    current.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                token = true;
+            } else if (Character.isWhitespace(c)) {
+                if (token) {
+                    result.add(current.toString());
+                    current.setLength(0);
+                    token = false;
+                }
+            } else {
+                current.append(c);
+                token = true;
+            }
+        }
+        if (quote != 0)
+            throw new IllegalArgumentException("unterminated quote");
+        if (token)
+            result.add(current.toString());
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import apdu4j.pcsc.TerminalManager;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Long running loop: waits for cards to be inserted to matching readers and runs the same command line on each.
+// CAP files are parsed once (and again only if changed on disk), so a card is processed within milliseconds of insertion.
+// Options are parsed for every card, which is cheap compared to the card session itself.
+final class CardWatcher {
+    private final CardTerminals terminals;
+    private final List<String> names;
+    private final String ignore;
+    private final FleetRunner runner;
+    private final Set<String> busy = ConcurrentHashMap.newKeySet();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    CardWatcher(CardTerminals terminals, List<String> names, String ignore, boolean debug, boolean resetOnDisconnect) {
+        this.terminals = terminals;
+        this.names = names;
+        this.ignore = ignore;
+        this.runner = new FleetRunner(terminals, 1, debug, resetOnDisconnect);
+    }
+
+    void run(String[] argv) throws CardException {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        FleetRunner.ThreadOutput.install();
+        try {
+            System.out.println("# Waiting for cards, press Ctrl-C to stop");
+            // Cards already present count as inserted
+            List<CardTerminal> arrived = terminals.list(CardTerminals.State.CARD_PRESENT);
+            while (!Thread.currentThread().isInterrupted()) {
+                long detected = System.nanoTime();
+                List<String> eligible = eligible();
+                for (CardTerminal t : arrived) {
+                    String name = t.getName();
+                    if (!eligible.contains(name) || !busy.add(name))
+                        continue;
+                    pool.submit(() -> process(name, argv, detected));
+                }
+                terminals.waitForChange();
+                arrived = terminals.list(CardTerminals.State.CARD_INSERTION);
+            }
+        } finally {
+            pool.shutdown();
+            FleetRunner.ThreadOutput.uninstall();
+        }
+    }
+
+    private List<String> eligible() throws CardException {
+        return FleetRunner.select(TerminalManager.dwimify(TerminalManager.listPCSC(terminals.list(), null, false), null, ignore), names);
+    }
+
+    private void process(String name, String[] argv, long detected) {
+        try {
+            long latency = System.nanoTime() - detected;
+            FleetRunner.Result r = runner.runOne(name, argv);
+            (r.ok() ? done : failed).incrementAndGet();
+            long total = totalNanos.addAndGet(r.nanos);
+            long cards = done.get() + failed.get();
+            FleetRunner.print(r);
+            FleetRunner.ThreadOutput.original().printf("# Card %d: started %d ms after insertion; %d OK, %d failed, average %d ms%n",
+                    cards, latency / 1000000, done.get(), failed.get(), total / cards / 1000000);
+        } finally {
+            busy.remove(name);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import apdu4j.pcsc.CardBIBO;
+import apdu4j.pcsc.PCSCReader;
+import apdu4j.pcsc.terminals.LoggingCardTerminal;
+import pro.javacard.gp.AsyncGPSession;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+// Runs the same command line on several readers in parallel, each card with its own GPTool and GPSession.
+// Output of every card is buffered and printed as one block when the card is done.
+final class FleetRunner {
+    private final CardTerminals terminals;
+    private final int parallel;
+    private final boolean debug;
+    private final boolean resetOnDisconnect;
+
+    static final class Result {
+        final String reader;
+        final int code;
+        final long nanos;
+        final String output;
+
+        Result(String reader, int code, long nanos, String output) {
+            this.reader = reader;
+            this.code = code;
+            this.nanos = nanos;
+            this.output = output;
+        }
+
+        boolean ok() {
+            return code == 0;
+        }
+    }
+
+    FleetRunner(CardTerminals terminals, int parallel, boolean debug, boolean resetOnDisconnect) {
+        this.terminals = terminals;
+        this.parallel = parallel;
+        this.debug = debug;
+        this.resetOnDisconnect = resetOnDisconnect;
+    }
+
+    // Readers with a card, not ignored, matching any of the (case-insensitive) name fragments, if given
+    static List<String> select(List<PCSCReader> readers, List<String> names) {
+        return readers.stream()
+                .filter(r -> !r.isIgnore() && r.isPresent())
+                .map(PCSCReader::getName)
+                .filter(n -> names.isEmpty() || names.stream().anyMatch(f -> n.toLowerCase(Locale.ROOT).contains(f.toLowerCase(Locale.ROOT))))
+                .collect(Collectors.toList());
+    }
+
+    static List<String> parseNames(String spec) {
+        if (spec == null || spec.isBlank())
+            return List.of();
+        return Arrays.stream(spec.split(",")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+    }
+
+    int run(List<String> readers, String[] argv) throws InterruptedException {
+        if (readers.isEmpty()) {
+            System.err.println("No readers with a card found");
+            return 1;
+        }
+        int threads = Math.max(1, Math.min(parallel, readers.size()));
+        boolean virtual = useVirtualThreads(threads);
+        System.out.printf("# Fleet: %d reader(s), up to %d in parallel%s%n", readers.size(), threads, virtual ? " on virtual threads" : "");
+
+        ThreadOutput.install();
+        ExecutorService pool = virtual ? AsyncGPSession.newCardExecutor() : Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(threads);
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (String reader : readers) {
+                futures.add(pool.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return runOne(reader, argv);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Result r;
+                try {
+                    r = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    r = new Result(readers.get(i), 1, 0, "Error: " + e.getCause().getMessage() + System.lineSeparator());
+                }
+                results.add(r);
+                print(r);
+            }
+        } finally {
+            pool.shutdownNow();
+            ThreadOutput.uninstall();
+        }
+        long wall = System.nanoTime() - start;
+        System.out.println(summary(results, wall));
+        return results.stream().allMatch(Result::ok) ? 0 : 1;
+    }
+
+    // Virtual threads on Java 21+, unless disabled with $GP_VIRTUAL_THREADS=false.
+    // PC/SC transmit is a native call, which pins the carrier thread for the duration of the exchange.
+    // Thus the scheduler needs as many carriers as there are cards in flight; this must be set before
+    // the first virtual thread is created.
+    static boolean useVirtualThreads(int threads) {
+        if (!AsyncGPSession.hasVirtualThreads() || System.getenv().getOrDefault(GPTool.ENV_GP_VIRTUAL_THREADS, "true").equalsIgnoreCase("false"))
+            return false;
+        String parallelism = "jdk.virtualThreadScheduler.parallelism";
+        if (System.getProperty(parallelism) == null)
+            System.setProperty(parallelism, Integer.toString(Math.max(threads, Runtime.getRuntime().availableProcessors())));
+        return true;
+    }
+
+    static void print(Result r) {
+        PrintStream out = ThreadOutput.original();
+        synchronized (out) {
+            out.printf("== %s%n%s", r.reader, r.output);
+            out.printf("== %s: %s in %d ms%n", r.reader, r.ok() ? "OK" : "FAILED (" + r.code + ")", r.nanos / 1000000);
+        }
+    }
+
+    static String summary(List<Result> results, long wallNanos) {
+        long ok = results.stream().filter(Result::ok).count();
+        long[] times = results.stream().mapToLong(r -> r.nanos).sorted().toArray();
+        long median = times.length == 0 ? 0 : times[times.length / 2];
+        long max = times.length == 0 ? 0 : times[times.length - 1];
+        double perMinute = wallNanos == 0 ? 0 : results.size() * 60e9 / wallNanos;
+        return String.format(Locale.ROOT, "# Fleet: %d OK, %d failed, wall %d ms, median %d ms, max %d ms, %.1f cards/min",
+                ok, results.size() - ok, wallNanos / 1000000, median / 1000000, max / 1000000, perMinute);
+    }
+
+    Result runOne(String name, String[] argv) {
+        ByteArrayOutputStream buffer = ThreadOutput.capture();
+        long start = System.nanoTime();
+        Card card = null;
+        int code = 1;
+        try {
+            CardTerminal terminal = terminals.getTerminal(name);
+            if (debug)
+                terminal = LoggingCardTerminal.getInstance(terminal);
+            card = terminal.connect("*");
+            code = new GPTool().run(CardBIBO.wrap(card), argv);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            if (card != null) {
+                try {
+                    card.disconnect(resetOnDisconnect);
+                } catch (CardException e) {
+                    // Warn or ignore
+                }
+            }
+            ThreadOutput.release();
+        }
+        return new Result(name, code, System.nanoTime() - start, buffer.toString(StandardCharsets.UTF_8));
+    }
+
+    // Routes System.out and System.err of worker threads to a per-thread buffer or stream
+    static final class ThreadOutput extends OutputStream {
+        private static final ThreadLocal<OutputStream> outs = new ThreadLocal<>();
+        private static final ThreadLocal<OutputStream> errs = new ThreadLocal<>();
+        private static PrintStream out;
+        private static PrintStream err;
+
+        private final PrintStream fallback;
+        private final ThreadLocal<OutputStream> target;
+
+        private ThreadOutput(PrintStream fallback, ThreadLocal<OutputStream> target) {
+            this.fallback = fallback;
+            this.target = target;
+        }
+
+        static synchronized void install() {
+            if (out != null)
+                return;
+            out = System.out;
+            err = System.err;
+            System.setOut(new PrintStream(new ThreadOutput(out, outs), true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(new ThreadOutput(err, errs), true, StandardCharsets.UTF_8));
+        }
+
+        static synchronized void uninstall() {
+            if (out == null)
+                return;
+            System.out.flush();
+            System.err.flush();
+            System.setOut(out);
+            System.setErr(err);
+            out = null;
+            err = null;
+        }
+
+        static PrintStream original() {
+            return out == null ? System.out : out;
+        }
+
+        // Both streams to one buffer
+        static ByteArrayOutputStream capture() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            redirect(buffer, buffer);
+            return buffer;
+        }
+
+        static void redirect(OutputStream stdout, OutputStream stderr) {
+            outs.set(stdout);
+            errs.set(stderr);
+        }
+
+        static void release() {
+            System.out.flush();
+            System.err.flush();
+            outs.remove();
+            errs.remove();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            OutputStream o = target.get();
+            if (o != null)
+                o.write(b);
+            else
+                fallback.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream o = target.get();
+            if (o != null)
+                o.write(b, off, len);
+            else
+                fallback.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            OutputStream o = target.get();
+            if (o != null)
+                o.flush();
+            else
+                fallback.flush();
+        }
+    }
+}
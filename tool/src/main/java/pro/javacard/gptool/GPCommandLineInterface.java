@@ -44,6 +44,7 @@ abstract class GPCommandLineInterface {
     protected static OptionSpec<Void> OPT_LIST = parser.acceptsAll(Arrays.asList("l", "list"), "List the contents of the card");
     protected static OptionSpec<Void> OPT_INFO = parser.acceptsAll(Arrays.asList("i", "info"), "Show information");
     protected static OptionSpec<String> OPT_APDU = parser.acceptsAll(Arrays.asList("a", "apdu"), "Send raw APDU").withRequiredArg().describedAs("APDU");
+    protected static OptionSpec<Void> OPT_LOGICAL_CHANNEL = parser.accepts("logical-channel", "Use a new logical channel for raw APDU-s and --connect").availableIf(OPT_APDU, OPT_CONNECT);
     protected static OptionSpec<String> OPT_SECURE_APDU = parser.acceptsAll(Arrays.asList("s", "secure-apdu"), "Send APDU via SCP").withRequiredArg().describedAs("APDU");
     protected static OptionSpec<Void> OPT_FORCE = parser.acceptsAll(Arrays.asList("f", "force"), "Force operations");
     protected static OptionSpec<Void> OPT_SAD = parser.acceptsAll(Arrays.asList("F", "no-felix"), "Disable Felix mode DWIM");
@@ -108,6 +109,7 @@ abstract class GPCommandLineInterface {
     // Delegated management
     protected static OptionSpec<Key> OPT_DM_KEY = parser.accepts("dm-key", "Delegated Management key").withRequiredArg().ofType(Key.class).describedAs("PEM or hex");
     protected static OptionSpec<HexBytes> OPT_DM_TOKEN = parser.accepts("dm-token", "Delegated Management token").availableUnless(OPT_DM_KEY).withRequiredArg().ofType(HexBytes.class).describedAs("token");
+    protected static OptionSpec<File> OPT_DM_CACHE = parser.accepts("dm-cache", "Cache Delegated Management tokens").availableIf(OPT_DM_KEY).withRequiredArg().ofType(File.class).describedAs("directory");
 
     // SSD-s
     protected static OptionSpec<AID> OPT_MOVE = parser.accepts("move", "Move something").withRequiredArg().ofType(AID.class);
@@ -133,6 +135,14 @@ abstract class GPCommandLineInterface {
     protected static OptionSpec<GPSession.APDUMode> OPT_SC_MODE = parser.accepts("mode", "Secure channel to use").withRequiredArg().ofType(GPSession.APDUMode.class).withValuesConvertedBy(new APDUModeConverter());
     protected static OptionSpec<Integer> OPT_BS = parser.accepts("bs", "Maximum APDU payload size").withRequiredArg().ofType(Integer.class).withValuesConvertedBy(new HexIntegerConverter()).describedAs("bytes");
     protected static OptionSpec<String> OPT_PROFILE = parser.acceptsAll(Arrays.asList("P", "profile"), "Use pre-defined profile").withRequiredArg().describedAs("profile");
+    protected static OptionSpec<String> OPT_FLEET = parser.accepts("fleet", "Run on all readers with a card in parallel").withOptionalArg().describedAs("reader,...");
+    protected static OptionSpec<Integer> OPT_PARALLEL = parser.accepts("parallel", "Maximum number of cards in parallel").availableIf(OPT_FLEET).withRequiredArg().ofType(Integer.class);
+    protected static OptionSpec<Void> OPT_WATCH = parser.accepts("watch", "Run on every inserted card until interrupted").availableUnless(OPT_FLEET);
+    protected static OptionSpec<String> OPT_BATCH = parser.accepts("batch", "Run operations from file (- for stdin) in one session").withRequiredArg().describedAs("file");
+    protected static OptionSpec<Void> OPT_CONTINUE = parser.accepts("continue", "Continue batch after a failed step").availableIf(OPT_BATCH);
+    protected static OptionSpec<Void> OPT_DAEMON = parser.accepts("daemon", "Serve gp commands from a warm JVM (see $GP_DAEMON)");
+    protected static OptionSpec<MachineOutput.Format> OPT_OUTPUT = parser.accepts("output", "Machine readable output of list, info and APDU-s").withRequiredArg().ofType(MachineOutput.Format.class).withValuesConvertedBy(new FormatConverter()).describedAs("json|cbor");
+    protected static OptionSpec<File> OPT_METRICS = parser.accepts("metrics", "Write APDU metrics (.json or Prometheus)").withRequiredArg().ofType(File.class).describedAs("file");
 
 
     // argument converters
@@ -148,6 +158,12 @@ abstract class GPCommandLineInterface {
         }
     }
 
+    static class FormatConverter extends EnumConverter<MachineOutput.Format> {
+        public FormatConverter() {
+            super(MachineOutput.Format.class);
+        }
+    }
+
     static class HexIntegerConverter implements ValueConverter<Integer> {
         @Override
         public Integer convert(String s) {
@@ -169,7 +185,31 @@ abstract class GPCommandLineInterface {
         return args.has(v) ? Optional.of(args.valueOf(v)) : Optional.empty();
     }
 
-    protected static OptionSet parseArguments(String[] argv) throws IOException {
+    // Set when running inside the daemon, where exiting the JVM is not an option
+    static volatile boolean embedded = false;
+
+    static final class ExitException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ExitException(int code) {
+            super("exit " + code);
+            this.code = code;
+        }
+    }
+
+    static void exit(int code) {
+        if (embedded)
+            throw new ExitException(code);
+        System.exit(code);
+    }
+
+    // Synchronized, as the parser is shared and keeps state. Fleet mode parses in parallel
+    static synchronized OptionSet parse(String[] argv) {
+        return parser.parse(argv);
+    }
+
+    protected static synchronized OptionSet parseArguments(String[] argv) throws IOException {
         OptionSet args = null;
 
         // Parse arguments
@@ -183,19 +223,19 @@ abstract class GPCommandLineInterface {
             } else {
                 System.err.println(e.getMessage());
             }
-            System.exit(1);
+            exit(1);
         }
 
         if (args.nonOptionArguments().size() > 0) {
             System.err.println();
             System.err.println("Invalid non-option arguments: " + args.nonOptionArguments().stream().map(e -> e.toString()).collect(Collectors.joining(" ")));
             System.err.println("Try gp --help");
-            System.exit(1);
+            exit(1);
         }
 
         if (args.has(OPT_HELP) || args.specs().size() == 0) {
             parser.printHelpOn(System.out);
-            System.exit(0);
+            exit(0);
         }
 
         return args;
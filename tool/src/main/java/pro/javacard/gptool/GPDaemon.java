@@ -0,0 +1,294 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import apdu4j.core.HexUtils;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+// Keeps the JVM, crypto and key providers, parsed CAP files and card connections warm between gp invocations.
+//
+// gp --daemon listens on a loopback port and writes "<port> <token>" to ~/.gp-daemon (readable only by the user).
+// With $GP_DAEMON set, gp forwards its arguments to the daemon and streams back output and exit code,
+// falling back to running locally if no daemon is reachable. Commands are executed one at a time.
+//
+// Wire format (DataInput/DataOutput): request is token, argc, args, envc, env pairs (all UTF).
+// Response is a sequence of frames (byte type, int length, bytes) of type OUT or ERR, terminated by EXIT (byte, int code).
+final class GPDaemon {
+    static final byte OUT = 1;
+    static final byte ERR = 2;
+    static final byte EXIT = 0;
+
+    // Options that manage their own threads or the process, and can't be served
+    private static final List<String> unsupported = List.of("--daemon", "--watch", "--fleet");
+    // A client that connects but does not send its request in time must not block the daemon
+    private static final int REQUEST_TIMEOUT_MS = 5000;
+
+    private static Map<String, Card> cards = null;
+
+    static Path stateFile() {
+        return Path.of(System.getProperty("user.home"), ".gp-daemon");
+    }
+
+    // GP_* environment, which must match between client and daemon. GP_DAEMON is the switch itself
+    static Map<String, String> environment() {
+        return System.getenv().entrySet().stream()
+                .filter(e -> e.getKey().startsWith("GP_") && !e.getKey().equals(GPTool.ENV_GP_DAEMON))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, TreeMap::new));
+    }
+
+    void serve() throws IOException {
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        String token = HexUtils.bin2hex(secret);
+        Map<String, String> env = environment();
+
+        try (ServerSocket server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress())) {
+            Path state = stateFile();
+            Files.deleteIfExists(state);
+            Files.createFile(state);
+            try {
+                Files.setPosixFilePermissions(state, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system
+            }
+            Files.writeString(state, server.getLocalPort() + " " + token);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(state);
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }));
+
+            cards = new ConcurrentHashMap<>();
+            GPCommandLineInterface.embedded = true;
+            FleetRunner.ThreadOutput.install();
+            FleetRunner.ThreadOutput.original().printf("# Listening on %s:%d%n", server.getInetAddress().getHostAddress(), server.getLocalPort());
+
+            while (!Thread.currentThread().isInterrupted()) {
+                try (Socket s = server.accept()) {
+                    handle(s, token, env);
+                } catch (IOException e) {
+                    FleetRunner.ThreadOutput.original().println("# Client failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            GPCommandLineInterface.embedded = false;
+            FleetRunner.ThreadOutput.uninstall();
+            if (cards != null) {
+                cards.values().forEach(GPDaemon::disconnect);
+                cards = null;
+            }
+        }
+    }
+
+    private void handle(Socket socket, String token, Map<String, String> env) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+        if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)))
+            return;
+        String[] argv = new String[in.readInt()];
+        for (int i = 0; i < argv.length; i++)
+            argv[i] = in.readUTF();
+        Map<String, String> clientEnv = new TreeMap<>();
+        int envc = in.readInt();
+        for (int i = 0; i < envc; i++)
+            clientEnv.put(in.readUTF(), in.readUTF());
+        // Commands may legitimately run (and wait for the card) for a long time
+        socket.setSoTimeout(0);
+
+        int code = 1;
+        PrintStream stdout = new PrintStream(new Frames(out, OUT), true, StandardCharsets.UTF_8);
+        PrintStream stderr = new PrintStream(new Frames(out, ERR), true, StandardCharsets.UTF_8);
+        FleetRunner.ThreadOutput.redirect(stdout, stderr);
+        long start = System.nanoTime();
+        try {
+            if (!clientEnv.equals(env)) {
+                stderr.println("Error: GP_* environment differs from the daemon, restart it with the same environment");
+            } else if (Arrays.stream(argv).anyMatch(unsupported::contains)) {
+                stderr.println("Error: not supported via daemon: " + String.join(" ", unsupported));
+            } else {
+                code = GPTool.execute(argv);
+            }
+        } catch (GPCommandLineInterface.ExitException e) {
+            code = e.code;
+        } catch (RuntimeException e) {
+            stderr.println("Error: " + e.getMessage());
+        } finally {
+            FleetRunner.ThreadOutput.release();
+        }
+        FleetRunner.ThreadOutput.original().printf("# %s: %d in %d ms%n", String.join(" ", argv), code, (System.nanoTime() - start) / 1000000);
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(code);
+            out.flush();
+        }
+    }
+
+    // Connection reuse. Only active inside the daemon
+    static boolean warm() {
+        return cards != null;
+    }
+
+    static Card connect(CardTerminal terminal) throws CardException {
+        Card card = cards.get(key(terminal));
+        if (card != null && terminal.isCardPresent())
+            return card;
+        if (card != null)
+            drop(terminal);
+        card = terminal.connect("*");
+        cards.put(key(terminal), card);
+        return card;
+    }
+
+    // Logging (-d) and plain connections to the same reader are different
+    private static String key(CardTerminal terminal) {
+        return terminal.getClass().getName() + ":" + terminal.getName();
+    }
+
+    // After a failure the card may have been replaced or reset, so reconnect next time
+    static void drop(CardTerminal terminal) {
+        Card card = cards.remove(key(terminal));
+        if (card != null)
+            disconnect(card);
+    }
+
+    private static void disconnect(Card card) {
+        try {
+            card.disconnect(false);
+        } catch (CardException e) {
+            // Ignore
+        }
+    }
+
+    // Client side. Returns the exit code, or empty if no daemon could be reached.
+    // Once the command has been sent, it is never run locally, even if the daemon goes away
+    static Optional<Integer> forward(String[] argv) {
+        final String[] state;
+        final int port;
+        try {
+            state = Files.readString(stateFile()).trim().split(" ");
+            if (state.length < 2)
+                return Optional.empty();
+            port = Integer.parseInt(state[0]);
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+        final Socket s;
+        try {
+            s = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        try (s) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF(state[1]);
+            out.writeInt(argv.length);
+            for (String a : argv)
+                out.writeUTF(absolutize(a));
+            Map<String, String> env = environment();
+            out.writeInt(env.size());
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            while (true) {
+                byte type = in.readByte();
+                if (type == EXIT)
+                    return Optional.of(in.readInt());
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                PrintStream target = type == ERR ? System.err : System.out;
+                target.write(data);
+                target.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Lost connection to gp daemon: " + e.getMessage());
+            return Optional.of(1);
+        }
+    }
+
+    // Relative file names are relative to the client, not the daemon
+    static String absolutize(String arg) {
+        try {
+            Path p = Path.of(arg);
+            if (!p.isAbsolute() && Files.exists(p))
+                return p.toAbsolutePath().toString();
+        } catch (RuntimeException e) {
+            // Not a path
+        }
+        return arg;
+    }
+
+    // Sends everything written as frames of one type
+    static final class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        Frames(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
@@ -42,15 +42,23 @@ import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static pro.javacard.gp.GPSecureChannelVersion.SCP.*;
@@ -67,8 +75,13 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
     static final String ENV_GP_READER_IGNORE = "GP_READER_IGNORE";
     static final String ENV_GP_TRACE = "GP_TRACE";
     static final String ENV_GP_PCSC_RESET = "GP_PCSC_RESET";
+    static final String ENV_GP_VIRTUAL_THREADS = "GP_VIRTUAL_THREADS";
+    static final String ENV_GP_DAEMON = "GP_DAEMON";
 
     static void setupLogging(OptionSet args) {
+        // Reset, for the daemon running several command lines
+        isVerbose = false;
+        isTrace = false;
         if (args.has(OPT_VERBOSE)) {
             isVerbose = true;
             System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "info");
@@ -81,14 +94,68 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
         }
     }
 
+    // Parsed CAP files, kept for the lifetime of the JVM in watch mode.
+    // A file that is replaced on disk (different mtime or size) is parsed again
+    private static final Map<Path, CachedCAP> capCache = new ConcurrentHashMap<>();
+    private static volatile boolean cacheCAPs = false;
+
+    // DM token caches by directory, shared by all runs in the same JVM (fleet, watch, daemon)
+    private static final Map<Path, DMTokenCache> dmCaches = new ConcurrentHashMap<>();
+    static final int DM_CACHE_SIZE = 4096;
+
+    static CAPFile readCAP(Path path) throws IOException {
+        if (!cacheCAPs)
+            return CAPFile.fromFile(path);
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        CachedCAP cached = capCache.get(key);
+        if (cached == null || !cached.modified.equals(attributes.lastModifiedTime()) || cached.size != attributes.size()) {
+            cached = new CachedCAP(attributes.lastModifiedTime(), attributes.size(), CAPFile.fromFile(key));
+            capCache.put(key, cached);
+        }
+        return cached.cap;
+    }
+
+    private static final class CachedCAP {
+        final FileTime modified;
+        final long size;
+        final CAPFile cap;
+
+        CachedCAP(FileTime modified, long size, CAPFile cap) {
+            this.modified = modified;
+            this.size = size;
+            this.cap = cap;
+        }
+    }
+
+    // Parse all CAP files of the command line once, before the first card arrives
+    static void preloadCAPs(OptionSet args) throws IOException {
+        cacheCAPs = true;
+        for (OptionSpec<File> spec : List.of(OPT_CAP, OPT_LOAD, OPT_UNINSTALL)) {
+            for (File f : args.valuesOf(spec))
+                readCAP(f.toPath());
+        }
+        for (String s : args.valuesOf(OPT_INSTALL)) {
+            Path p = Path.of(s);
+            if (Files.isRegularFile(p))
+                readCAP(p);
+        }
+    }
+
     // Explicitly public, to not forget the need for apdu4j
     public GPTool() {
     }
 
+    // Collected during run() if --metrics is given
+    private APDUMetrics metrics = null;
+    private MachineOutput output = null;
+    private File metricsFile = null;
+
     private static boolean preamble = true;
 
     private static void showPreamble(String[] argv, OptionSet args) {
-        if (preamble) {
+        // Keep stdout clean for --output
+        if (preamble && !args.has(OPT_OUTPUT)) {
             // dump relevant environment and command line variables in verbose+ mode
             if (args.has(OPT_VERBOSE) || args.has(OPT_DEBUG) || args.has(OPT_INFO)) {
                 List<String> gpenv = System.getenv().entrySet().stream().filter(e -> e.getKey().startsWith("GP_")).map(e -> String.format("%s=%s", e.getKey(), e.getValue())).collect(Collectors.toList());
@@ -116,6 +183,18 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
 
     // To keep basic gp.jar together with apdu4j app, this is just a minimalist wrapper
     public static void main(String[] argv) {
+        // Forward to a running daemon, if asked to
+        if (System.getenv().containsKey(ENV_GP_DAEMON) && !Arrays.asList(argv).contains("--daemon")) {
+            Optional<Integer> code = GPDaemon.forward(argv);
+            if (code.isPresent())
+                System.exit(code.get());
+        }
+        int code = execute(argv);
+        closeKeyProviders();
+        System.exit(code);
+    }
+
+    static int execute(String[] argv) {
         Card c = null;
         int ret = 1;
         boolean resetOnDisconnect = Boolean.parseBoolean(System.getenv().getOrDefault(ENV_GP_PCSC_RESET, "false"));
@@ -125,13 +204,19 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
             showPreamble(argv, args);
 
             if (onlyHasArg(args, OPT_VERSION))
-                return;
+                return 0;
 
             // FIXME: have "cardlessCommands()"
             if (onlyHasArg(args, OPT_CAP)) {
-                CAPFile cap = CAPFile.fromFile(args.valueOf(OPT_CAP).toPath());
+                CAPFile cap = readCAP(args.valueOf(OPT_CAP).toPath());
                 cap.dump(System.out);
-                return;
+                return 0;
+            }
+
+            if (args.has(OPT_DAEMON)) {
+                preloadCAPs(args);
+                new GPDaemon().serve();
+                return 0;
             }
 
             TerminalManager terminalManager = TerminalManager.getDefault();
@@ -144,16 +229,44 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
             String useReader = args.hasArgument(OPT_READER) ? args.valueOf(OPT_READER) : System.getenv(ENV_GP_READER);
             String ignoreReader = System.getenv(ENV_GP_READER_IGNORE);
 
+            // Same command line on every card inserted to any matching reader
+            if (args.has(OPT_WATCH)) {
+                preloadCAPs(args);
+                List<String> names = useReader == null ? List.of() : List.of(useReader);
+                new CardWatcher(terminalManager.terminals(), names, ignoreReader, args.has(OPT_DEBUG), resetOnDisconnect).run(argv);
+                return 0;
+            }
+
+            // Same command line on all matching readers
+            if (args.has(OPT_FLEET)) {
+                List<String> names = FleetRunner.parseNames(args.valueOf(OPT_FLEET));
+                if (names.isEmpty() && useReader != null)
+                    names = List.of(useReader);
+                List<String> fleet = FleetRunner.select(TerminalManager.dwimify(readers, null, ignoreReader), names);
+                int parallel = args.has(OPT_PARALLEL) ? args.valueOf(OPT_PARALLEL) : fleet.size();
+                return new FleetRunner(terminalManager.terminals(), parallel, args.has(OPT_DEBUG), resetOnDisconnect).run(fleet, argv);
+            }
+
             // FIXME: simplify
             Optional<CardTerminal> reader = TerminalManager.getLucky(TerminalManager.dwimify(readers, useReader, ignoreReader), terminalManager.terminals());
 
             if (reader.isEmpty()) {
                 System.err.println("Specify reader with -r/$GP_READER");
-                System.exit(1);
+                return 1;
             }
             reader = reader.map(e -> args.has(OPT_DEBUG) ? LoggingCardTerminal.getInstance(e) : e);
-            c = reader.get().connect("*");
-            ret = new GPTool().run(CardBIBO.wrap(c), argv);
+            if (GPDaemon.warm()) {
+                // Card connection is owned by the daemon
+                Card warm = GPDaemon.connect(reader.get());
+                ret = new GPTool().run(CardBIBO.wrap(warm), argv);
+                if (ret != 0)
+                    GPDaemon.drop(reader.get());
+            } else {
+                c = reader.get().connect("*");
+                ret = new GPTool().run(CardBIBO.wrap(c), argv);
+            }
+        } catch (ExitException e) {
+            throw e;
         } catch (IllegalArgumentException e) {
             System.err.println("Invalid argument: " + e.getMessage());
             if (isTrace)
@@ -171,7 +284,7 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 }
             }
         }
-        System.exit(ret);
+        return ret;
     }
 
     static boolean onlyHasArg(OptionSet args, OptionSpec<?> s) {
@@ -183,6 +296,9 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
     // For running in apdu4j mode
     @Override
     public int run(BIBO bibo, String[] argv) {
+        APDUBIBO channel = new APDUBIBO(bibo);
+        // Logical channel of the GPSession, closed when done
+        int sessionChannel = 0;
         try {
             OptionSet args = parseArguments(argv);
             setupLogging(args);
@@ -191,15 +307,17 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
             if (onlyHasArg(args, OPT_VERSION))
                 return 0;
 
+            if (args.has(OPT_OUTPUT))
+                output = new MachineOutput(args.valueOf(OPT_OUTPUT), System.out);
+
             // Load a CAP file, if specified
             CAPFile cap = null;
             if (args.has(OPT_CAP)) {
                 File capfile = args.valueOf(OPT_CAP);
-                cap = CAPFile.fromFile(capfile.toPath());
+                cap = readCAP(capfile.toPath());
             }
 
             // Now actually talk to possible terminals
-            APDUBIBO channel = new APDUBIBO(bibo);
             // Send all raw APDU-s to the default-selected application of the card
             if (args.has(OPT_APDU)) {
                 // Select the application, if present
@@ -209,15 +327,30 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 } else if (cap != null) {
                     target = cap.getAppletAIDs().get(0); // FIXME: generalize and only work if one
                 }
-                if (target != null) {
-                    verbose("Selecting " + target);
-                    channel.transmit(new CommandAPDU(0x00, GPSession.INS_SELECT, 0x04, 0x00, target.getBytes()));
+                // Keep the basic channel (and whatever is selected there) intact
+                int logical = 0;
+                APDUBIBO applet = channel;
+                if (args.has(OPT_LOGICAL_CHANNEL)) {
+                    logical = LogicalChannel.open(channel);
+                    verbose("Opened logical channel " + logical);
+                    applet = LogicalChannel.over(channel, logical);
                 }
-                for (byte[] s : args.valuesOf(OPT_APDU).stream().map(APDUParsers::stringToAPDU).collect(Collectors.toList())) {
-                    CommandAPDU c = new CommandAPDU(s);
-                    ResponseAPDU r = channel.transmit(c);
-                    if (r.getSW() == 0x9000 && r.getData().length > 0)
-                        System.out.println(APDUParsers.visualize_structure(r.getData()));
+                try {
+                    if (target != null) {
+                        verbose("Selecting " + target);
+                        applet.transmit(new CommandAPDU(0x00, GPSession.INS_SELECT, 0x04, 0x00, target.getBytes()));
+                    }
+                    for (byte[] s : args.valuesOf(OPT_APDU).stream().map(APDUParsers::stringToAPDU).collect(Collectors.toList())) {
+                        CommandAPDU c = new CommandAPDU(s);
+                        ResponseAPDU r = applet.transmit(c);
+                        if (output != null)
+                            output.apdu(c, r, false);
+                        else if (r.getSW() == 0x9000 && r.getData().length > 0)
+                            System.out.println(APDUParsers.visualize_structure(r.getData()));
+                    }
+                } finally {
+                    if (logical != 0)
+                        closeLogicalChannel(channel, logical);
                 }
             }
 
@@ -232,7 +365,12 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
             }
             final GPSession gp;
             if (args.has(OPT_CONNECT)) {
-                gp = GPSession.connect(channel, args.valueOf(OPT_CONNECT));
+                if (args.has(OPT_LOGICAL_CHANNEL)) {
+                    sessionChannel = LogicalChannel.open(channel);
+                    verbose("Opened logical channel " + sessionChannel);
+                    gp = GPSession.connect(channel, args.valueOf(OPT_CONNECT), sessionChannel);
+                } else
+                    gp = GPSession.connect(channel, args.valueOf(OPT_CONNECT));
             } else if (env.containsKey(ENV_GP_AID)) {
                 AID aid = AID.fromString(env.get(ENV_GP_AID));
                 verbose(String.format("Connecting to $%s (%s)", ENV_GP_AID, aid));
@@ -241,6 +379,12 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 gp = GPSession.discover(channel);
             }
 
+            if (args.has(OPT_METRICS)) {
+                metrics = new APDUMetrics();
+                metricsFile = args.valueOf(OPT_METRICS);
+                gp.addInterceptor(metrics);
+            }
+
             // Override block size for stupidly broken readers.
             // See https://github.com/martinpaljak/GlobalPlatformPro/issues/32
             // The name of the option comes from a common abbreviation as well as dd utility
@@ -253,7 +397,10 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 if (dmkey.isEmpty() || !(dmkey.get() instanceof RSAPrivateKey)) {
                     throw new IllegalArgumentException("Only RSA private keys are supported for DM");
                 }
-                gp.setTokenizer(DMTokenizer.forPrivateKey((RSAPrivateKey) dmkey.get()));
+                if (args.has(OPT_DM_CACHE))
+                    gp.setTokenizer(DMTokenizer.forPrivateKey((RSAPrivateKey) dmkey.get(), dmCaches.computeIfAbsent(args.valueOf(OPT_DM_CACHE).toPath().toAbsolutePath(), p -> new DMTokenCache(DM_CACHE_SIZE, p))));
+                else
+                    gp.setTokenizer(DMTokenizer.forPrivateKey((RSAPrivateKey) dmkey.get()));
             } else if (args.has(OPT_DM_TOKEN)) {
                 byte[] token = args.valueOf(OPT_DM_TOKEN).value();
                 gp.setTokenizer(DMTokenizer.forToken(token));
@@ -261,7 +408,10 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
 
             // Extract information
             if (args.has(OPT_INFO)) {
-                GPData.dump(channel);
+                if (output != null)
+                    output.info(channel);
+                else
+                    GPData.dump(channel);
             }
 
             // Normally assume a single master key
@@ -311,6 +461,9 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 gp.setProfile(p.get());
             }
 
+            // Batch file is validated before authentication
+            final List<BatchFile.Step> steps = args.has(OPT_BATCH) ? readBatch(args.valueOf(OPT_BATCH)) : List.of();
+
             // Authenticate, only if needed
             if (needsAuthentication(args)) {
                 // IMPORTANT PLACE. Possibly brick the card now, if keys don't match.
@@ -322,521 +475,635 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                     return 1;
                 }
 
-                // --secure-apdu or -s
-                if (args.has(OPT_SECURE_APDU)) {
-                    for (byte[] s : args.valuesOf(OPT_SECURE_APDU).stream().map(APDUParsers::stringToAPDU).collect(Collectors.toList())) {
-                        CommandAPDU c = new CommandAPDU(s);
-                        ResponseAPDU r = gp.transmit(c);
-                        if (r.getData().length > 0 && r.getSW() == 0x9000) {
-                            System.out.println(APDUParsers.visualize_structure(r.getData()));
-                        }
-                    }
-                }
+                if (args.has(OPT_BATCH))
+                    return batch(args, gp, keys, cap, steps);
 
-                // --delete <aid>
-                if (args.has(OPT_DELETE)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
+                int ret = operations(args, gp, keys, cap);
+                if (ret != 0)
+                    return ret;
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            if (isTrace)
+                e.printStackTrace();
+        } finally {
+            if (sessionChannel != 0)
+                closeLogicalChannel(channel, sessionChannel);
+            closeOutput();
+            exportMetrics();
+        }
+        // Other exceptions escape. fin.
+        return 1;
+    }
 
-                    GPRegistry reg = gp.getRegistry();
+    private static List<BatchFile.Step> readBatch(String source) throws IOException {
+        try (Reader in = source.equals("-") ? new InputStreamReader(new FilterInputStream(System.in) {
+            @Override
+            public void close() {
+                // Standard input stays open
+            }
+        }, StandardCharsets.UTF_8) : Files.newBufferedReader(Path.of(source), StandardCharsets.UTF_8)) {
+            return BatchFile.parse(in);
+        }
+    }
 
-                    // DWIM: assume that default selected is the one to be deleted
-                    if (args.has(OPT_DEFAULT)) {
-                        Optional<AID> def = reg.getDefaultSelectedAID();
-                        if (def.isPresent()) {
-                            gp.deleteAID(def.get(), false);
-                        } else {
-                            System.err.println("Could not identify default selected application!");
-                        }
-                    }
-                    boolean failure = false;
-                    List<AID> aidList = new ArrayList<>(args.valuesOf(OPT_DELETE));
-                    for (AID aid : aidList) {
-                        try {
-                            // If the AID represents a package and force is enabled, delete deps as well
-                            boolean deleteDeps = reg.allPackageAIDs().contains(aid) && args.has(OPT_FORCE);
-                            gp.deleteAID(aid, deleteDeps);
-                        } catch (GPException e) {
-                            failure = true;
-                            if (!reg.allAIDs().contains(aid)) {
-                                System.err.println("Could not delete AID (not present on card): " + aid);
-                            } else {
-                                if (e.sw == 0x6985) {
-                                    System.err.printf("Could not delete %s (0x6985). Some app still active?%n", aid);
-                                } else {
-                                    System.err.printf("Could not delete AID %s: %s%n", aid, GPData.sw2str(e.sw));
-                                }
-                            }
-                            // Do not return errors from -delete to behave like rm
-                        }
+    // --batch: all steps in the already opened secure channel, with timing
+    private int batch(OptionSet args, GPSession gp, GPCardKeys keys, CAPFile cap, List<BatchFile.Step> steps) throws IOException {
+        // Operations given on the command line itself run first
+        int ret = operations(args, gp, keys, cap);
+        if (ret != 0)
+            return ret;
+        // Every --cap is parsed once per batch, starting with the one of the command line
+        Map<Path, CAPFile> caps = new HashMap<>();
+        if (cap != null)
+            caps.put(args.valueOf(OPT_CAP).toPath().toAbsolutePath().normalize(), cap);
+        // Progress goes to stderr when stdout carries --output records
+        PrintStream log = human();
+        int failed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < steps.size(); i++) {
+            BatchFile.Step step = steps.get(i);
+            long stepStart = System.nanoTime();
+            String error = null;
+            try {
+                CAPFile stepCAP = null;
+                if (step.args.has(OPT_CAP)) {
+                    Path p = step.args.valueOf(OPT_CAP).toPath().toAbsolutePath().normalize();
+                    stepCAP = caps.get(p);
+                    if (stepCAP == null) {
+                        stepCAP = readCAP(p);
+                        caps.put(p, stepCAP);
                     }
-                    // #142: Behave like rm -f: fail if there was an error, unless -f
-                    if (failure && !args.has(OPT_FORCE))
-                        return 1;
                 }
-
-                // --uninstall <cap>
-                if (args.has(OPT_UNINSTALL)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
-                    List<CAPFile> caps = getCapFileList(args, OPT_UNINSTALL);
-                    boolean failure = false;
-                    for (CAPFile instcap : caps) {
-                        AID aid = instcap.getPackageAID();
-                        // Simple warning
-                        if (!gp.getRegistry().allAIDs().contains(aid)) {
-                            System.err.println(aid + " is not present on card!");
-                        }
-                        try {
-                            gp.deleteAID(aid, true);
-                            System.out.println(aid + " deleted.");
-                        } catch (GPException e) {
-                            failure = true;
-                        }
-                    }
-                    // #142: Behave like rm -f: fail if there was an error, unless -f
-                    if (failure && !args.has(OPT_FORCE))
-                        return 1;
+                ret = operations(step.args, gp, keys, stepCAP);
+            } catch (IOException | RuntimeException e) {
+                ret = 1;
+                error = e.getMessage();
+            }
+            long took = System.nanoTime() - stepStart;
+            if (ret == 0) {
+                log.printf("# Step %d/%d (line %d) OK in %d ms: %s%n", i + 1, steps.size(), step.line, took / 1000000, step.text);
+            } else {
+                failed++;
+                System.err.printf("# Step %d/%d (line %d) FAILED in %d ms: %s%s%n", i + 1, steps.size(), step.line, took / 1000000, step.text, error == null ? "" : ": " + error);
+                if (!args.has(OPT_CONTINUE)) {
+                    System.err.printf("# Stopping, %d step(s) not executed%n", steps.size() - i - 1);
+                    return 1;
                 }
+            }
+        }
+        log.printf("# Batch: %d step(s), %d failed, %d ms%n", steps.size(), failed, (System.nanoTime() - start) / 1000000);
+        return failed == 0 ? 0 : 1;
+    }
 
-                // --load <applet.cap>
-                if (args.has(OPT_LOAD)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
-                    List<CAPFile> caps = getCapFileList(args, OPT_LOAD);
-
-                    GPRegistry reg = gp.getRegistry();
-                    // Remove existing load file if needed
-                    if (args.has(OPT_FORCE)) {
-                        for (CAPFile loadcap : caps) {
-                            if (reg.allPackageAIDs().contains(loadcap.getPackageAID())) {
-                                verbose("removing existing package " + loadcap.getPackageName() + " " + loadcap.getPackageAID());
-                                gp.deleteAID(loadcap.getPackageAID(), true);
-                            }
-                        }
-                    }
-                    for (CAPFile loadcap : caps) {
-                        if (isVerbose) {
-                            loadcap.dump(System.out);
-                        }
-                        loadCAP(args, gp, loadcap);
-                    }
+    // Operations that need an authenticated session. Returns exit code
+    private int operations(OptionSet args, GPSession gp, GPCardKeys keys, CAPFile cap) throws IOException {
+        // --secure-apdu or -s
+        if (args.has(OPT_SECURE_APDU)) {
+            for (byte[] s : args.valuesOf(OPT_SECURE_APDU).stream().map(APDUParsers::stringToAPDU).collect(Collectors.toList())) {
+                CommandAPDU c = new CommandAPDU(s);
+                ResponseAPDU r = gp.transmit(c);
+                if (output != null) {
+                    output.apdu(c, r, true);
+                } else if (r.getData().length > 0 && r.getSW() == 0x9000) {
+                    System.out.println(APDUParsers.visualize_structure(r.getData()));
                 }
+            }
+        }
 
-                // --put-key <keyfile.pem or hex> or --replace-key <keyfile.pem or hex>
-                // Load a public key or a plaintext symmetric key (for DAP or DM purposes)
-                if (args.has(OPT_PUT_KEY) || args.has(OPT_REPLACE_KEY)) {
-                    final Key kv = args.has(OPT_PUT_KEY) ? args.valueOf(OPT_PUT_KEY) : args.valueOf(OPT_REPLACE_KEY);
-                    final int keyVersion = args.valueOf(OPT_NEW_KEY_VERSION);
-                    if (keyVersion < 0x01 || keyVersion > 0x7F) {
-                        System.err.println("Invalid key version: " + GPUtils.intString(keyVersion) + ", some possible values:");
-                        System.err.println(GPKeyInfo.keyVersionPurposes.entrySet().stream().map(e -> String.format("%s - %s", GPUtils.intString(e.getKey()), e.getValue())).collect(Collectors.joining("\n")));
-                        throw new IllegalArgumentException("Invalid key version: " + GPUtils.intString(keyVersion));
-                    }
+        // --delete <aid>
+        if (args.has(OPT_DELETE)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
+
+            GPRegistry reg = gp.getRegistry();
 
-                    // Check for presence (thus replace)
-                    // WORKAROUND: some cards reject the command if actually trying to replace existing key.
-                    // List<GPKeyInfo> current = gp.getKeyInfoTemplate();
-                    // boolean replace = current.stream().filter(p -> p.getVersion() == keyVersion).count() == 1 || args.has(OPT_REPLACE_KEY);
-                    boolean replace = args.has(OPT_REPLACE_KEY);
-                    if (kv.getPublic().isPresent()) {
-                        gp.putKey(kv.getPublic().get(), keyVersion, replace);
-                    } else if (kv.getSymmetric().isPresent()) {
-                        byte[] k = kv.getSymmetric().get();
-                        if (k.length != 16)
-                            throw new IllegalArgumentException("Invalid key length: " + k.length);
-                        // FIXME: implicit DES currently
-                        gp.putKey(GPCrypto.des3key(k), keyVersion, replace);
+            // DWIM: assume that default selected is the one to be deleted
+            if (args.has(OPT_DEFAULT)) {
+                Optional<AID> def = reg.getDefaultSelectedAID();
+                if (def.isPresent()) {
+                    gp.deleteAID(def.get(), false);
+                } else {
+                    System.err.println("Could not identify default selected application!");
+                }
+            }
+            boolean failure = false;
+            List<AID> aidList = new ArrayList<>(args.valuesOf(OPT_DELETE));
+            for (AID aid : aidList) {
+                try {
+                    // If the AID represents a package and force is enabled, delete deps as well
+                    boolean deleteDeps = reg.allPackageAIDs().contains(aid) && args.has(OPT_FORCE);
+                    gp.deleteAID(aid, deleteDeps);
+                } catch (GPException e) {
+                    failure = true;
+                    if (!reg.allAIDs().contains(aid)) {
+                        System.err.println("Could not delete AID (not present on card): " + aid);
                     } else {
-                        throw new IllegalArgumentException("Only public and symmetric keys are supported for put-key");
+                        if (e.sw == 0x6985) {
+                            System.err.printf("Could not delete %s (0x6985). Some app still active?%n", aid);
+                        } else {
+                            System.err.printf("Could not delete AID %s: %s%n", aid, GPData.sw2str(e.sw));
+                        }
                     }
+                    // Do not return errors from -delete to behave like rm
                 }
+            }
+            // #142: Behave like rm -f: fail if there was an error, unless -f
+            if (failure && !args.has(OPT_FORCE))
+                return 1;
+        }
 
-                if (args.has(OPT_INSTALL_ONLY)) {
-                    GPRegistry registry = gp.getRegistry();
-                    InstallDefinition dwim = InstallDefinition.fromOptions(registry, args);
+        // --uninstall <cap>
+        if (args.has(OPT_UNINSTALL)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
+            List<CAPFile> caps = getCapFileList(args, OPT_UNINSTALL);
+            boolean failure = false;
+            for (CAPFile instcap : caps) {
+                AID aid = instcap.getPackageAID();
+                // Simple warning
+                if (!gp.getRegistry().allAIDs().contains(aid)) {
+                    System.err.println(aid + " is not present on card!");
                 }
+                try {
+                    gp.deleteAID(aid, true);
+                    human().println(aid + " deleted.");
+                } catch (GPException e) {
+                    failure = true;
+                }
+            }
+            // #142: Behave like rm -f: fail if there was an error, unless -f
+            if (failure && !args.has(OPT_FORCE))
+                return 1;
+        }
 
-                // --install <applet.cap> (--applet <aid> --create <aid> --privs <privs> --params <params>)
-                if (args.has(OPT_INSTALL)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
-
-
-                    CAPFile capfile = CAPFile.fromFile(Path.of(args.valueOf(OPT_INSTALL)));
-
-                    if (args.has(OPT_VERBOSE)) {
-                        capfile.dump(System.out);
+        // --load <applet.cap>
+        if (args.has(OPT_LOAD)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
+            List<CAPFile> caps = getCapFileList(args, OPT_LOAD);
+
+            GPRegistry reg = gp.getRegistry();
+            // Remove existing load file if needed
+            if (args.has(OPT_FORCE)) {
+                for (CAPFile loadcap : caps) {
+                    if (reg.allPackageAIDs().contains(loadcap.getPackageAID())) {
+                        verbose("removing existing package " + loadcap.getPackageName() + " " + loadcap.getPackageAID());
+                        gp.deleteAID(loadcap.getPackageAID(), true);
                     }
+                }
+            }
+            for (CAPFile loadcap : caps) {
+                if (isVerbose) {
+                    loadcap.dump(human());
+                }
+                loadCAP(args, gp, loadcap);
+            }
+        }
 
-                    GPRegistry reg = gp.getRegistry();
+        // --put-key <keyfile.pem or hex> or --replace-key <keyfile.pem or hex>
+        // Load a public key or a plaintext symmetric key (for DAP or DM purposes)
+        if (args.has(OPT_PUT_KEY) || args.has(OPT_REPLACE_KEY)) {
+            final Key kv = args.has(OPT_PUT_KEY) ? args.valueOf(OPT_PUT_KEY) : args.valueOf(OPT_REPLACE_KEY);
+            final int keyVersion = args.valueOf(OPT_NEW_KEY_VERSION);
+            if (keyVersion < 0x01 || keyVersion > 0x7F) {
+                System.err.println("Invalid key version: " + GPUtils.intString(keyVersion) + ", some possible values:");
+                System.err.println(GPKeyInfo.keyVersionPurposes.entrySet().stream().map(e -> String.format("%s - %s", GPUtils.intString(e.getKey()), e.getValue())).collect(Collectors.joining("\n")));
+                throw new IllegalArgumentException("Invalid key version: " + GPUtils.intString(keyVersion));
+            }
 
-                    // Remove existing load file if needed
-                    if (args.has(OPT_FORCE) && reg.allPackageAIDs().contains(capfile.getPackageAID())) {
-                        gp.deleteAID(capfile.getPackageAID(), true);
-                    }
+            // Check for presence (thus replace)
+            // WORKAROUND: some cards reject the command if actually trying to replace existing key.
+            // List<GPKeyInfo> current = gp.getKeyInfoTemplate();
+            // boolean replace = current.stream().filter(p -> p.getVersion() == keyVersion).count() == 1 || args.has(OPT_REPLACE_KEY);
+            boolean replace = args.has(OPT_REPLACE_KEY);
+            if (kv.getPublic().isPresent()) {
+                gp.putKey(kv.getPublic().get(), keyVersion, replace);
+            } else if (kv.getSymmetric().isPresent()) {
+                byte[] k = kv.getSymmetric().get();
+                if (k.length != 16)
+                    throw new IllegalArgumentException("Invalid key length: " + k.length);
+                // FIXME: implicit DES currently
+                gp.putKey(GPCrypto.des3key(k), keyVersion, replace);
+            } else {
+                throw new IllegalArgumentException("Only public and symmetric keys are supported for put-key");
+            }
+        }
 
-                    // Get install parameters
-                    final AID appaid;
-                    final AID instanceaid;
-                    if (capfile.getAppletAIDs().size() == 0) {
-                        throw new IllegalArgumentException("CAP file has no applets!");
-                    } else if (capfile.getAppletAIDs().size() > 1) {
-                        if (args.has(OPT_APPLET)) {
-                            appaid = args.valueOf(OPT_APPLET);
-                        } else {
-                            throw new IllegalArgumentException("CAP contains more than one applet, specify the right one with --" + OPT_APPLET);
-                        }
-                    } else {
-                        appaid = capfile.getAppletAIDs().get(0);
-                    }
+        if (args.has(OPT_INSTALL_ONLY)) {
+            GPRegistry registry = gp.getRegistry();
+            InstallDefinition dwim = InstallDefinition.fromOptions(registry, args);
+        }
 
-                    // override instance AID
-                    instanceaid = optional(args, OPT_CREATE).orElse(appaid);
+        // --install <applet.cap> (--applet <aid> --create <aid> --privs <privs> --params <params>)
+        if (args.has(OPT_INSTALL)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
 
-                    Set<Privilege> privs = getPrivileges(args);
 
-                    // Load CAP
-                    loadCAP(args, gp, capfile);
+            CAPFile capfile = readCAP(Path.of(args.valueOf(OPT_INSTALL)));
 
-                    // Remove existing default app FIXME: document. this might be non-obvious
-                    if (args.has(OPT_FORCE) && (reg.getDefaultSelectedAID().isPresent() && privs.contains(Privilege.CardReset))) {
-                        System.err.println("NOTE: Force-removing current default selected applet instance: " + reg.getDefaultSelectedAID().get());
-                        gp.deleteAID(reg.getDefaultSelectedAID().get(), false);
-                    }
+            if (args.has(OPT_VERBOSE)) {
+                capfile.dump(human());
+            }
 
-                    // warn
-                    if (gp.getRegistry().allAppletAIDs().contains(instanceaid)) {
-                        System.err.println("WARNING: Applet " + instanceaid + " already present on card");
-                        if (args.has(OPT_FORCE)) {
-                            gp.deleteAID(instanceaid, false);
-                        }
-                    }
+            GPRegistry reg = gp.getRegistry();
 
-                    // Parameters
-                    byte[] params = args.has(OPT_PARAMS) ? args.valueOf(OPT_PARAMS).value() : new byte[0];
+            // Remove existing load file if needed
+            if (args.has(OPT_FORCE) && reg.allPackageAIDs().contains(capfile.getPackageAID())) {
+                gp.deleteAID(capfile.getPackageAID(), true);
+            }
 
-                    // shoot
-                    gp.installAndMakeSelectable(capfile.getPackageAID(), appaid, instanceaid, privs, params);
+            // Get install parameters
+            final AID appaid;
+            final AID instanceaid;
+            if (capfile.getAppletAIDs().size() == 0) {
+                throw new IllegalArgumentException("CAP file has no applets!");
+            } else if (capfile.getAppletAIDs().size() > 1) {
+                if (args.has(OPT_APPLET)) {
+                    appaid = args.valueOf(OPT_APPLET);
+                } else {
+                    throw new IllegalArgumentException("CAP contains more than one applet, specify the right one with --" + OPT_APPLET);
                 }
+            } else {
+                appaid = capfile.getAppletAIDs().get(0);
+            }
 
+            // override instance AID
+            instanceaid = optional(args, OPT_CREATE).orElse(appaid);
 
-                // --create <aid> (--applet <aid> --package <aid> or --cap <cap>)
-                if (args.has(OPT_CREATE) && !args.has(OPT_INSTALL)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
-                    AID packageAID = null;
-                    AID appletAID = null;
+            Set<Privilege> privs = getPrivileges(args);
 
-                    // Load AID-s from cap if present
-                    if (cap != null) {
-                        packageAID = cap.getPackageAID();
+            // Load CAP
+            loadCAP(args, gp, capfile);
 
-                        if (cap.getAppletAIDs().size() > 1 && !args.has(OPT_APPLET)) {
-                            throw new IllegalArgumentException("There should be only one applet in CAP. Use --" + OPT_APPLET + " to specify one of " + cap.getAppletAIDs());
-                        }
-                        appletAID = cap.getAppletAIDs().get(0);
-                    }
+            // Remove existing default app FIXME: document. this might be non-obvious
+            if (args.has(OPT_FORCE) && (reg.getDefaultSelectedAID().isPresent() && privs.contains(Privilege.CardReset))) {
+                System.err.println("NOTE: Force-removing current default selected applet instance: " + reg.getDefaultSelectedAID().get());
+                gp.deleteAID(reg.getDefaultSelectedAID().get(), false);
+            }
 
-                    // override
-                    if (args.has(OPT_PACKAGE)) {
-                        packageAID = args.valueOf(OPT_PACKAGE);
-                    }
-                    if (args.has(OPT_APPLET)) {
-                        appletAID = args.valueOf(OPT_APPLET);
-                    }
+            // warn
+            if (gp.getRegistry().allAppletAIDs().contains(instanceaid)) {
+                System.err.println("WARNING: Applet " + instanceaid + " already present on card");
+                if (args.has(OPT_FORCE)) {
+                    gp.deleteAID(instanceaid, false);
+                }
+            }
 
-                    // check
-                    if (packageAID == null || appletAID == null)
-                        throw new IllegalArgumentException("Need --" + OPT_PACKAGE + " and --" + OPT_APPLET + " or --" + OPT_CAP);
+            // Parameters
+            byte[] params = args.has(OPT_PARAMS) ? args.valueOf(OPT_PARAMS).value() : new byte[0];
 
-                    AID instanceAID = args.valueOf(OPT_CREATE);
+            // shoot
+            gp.installAndMakeSelectable(capfile.getPackageAID(), appaid, instanceaid, privs, params);
+        }
 
-                    // warn
-                    if (gp.getRegistry().allAIDs().contains(appletAID)) {
-                        System.err.println("WARNING: Applet " + appletAID + " already present on card");
-                    }
 
-                    // Privileges
-                    Set<Privilege> privs = getPrivileges(args);
+        // --create <aid> (--applet <aid> --package <aid> or --cap <cap>)
+        if (args.has(OPT_CREATE) && !args.has(OPT_INSTALL)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
+            AID packageAID = null;
+            AID appletAID = null;
 
-                    // Parameters
-                    byte[] params = optional(args, OPT_PARAMS).map(HexBytes::value).orElse(new byte[0]);
+            // Load AID-s from cap if present
+            if (cap != null) {
+                packageAID = cap.getPackageAID();
 
-                    // shoot
-                    gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, privs, params);
+                if (cap.getAppletAIDs().size() > 1 && !args.has(OPT_APPLET)) {
+                    throw new IllegalArgumentException("There should be only one applet in CAP. Use --" + OPT_APPLET + " to specify one of " + cap.getAppletAIDs());
                 }
+                appletAID = cap.getAppletAIDs().get(0);
+            }
 
-                // --domain <AID>
-                if (args.has(OPT_DOMAIN)) {
-                    // Validate parameters
-                    BerTlvParser tlvparser = new BerTlvParser();
-                    BerTlvs parameters = null;
-
-                    byte[] params;
-                    // If parameters given by user
-                    if (args.has(OPT_PARAMS)) {
-                        params = args.valueOf(OPT_PARAMS).value();
-                        // Try to parse
-                        try {
-                            parameters = tlvparser.parse(params); // this throws
-                        } catch (Exception e) {
-                            // and fail if what is given is not TLV that we can modify.
-                            if (args.has(OPT_ALLOW_FROM) || args.has(OPT_ALLOW_TO))
-                                throw new IllegalArgumentException(OPT_ALLOW_FROM + " and " + OPT_ALLOW_TO + " not available, could not parse parameters: " + HexUtils.bin2hex(params));
-                            // If we don't need to modify parameters, just give a handy warning
-                            System.err.println("Warning: could not parse parameters as TLV: " + HexUtils.bin2hex(params));
-                        }
-                    } else {
-                        params = new byte[0];
-                        // This results in empty non-null parameters
-                        parameters = tlvparser.parse(params);
-                    }
+            // override
+            if (args.has(OPT_PACKAGE)) {
+                packageAID = args.valueOf(OPT_PACKAGE);
+            }
+            if (args.has(OPT_APPLET)) {
+                appletAID = args.valueOf(OPT_APPLET);
+            }
 
-                    // Default AID-s
-                    final AID packageAID;
-                    final AID appletAID;
+            // check
+            if (packageAID == null || appletAID == null)
+                throw new IllegalArgumentException("Need --" + OPT_PACKAGE + " and --" + OPT_APPLET + " or --" + OPT_CAP);
 
-                    // Override if necessary
-                    if (args.has(OPT_PACKAGE) && args.has(OPT_APPLET)) {
-                        packageAID = args.valueOf(OPT_PACKAGE);
-                        appletAID = args.valueOf(OPT_APPLET);
-                    } else {
-                        // But query registry for defaults. Default to "new"
-                        packageAID = gp.getRegistry().allPackageAIDs().contains(new AID("A0000000035350")) ? new AID("A0000000035350") : new AID("A0000001515350");
-                        appletAID = gp.getRegistry().allPackageAIDs().contains(new AID("A0000000035350")) ? new AID("A000000003535041") : new AID("A000000151535041");
-                        verbose("Note: using detected default AID-s for SSD instantiation: " + appletAID + " from " + packageAID);
-                    }
-                    AID instanceAID = args.valueOf(OPT_DOMAIN);
+            AID instanceAID = args.valueOf(OPT_CREATE);
 
-                    // Extra privileges
-                    Set<Privilege> privs = getPrivileges(args);
-                    privs.add(Privilege.SecurityDomain);
-
-                    // By default same SCP as current
-                    if (!args.has(OPT_SAD) && !gp.getProfile().oldStyleSSDParameters()) {
-                        if (parameters != null && parameters.find(new BerTag(0x81)) == null) {
-                            params = GPUtils.concatenate(params, new byte[]{(byte) 0x81, 0x02, gp.getSecureChannel().scp.getValue(), (byte) gp.getSecureChannel().i});
-                        } else {
-                            System.err.println("Notice: 0x81 already in parameters or no parameters");
-                        }
-                    }
+            // warn
+            if (gp.getRegistry().allAIDs().contains(appletAID)) {
+                System.err.println("WARNING: Applet " + appletAID + " already present on card");
+            }
 
-                    // Extradition rules
-                    if (args.has(OPT_ALLOW_TO)) {
-                        if (parameters != null)
-                            if (parameters.find(new BerTag(0x82)) == null) {
-                                params = GPUtils.concatenate(params, new byte[]{(byte) 0x82, 0x02, 0x20, 0x20});
-                            } else {
-                                System.err.println("Warning: 0x82 already in parameters, " + OPT_ALLOW_TO + " not applied");
-                            }
-                    }
+            // Privileges
+            Set<Privilege> privs = getPrivileges(args);
 
-                    if (args.has(OPT_ALLOW_FROM)) {
-                        if (parameters != null) {
-                            if (parameters.find(new BerTag(0x87)) == null) {
-                                params = GPUtils.concatenate(params, new byte[]{(byte) 0x87, 0x02, 0x20, 0x20});
-                            } else {
-                                System.err.println("Warning: 0x87 already in parameters, " + OPT_ALLOW_FROM + " not applied");
-                            }
-                        }
-                    }
+            // Parameters
+            byte[] params = optional(args, OPT_PARAMS).map(HexBytes::value).orElse(new byte[0]);
 
-                    // Old style actually only allows one parameter, the 45
-                    if (args.has(OPT_ALLOW_TO) && gp.getProfile().oldStyleSSDParameters()) {
-                        params = HexUtils.hex2bin("C90145");
-                    }
+            // shoot
+            gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, privs, params);
+        }
 
-                    if (parameters != null || args.has(OPT_ALLOW_TO) || args.has(OPT_ALLOW_FROM)) {
-                        verbose(String.format("Final parameters: %s", HexUtils.bin2hex(params)));
-                    }
-                    // shoot
-                    gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, privs, params);
+        // --domain <AID>
+        if (args.has(OPT_DOMAIN)) {
+            // Validate parameters
+            BerTlvParser tlvparser = new BerTlvParser();
+            BerTlvs parameters = null;
+
+            byte[] params;
+            // If parameters given by user
+            if (args.has(OPT_PARAMS)) {
+                params = args.valueOf(OPT_PARAMS).value();
+                // Try to parse
+                try {
+                    parameters = tlvparser.parse(params); // this throws
+                } catch (Exception e) {
+                    // and fail if what is given is not TLV that we can modify.
+                    if (args.has(OPT_ALLOW_FROM) || args.has(OPT_ALLOW_TO))
+                        throw new IllegalArgumentException(OPT_ALLOW_FROM + " and " + OPT_ALLOW_TO + " not available, could not parse parameters: " + HexUtils.bin2hex(params));
+                    // If we don't need to modify parameters, just give a handy warning
+                    System.err.println("Warning: could not parse parameters as TLV: " + HexUtils.bin2hex(params));
                 }
+            } else {
+                params = new byte[0];
+                // This results in empty non-null parameters
+                parameters = tlvparser.parse(params);
+            }
 
-                // --move <AID>
-                if (args.has(OPT_MOVE)) {
-                    if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
-                        warnIfNoDelegatedManagement(gp);
-                    AID what = args.valueOf(OPT_MOVE);
-                    AID to = args.valueOf(OPT_TO);
-                    gp.extradite(what, to);
-                }
+            // Default AID-s
+            final AID packageAID;
+            final AID appletAID;
 
-                // --store-data <XX>
-                // This will split the data, if necessary
-                if (args.has(OPT_STORE_DATA)) {
-                    List<byte[]> blobs = args.valuesOf(OPT_STORE_DATA).stream().map(HexBytes::value).collect(Collectors.toList());
-                    for (byte[] blob : blobs) {
-                        if (args.has(OPT_APPLET)) {
-                            gp.personalize(args.valueOf(OPT_APPLET), blob, 0x01);
-                        } else {
-                            gp.storeData(blob, 0x1);
-                        }
-                    }
+            // Override if necessary
+            if (args.has(OPT_PACKAGE) && args.has(OPT_APPLET)) {
+                packageAID = args.valueOf(OPT_PACKAGE);
+                appletAID = args.valueOf(OPT_APPLET);
+            } else {
+                // But query registry for defaults. Default to "new"
+                packageAID = gp.getRegistry().allPackageAIDs().contains(new AID("A0000000035350")) ? new AID("A0000000035350") : new AID("A0000001515350");
+                appletAID = gp.getRegistry().allPackageAIDs().contains(new AID("A0000000035350")) ? new AID("A000000003535041") : new AID("A000000151535041");
+                verbose("Note: using detected default AID-s for SSD instantiation: " + appletAID + " from " + packageAID);
+            }
+            AID instanceAID = args.valueOf(OPT_DOMAIN);
+
+            // Extra privileges
+            Set<Privilege> privs = getPrivileges(args);
+            privs.add(Privilege.SecurityDomain);
+
+            // By default same SCP as current
+            if (!args.has(OPT_SAD) && !gp.getProfile().oldStyleSSDParameters()) {
+                if (parameters != null && parameters.find(new BerTag(0x81)) == null) {
+                    params = GPUtils.concatenate(params, new byte[]{(byte) 0x81, 0x02, gp.getSecureChannel().scp.getValue(), (byte) gp.getSecureChannel().i});
+                } else {
+                    System.err.println("Notice: 0x81 already in parameters or no parameters");
                 }
+            }
 
-                // --store-data-chunk
-                // This will collect the chunks and send them one by one
-                if (args.has(OPT_STORE_DATA_CHUNK)) {
-                    List<byte[]> blobs = args.valuesOf(OPT_STORE_DATA_CHUNK).stream().map(HexBytes::value).collect(Collectors.toList());
-                    if (args.has(OPT_APPLET)) {
-                        gp.personalize(args.valueOf(OPT_APPLET), blobs, 0x01);
+            // Extradition rules
+            if (args.has(OPT_ALLOW_TO)) {
+                if (parameters != null)
+                    if (parameters.find(new BerTag(0x82)) == null) {
+                        params = GPUtils.concatenate(params, new byte[]{(byte) 0x82, 0x02, 0x20, 0x20});
                     } else {
-                        gp.storeData(blobs, 0x1);
+                        System.err.println("Warning: 0x82 already in parameters, " + OPT_ALLOW_TO + " not applied");
                     }
-                }
+            }
 
-                // --lock-card
-                if (args.has(OPT_LOCK_CARD)) {
-                    gp.setCardStatus(GPData.lockedStatus);
-                }
-                // --unlock-card
-                if (args.has(OPT_UNLOCK_CARD)) {
-                    gp.setCardStatus(GPData.securedStatus);
-                }
-                // --initialize-card
-                if (args.has(OPT_INITIALIZE_CARD)) {
-                    gp.setCardStatus(GPData.initializedStatus);
-                }
-                // --secure-card
-                if (args.has(OPT_SECURE_CARD)) {
-                    // Skip INITIALIZED
-                    GPRegistryEntry isd = gp.getRegistry().getISD().orElseThrow(() -> new GPException("ISD not present, are you in a subtree?"));
-                    if (isd.getLifeCycle() != GPData.initializedStatus && args.has(OPT_FORCE)) {
-                        System.out.println("Note: forcing status to INITIALIZED");
-                        gp.setCardStatus(GPData.initializedStatus);
+            if (args.has(OPT_ALLOW_FROM)) {
+                if (parameters != null) {
+                    if (parameters.find(new BerTag(0x87)) == null) {
+                        params = GPUtils.concatenate(params, new byte[]{(byte) 0x87, 0x02, 0x20, 0x20});
+                    } else {
+                        System.err.println("Warning: 0x87 already in parameters, " + OPT_ALLOW_FROM + " not applied");
                     }
-                    gp.setCardStatus(GPData.securedStatus);
                 }
+            }
 
-                // --lock-applet <aid>
-                if (args.has(OPT_LOCK_APPLET)) {
-                    gp.lockUnlockApplet(args.valueOf(OPT_LOCK_APPLET), true);
-                }
+            // Old style actually only allows one parameter, the 45
+            if (args.has(OPT_ALLOW_TO) && gp.getProfile().oldStyleSSDParameters()) {
+                params = HexUtils.hex2bin("C90145");
+            }
 
-                // --unlock-applet <AID>
-                if (args.has(OPT_UNLOCK_APPLET)) {
-                    gp.lockUnlockApplet(args.valueOf(OPT_UNLOCK_APPLET), false);
-                }
+            if (parameters != null || args.has(OPT_ALLOW_TO) || args.has(OPT_ALLOW_FROM)) {
+                verbose(String.format("Final parameters: %s", HexUtils.bin2hex(params)));
+            }
+            // shoot
+            gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, privs, params);
+        }
 
-                // --list
-                if (args.has(OPT_LIST)) {
-                    GPCommands.listRegistry(gp.getRegistry(), System.out, args.has(OPT_VERBOSE));
-                }
+        // --move <AID>
+        if (args.has(OPT_MOVE)) {
+            if (!args.has(OPT_FORCE) && !args.has(OPT_SAD))
+                warnIfNoDelegatedManagement(gp);
+            AID what = args.valueOf(OPT_MOVE);
+            AID to = args.valueOf(OPT_TO);
+            gp.extradite(what, to);
+        }
 
-                // --delete-key
-                if (args.has(OPT_DELETE_KEY)) {
-                    int keyver = args.valueOf(OPT_DELETE_KEY);
-                    System.out.println("Deleting key " + GPUtils.intString(keyver));
-                    gp.deleteKey(keyver, null);
+        // --store-data <XX>
+        // This will split the data, if necessary
+        if (args.has(OPT_STORE_DATA)) {
+            List<byte[]> blobs = args.valuesOf(OPT_STORE_DATA).stream().map(HexBytes::value).collect(Collectors.toList());
+            for (byte[] blob : blobs) {
+                if (args.has(OPT_APPLET)) {
+                    gp.personalize(args.valueOf(OPT_APPLET), blob, 0x01);
+                } else {
+                    gp.storeData(blob, 0x1);
                 }
+            }
+        }
 
+        // --store-data-chunk
+        // This will collect the chunks and send them one by one
+        if (args.has(OPT_STORE_DATA_CHUNK)) {
+            List<byte[]> blobs = args.valuesOf(OPT_STORE_DATA_CHUNK).stream().map(HexBytes::value).collect(Collectors.toList());
+            if (args.has(OPT_APPLET)) {
+                gp.personalize(args.valueOf(OPT_APPLET), blobs, 0x01);
+            } else {
+                gp.storeData(blobs, 0x1);
+            }
+        }
+
+        // --lock-card
+        if (args.has(OPT_LOCK_CARD)) {
+            gp.setCardStatus(GPData.lockedStatus);
+        }
+        // --unlock-card
+        if (args.has(OPT_UNLOCK_CARD)) {
+            gp.setCardStatus(GPData.securedStatus);
+        }
+        // --initialize-card
+        if (args.has(OPT_INITIALIZE_CARD)) {
+            gp.setCardStatus(GPData.initializedStatus);
+        }
+        // --secure-card
+        if (args.has(OPT_SECURE_CARD)) {
+            // Skip INITIALIZED
+            GPRegistryEntry isd = gp.getRegistry().getISD().orElseThrow(() -> new GPException("ISD not present, are you in a subtree?"));
+            if (isd.getLifeCycle() != GPData.initializedStatus && args.has(OPT_FORCE)) {
+                human().println("Note: forcing status to INITIALIZED");
+                gp.setCardStatus(GPData.initializedStatus);
+            }
+            gp.setCardStatus(GPData.securedStatus);
+        }
+
+        // --lock-applet <aid>
+        if (args.has(OPT_LOCK_APPLET)) {
+            gp.lockUnlockApplet(args.valueOf(OPT_LOCK_APPLET), true);
+        }
+
+        // --unlock-applet <AID>
+        if (args.has(OPT_UNLOCK_APPLET)) {
+            gp.lockUnlockApplet(args.valueOf(OPT_UNLOCK_APPLET), false);
+        }
+
+        // --list
+        if (args.has(OPT_LIST)) {
+            if (output != null)
+                output.registry(gp.getRegistry());
+            else
+                GPCommands.listRegistry(gp.getRegistry(), System.out, args.has(OPT_VERBOSE));
+        }
+
+        // --delete-key
+        if (args.has(OPT_DELETE_KEY)) {
+            int keyver = args.valueOf(OPT_DELETE_KEY);
+            human().println("Deleting key " + GPUtils.intString(keyver));
+            gp.deleteKey(keyver, null);
+        }
 
-                // --lock
-                if (args.has(OPT_LOCK) || args.has(OPT_LOCK_ENC) || args.has(OPT_LOCK_MAC) || args.has(OPT_LOCK_DEK)) {
-                    final GPCardKeys newKeys;
-                    // By default we try to change an existing key
-                    boolean replace = true;
-
-                    // Get new key values
-                    Optional<GPCardKeys> lockKey = keyFromPlugin(args.valueOf(OPT_LOCK));
-                    // From provider
-                    newKeys = lockKey.
-                            orElseGet(() -> PlaintextKeys.fromBytes(args.valueOf(OPT_LOCK_ENC).value(), args.valueOf(OPT_LOCK_MAC).value(), args.valueOf(OPT_LOCK_DEK).value(), HexBytes.v(args.valueOf(OPT_LOCK)).v(), args.valueOf(OPT_LOCK_KDF), null, args.valueOf(OPT_NEW_KEY_VERSION)).
-                                    orElseThrow(() -> new IllegalArgumentException("Can not lock without keys :)")));
-
-                    if (newKeys instanceof PlaintextKeys) {
-                        // Adjust the mode and version with plaintext keys
-                        PlaintextKeys pk = (PlaintextKeys) newKeys;
-                        List<GPKeyInfo> current = gp.getKeyInfoTemplate();
-                        // By default use key version 1
-                        final int keyver;
-                        if (args.has(OPT_NEW_KEY_VERSION)) {
-                            keyver = args.valueOf(OPT_NEW_KEY_VERSION);
-                            // Key version is indicated, check if already present on card
-                            if (current.stream().noneMatch(e -> (e.getVersion() == keyver)) || gp.getScpKeyVersion() == 255) {
-                                replace = false;
-                            }
-                        } else {
-                            if (current.size() == 0 || gp.getScpKeyVersion() == 255) {
-                                keyver = 1;
-                                replace = false;
-                            } else {
-                                keyver = gp.getScpKeyVersion();
-                            }
-                        }
-                        pk.setVersion(keyver);
-                    }
 
-                    // Diversify new keys
-                    int keyver = newKeys.getKeyInfo().getVersion();
-                    verbose("Keyset version: " + keyver);
-
-                    // Only SCP02 via SCP03 should be possible, but cards vary
-                    byte[] kdd = newKeys.getKDD().orElseGet(() -> keys.getKDD().get());
-
-                    verbose("Looking at key version for diversification method");
-                    if (keyver >= 0x10 && keyver <= 0x1F)
-                        newKeys.diversify(SCP01, kdd);
-                    else if (keyver >= 0x20 && keyver <= 0x2F)
-                        newKeys.diversify(SCP02, kdd);
-                    else if (keyver >= 0x30 && keyver <= 0x3F)
-                        newKeys.diversify(SCP03, kdd);
-                    else
-                        newKeys.diversify(gp.getSecureChannel().scp, kdd);
-
-                    gp.putKeys(newKeys, replace);
-
-                    if (args.has(OPT_LOCK) && newKeys instanceof PlaintextKeys) {
-                        PlaintextKeys pk = (PlaintextKeys) newKeys;
-                        if (pk.getMasterKey().isPresent())
-                            System.out.println(gp.getAID() + " locked with: " + HexUtils.bin2hex(pk.getMasterKey().get()));
-                        if (pk.kdf != null)
-                            System.out.println("Keys were diversified with " + pk.kdf + " and " + HexUtils.bin2hex(kdd));
-                        System.out.println("Write this down, DO NOT FORGET/LOSE IT!");
+        // --lock
+        if (args.has(OPT_LOCK) || args.has(OPT_LOCK_ENC) || args.has(OPT_LOCK_MAC) || args.has(OPT_LOCK_DEK)) {
+            final GPCardKeys newKeys;
+            // By default we try to change an existing key
+            boolean replace = true;
+
+            // Get new key values
+            Optional<GPCardKeys> lockKey = keyFromPlugin(args.valueOf(OPT_LOCK));
+            // From provider
+            newKeys = lockKey.
+                    orElseGet(() -> PlaintextKeys.fromBytes(args.valueOf(OPT_LOCK_ENC).value(), args.valueOf(OPT_LOCK_MAC).value(), args.valueOf(OPT_LOCK_DEK).value(), HexBytes.v(args.valueOf(OPT_LOCK)).v(), args.valueOf(OPT_LOCK_KDF), null, args.valueOf(OPT_NEW_KEY_VERSION)).
+                            orElseThrow(() -> new IllegalArgumentException("Can not lock without keys :)")));
+
+            if (newKeys instanceof PlaintextKeys) {
+                // Adjust the mode and version with plaintext keys
+                PlaintextKeys pk = (PlaintextKeys) newKeys;
+                List<GPKeyInfo> current = gp.getKeyInfoTemplate();
+                // By default use key version 1
+                final int keyver;
+                if (args.has(OPT_NEW_KEY_VERSION)) {
+                    keyver = args.valueOf(OPT_NEW_KEY_VERSION);
+                    // Key version is indicated, check if already present on card
+                    if (current.stream().noneMatch(e -> (e.getVersion() == keyver)) || gp.getScpKeyVersion() == 255) {
+                        replace = false;
+                    }
+                } else {
+                    if (current.size() == 0 || gp.getScpKeyVersion() == 255) {
+                        keyver = 1;
+                        replace = false;
                     } else {
-                        System.out.println("Card locked with new keys.");
-                        System.out.println("Write them down, DO NOT FORGET/LOSE THEM!");
+                        keyver = gp.getScpKeyVersion();
                     }
                 }
+                pk.setVersion(keyver);
+            }
 
-                // --make-default <aid>
-                if (args.has(OPT_MAKE_DEFAULT)) {
-                    gp.makeDefaultSelected(args.valueOf(OPT_MAKE_DEFAULT));
-                }
+            // Diversify new keys
+            int keyver = newKeys.getKeyInfo().getVersion();
+            verbose("Keyset version: " + keyver);
+
+            // Only SCP02 via SCP03 should be possible, but cards vary
+            byte[] kdd = newKeys.getKDD().orElseGet(() -> keys.getKDD().get());
+
+            verbose("Looking at key version for diversification method");
+            if (keyver >= 0x10 && keyver <= 0x1F)
+                newKeys.diversify(SCP01, kdd);
+            else if (keyver >= 0x20 && keyver <= 0x2F)
+                newKeys.diversify(SCP02, kdd);
+            else if (keyver >= 0x30 && keyver <= 0x3F)
+                newKeys.diversify(SCP03, kdd);
+            else
+                newKeys.diversify(gp.getSecureChannel().scp, kdd);
+
+            gp.putKeys(newKeys, replace);
+
+            if (args.has(OPT_LOCK) && newKeys instanceof PlaintextKeys) {
+                PlaintextKeys pk = (PlaintextKeys) newKeys;
+                if (pk.getMasterKey().isPresent())
+                    human().println(gp.getAID() + " locked with: " + HexUtils.bin2hex(pk.getMasterKey().get()));
+                if (pk.kdf != null)
+                    human().println("Keys were diversified with " + pk.kdf + " and " + HexUtils.bin2hex(kdd));
+                human().println("Write this down, DO NOT FORGET/LOSE IT!");
+            } else {
+                human().println("Card locked with new keys.");
+                human().println("Write them down, DO NOT FORGET/LOSE THEM!");
+            }
+        }
 
-                // --rename-isd
-                if (args.has(OPT_RENAME_ISD)) {
-                    gp.renameISD(args.valueOf(OPT_RENAME_ISD));
-                }
+        // --make-default <aid>
+        if (args.has(OPT_MAKE_DEFAULT)) {
+            gp.makeDefaultSelected(args.valueOf(OPT_MAKE_DEFAULT));
+        }
 
-                // --set-pre-perso
-                if (args.has(OPT_SET_PRE_PERSO)) {
-                    byte[] payload = args.valueOf(OPT_SET_PRE_PERSO).value();
-                    if (args.has(OPT_TODAY)) {
-                        System.arraycopy(GPData.CPLC.today(), 0, payload, 2, 2);
-                    }
-                    GPCommands.setPrePerso(gp, payload);
-                }
+        // --rename-isd
+        if (args.has(OPT_RENAME_ISD)) {
+            gp.renameISD(args.valueOf(OPT_RENAME_ISD));
+        }
 
-                // --set-perso
-                if (args.has(OPT_SET_PERSO)) {
-                    byte[] payload = args.valueOf(OPT_SET_PERSO).value();
-                    if (args.has(OPT_TODAY)) {
-                        System.arraycopy(GPData.CPLC.today(), 0, payload, 2, 2);
-                    }
-                    GPCommands.setPerso(gp, payload);
-                }
+        // --set-pre-perso
+        if (args.has(OPT_SET_PRE_PERSO)) {
+            byte[] payload = args.valueOf(OPT_SET_PRE_PERSO).value();
+            if (args.has(OPT_TODAY)) {
+                System.arraycopy(GPData.CPLC.today(), 0, payload, 2, 2);
             }
-            return 0;
+            GPCommands.setPrePerso(gp, payload);
+        }
+
+        // --set-perso
+        if (args.has(OPT_SET_PERSO)) {
+            byte[] payload = args.valueOf(OPT_SET_PERSO).value();
+            if (args.has(OPT_TODAY)) {
+                System.arraycopy(GPData.CPLC.today(), 0, payload, 2, 2);
+            }
+            GPCommands.setPerso(gp, payload);
+        }
+        return 0;
+    }
+
+    // In finally blocks, so must not hide the error of the operation itself
+    private void closeLogicalChannel(APDUBIBO channel, int number) {
+        try {
+            LogicalChannel.close(channel, number);
+            verbose("Closed logical channel " + number);
+        } catch (RuntimeException e) {
+            System.err.println("# Warning: could not close logical channel " + number + ": " + e.getMessage());
+        }
+    }
+
+    private void closeOutput() {
+        if (output == null)
+            return;
+        try {
+            output.close();
         } catch (IOException e) {
-            System.err.println("ERROR: " + e.getMessage());
-            if (isTrace)
-                e.printStackTrace();
+            System.err.println("# Warning: could not write output: " + e.getMessage());
+        }
+        output = null;
+    }
+
+    // Metrics are written also if the operation failed
+    private void exportMetrics() {
+        if (metrics == null)
+            return;
+        try {
+            metrics.export(metricsFile.toPath());
+            verbose("Wrote APDU metrics to " + metricsFile);
+        } catch (IOException e) {
+            System.err.println("# Warning: could not write metrics: " + e.getMessage());
         }
-        // Other exceptions escape. fin.
-        return 1;
     }
 
     private void warnIfNoDelegatedManagement(GPSession session) throws IOException {
@@ -846,21 +1113,29 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
     }
 
 
+    private static CardKeysRegistry keyProviders = null;
+
     private static Optional<GPCardKeys> keyFromPlugin(String spec) {
-        try {
-            ServiceLoader<CardKeysProvider> sl = ServiceLoader.load(CardKeysProvider.class, GPTool.class.getClassLoader());
-            List<CardKeysProvider> list = new ArrayList<>();
-            sl.iterator().forEachRemaining(list::add);
-            return list.stream().map(e -> e.getCardKeys(spec)).filter(Optional::isPresent).map(Optional::get).findFirst();
-        } catch (ServiceConfigurationError e) {
-            System.err.println("Could not load key provider: " + e.getMessage());
+        return keyProviders().getCardKeys(spec);
+    }
+
+    // Discovered once per process, shared by daemon, fleet and batch runs
+    static synchronized CardKeysRegistry keyProviders() {
+        if (keyProviders == null)
+            keyProviders = CardKeysRegistry.load(GPTool.class.getClassLoader());
+        return keyProviders;
+    }
+
+    static synchronized void closeKeyProviders() {
+        if (keyProviders != null) {
+            keyProviders.close();
+            keyProviders = null;
         }
-        return Optional.empty();
     }
 
 
     // Extract parameters and call GPCommands.load()
-    private static void loadCAP(OptionSet args, GPSession gp, CAPFile capFile) throws GPException, IOException {
+    private void loadCAP(OptionSet args, GPSession gp, CAPFile capFile) throws GPException, IOException {
         try {
             AID to = optional(args, OPT_TO).orElse(gp.getAID());
             AID dapDomain = optional(args, OPT_DAP_DOMAIN).orElse(null);
@@ -900,9 +1175,18 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
             if (targetDomain.hasPrivilege(Privilege.DelegatedManagement) || dapRequired || lfdbh != null) {
                 lfdbh = Optional.ofNullable(lfdbh).orElse(GPData.LFDBH.SHA1);
             }
-            gp.loadCapFile(capFile, to, dapDomain, signature, lfdbh);
+            // Progress line on a console, every block in verbose mode. Throughput is always shown
+            boolean console = System.console() != null;
+            LoadProgressPrinter progress = new LoadProgressPrinter(console && !isVerbose ? System.err : null, isVerbose ? human() : null);
+            gp.setLoadListener(progress);
+            try {
+                gp.loadCapFile(capFile, to, dapDomain, signature, lfdbh);
+            } finally {
+                gp.setLoadListener(null);
+            }
 
-            System.out.printf("%s loaded: %s %s%n", capFile.getFile().map(Path::toString).orElse("CAP"), capFile.getPackageName(), capFile.getPackageAID());
+            human().printf("%s loaded: %s %s%n", capFile.getFile().map(Path::toString).orElse("CAP"), capFile.getPackageName(), capFile.getPackageAID());
+            human().println("# " + progress.summary());
         } catch (GPException e) {
             switch (e.sw) {
                 case 0x6A80:
@@ -954,7 +1238,7 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                     p = args.valueOf(OPT_CAP).toPath();
                 }
                 // Load CAP file
-                cap = CAPFile.fromFile(p);
+                cap = readCAP(p);
 
                 // PKG comes from CAP file
                 pkg = cap.getPackageAID();
@@ -1011,7 +1295,7 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
     private static List<CAPFile> getCapFileList(OptionSet args, OptionSpec<File> arg) {
         return args.valuesOf(arg).stream().map(File::toPath).map(e -> {
             try {
-                return CAPFile.fromFile(e);
+                return readCAP(e);
             } catch (IOException x) {
                 throw new IllegalArgumentException("Could not read CAP: " + x.getMessage());
             }
@@ -1023,14 +1307,19 @@ public final class GPTool extends GPCommandLineInterface implements SimpleSmartC
                 OPT_LOCK, OPT_LOCK_ENC, OPT_LOCK_MAC, OPT_LOCK_DEK, OPT_MAKE_DEFAULT,
                 OPT_UNINSTALL, OPT_SECURE_APDU, OPT_DOMAIN, OPT_LOCK_CARD, OPT_UNLOCK_CARD, OPT_LOCK_APPLET, OPT_UNLOCK_APPLET,
                 OPT_STORE_DATA, OPT_STORE_DATA_CHUNK, OPT_INITIALIZE_CARD, OPT_SECURE_CARD, OPT_RENAME_ISD, OPT_SET_PERSO, OPT_SET_PRE_PERSO, OPT_MOVE,
-                OPT_PUT_KEY, OPT_REPLACE_KEY};
+                OPT_PUT_KEY, OPT_REPLACE_KEY, OPT_BATCH};
 
         return Arrays.stream(yes).anyMatch(args::has);
     }
 
+    // Human readable text goes to stderr when stdout carries --output records
+    private PrintStream human() {
+        return output == null ? System.out : System.err;
+    }
+
     private void verbose(String s) {
         if (isVerbose) {
-            System.out.println("# " + s);
+            human().println("# " + s);
         }
     }
 }
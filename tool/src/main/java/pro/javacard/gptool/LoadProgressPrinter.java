@@ -0,0 +1,65 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import pro.javacard.gp.LoadListener;
+
+import java.io.PrintStream;
+
+// Shows a progress line (on a console) or a line per block (verbose) while loading, and a throughput summary afterwards
+class LoadProgressPrinter implements LoadListener {
+    // Either may be null
+    private final PrintStream progressLine;
+    private final PrintStream blocks;
+
+    private long wrapNanos = 0;
+    private long roundTripNanos = 0;
+    private Progress last = null;
+
+    LoadProgressPrinter(PrintStream progressLine, PrintStream blocks) {
+        this.progressLine = progressLine;
+        this.blocks = blocks;
+    }
+
+    @Override
+    public void blockLoaded(Progress progress) {
+        wrapNanos += progress.getWrapNanos();
+        roundTripNanos += progress.getRoundTripNanos();
+        last = progress;
+        if (progressLine != null) {
+            progressLine.printf("\r# LOAD %d/%d (%d%%) %d bytes", progress.getIndex() + 1, progress.getTotal(), (progress.getIndex() + 1) * 100 / progress.getTotal(), progress.getTotalBytes());
+            if (progress.isLast())
+                progressLine.println();
+            progressLine.flush();
+        }
+        if (blocks != null) {
+            blocks.printf("# LOAD %d/%d: %d bytes, wrap %d us, round-trip %d us%n", progress.getIndex() + 1, progress.getTotal(), progress.getBytes(),
+                    progress.getWrapNanos() / 1000, progress.getRoundTripNanos() / 1000);
+        }
+    }
+
+    String summary() {
+        if (last == null)
+            return "No LOAD blocks sent";
+        return String.format("LOAD: %d bytes in %d APDU-s, %d ms (wrap %d ms, round-trip %d ms), %.0f bytes/s, %.1f APDU/s",
+                last.getTotalBytes(), last.getIndex() + 1, last.getElapsedNanos() / 1000000, wrapNanos / 1000000, roundTripNanos / 1000000,
+                last.getBytesPerSecond(), last.getAPDUsPerSecond());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import apdu4j.core.ResponseAPDU;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import pro.javacard.capfile.AID;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPKeyInfo;
+import pro.javacard.gp.GPRegistry;
+import pro.javacard.gp.GPRegistryEntry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+// Machine readable output for --output: one record (object with a "type" field) per registry entry,
+// CPLC, GET DATA object, key and APDU response. JSON is one record per line (JSON Lines), with binary as hex;
+// CBOR is a CBOR sequence (RFC 8742), with binary as byte strings. Records are written and flushed
+// one by one through a Jackson generator, nothing is collected in memory.
+final class MachineOutput implements Closeable {
+    enum Format {
+        JSON, CBOR
+    }
+
+    private final Format format;
+    private final JsonGenerator generator;
+
+    MachineOutput(Format format, OutputStream out) throws IOException {
+        this.format = format;
+        if (format == Format.CBOR) {
+            generator = APDUParsers.cbor.getFactory().createGenerator(out);
+        } else {
+            generator = APDUParsers.json.getFactory().createGenerator(out, JsonEncoding.UTF8);
+            // Records are terminated with a newline instead
+            generator.setRootValueSeparator(null);
+        }
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    void registry(GPRegistry registry) throws IOException {
+        for (GPRegistryEntry e : registry) {
+            begin("registry");
+            generator.writeStringField("kind", e.getType().toShortString());
+            bytes("aid", e.getAID().getBytes());
+            generator.writeNumberField("lifecycle", e.getLifeCycle());
+            generator.writeStringField("state", e.getLifeCycleString());
+            if (e.getDomain().isPresent())
+                bytes("parent", e.getDomain().get().getBytes());
+            if (e.getType() == GPRegistryEntry.Kind.ExecutableLoadFile) {
+                if (e.getVersion() != null)
+                    generator.writeStringField("version", e.getVersionString());
+                generator.writeArrayFieldStart("modules");
+                for (AID a : e.getModules())
+                    bytes(a.getBytes());
+                generator.writeEndArray();
+            } else {
+                if (e.getSource().isPresent())
+                    bytes("source", e.getSource().get().getBytes());
+                generator.writeArrayFieldStart("privileges");
+                for (GPRegistryEntry.Privilege p : e.getPrivileges())
+                    generator.writeString(p.toString());
+                generator.writeEndArray();
+                numbers("contact", e.getImplicitlySelectedContact());
+                numbers("contactless", e.getImplicitlySelectedContactless());
+            }
+            end();
+        }
+    }
+
+    // Same information as GPData.dump(). NB! This assumes a selected (I)SD!
+    void info(APDUBIBO channel) throws IOException, GPException {
+        byte[] cplc = GPData.fetchCPLC(channel);
+        if (cplc != null)
+            cplc(GPData.CPLC.fromBytes(cplc));
+        data("IIN", GPData.getData(channel, 0x00, 0x42, "IIN", false));
+        data("CIN", GPData.getData(channel, 0x00, 0x45, "CIN", false));
+        data("KDD", GPData.getData(channel, 0x00, 0xCF, "KDD", false));
+        data("SSC", GPData.getData(channel, 0x00, 0xC1, "SSC", false));
+        data("CardData", GPData.getData(channel, 0x00, 0x66, "Card Data", false));
+        data("CardCapabilities", GPData.getData(channel, 0x00, 0x67, "Card Capabilities", false));
+        byte[] keyInfo = GPData.fetchKeyInfoTemplate(channel);
+        if (keyInfo != null)
+            keys(GPKeyInfo.parseTemplate(keyInfo));
+    }
+
+    void cplc(GPData.CPLC cplc) throws IOException {
+        begin("cplc");
+        for (GPData.CPLC.Field f : GPData.CPLC.Field.values()) {
+            bytes(f.toString(), cplc.get(f));
+            if (f.toString().endsWith("Date")) {
+                Optional<String> date = GPData.CPLC.toRelativeDate(cplc.get(f), LocalDate.now()).map(Object::toString);
+                if (date.isPresent())
+                    generator.writeStringField(f + "ISO", date.get());
+            }
+        }
+        end();
+    }
+
+    // Absent objects are skipped
+    void data(String name, byte[] value) throws IOException {
+        if (value == null)
+            return;
+        begin("data");
+        generator.writeStringField("name", name);
+        bytes("value", value);
+        end();
+    }
+
+    void keys(List<GPKeyInfo> keys) throws IOException {
+        for (GPKeyInfo k : keys) {
+            begin("key");
+            generator.writeNumberField("id", k.getID());
+            generator.writeNumberField("version", k.getVersion());
+            generator.writeStringField("key", k.getType().typeName());
+            generator.writeNumberField("length", k.getLength());
+            end();
+        }
+    }
+
+    void apdu(CommandAPDU command, ResponseAPDU response, boolean secure) throws IOException {
+        begin("apdu");
+        generator.writeBooleanField("secure", secure);
+        bytes("command", command.getBytes());
+        generator.writeNumberField("sw", response.getSW());
+        bytes("data", response.getData());
+        end();
+    }
+
+    private void begin(String type) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", type);
+    }
+
+    private void end() throws IOException {
+        generator.writeEndObject();
+        if (format == Format.JSON)
+            generator.writeRaw('\n');
+        generator.flush();
+    }
+
+    private void bytes(String field, byte[] value) throws IOException {
+        generator.writeFieldName(field);
+        bytes(value);
+    }
+
+    private void bytes(byte[] value) throws IOException {
+        if (format == Format.CBOR)
+            generator.writeBinary(value);
+        else
+            generator.writeString(HexUtils.bin2hex(value));
+    }
+
+    private void numbers(String field, Collection<Integer> values) throws IOException {
+        if (values.isEmpty())
+            return;
+        generator.writeArrayFieldStart(field);
+        for (int v : values)
+            generator.writeNumber(v);
+        generator.writeEndArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+}
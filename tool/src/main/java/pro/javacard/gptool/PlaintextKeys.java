@@ -33,6 +33,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -85,6 +86,12 @@ class PlaintextKeys extends GPCardKeys {
     // Holds card-specific keys. They shall be diversified in-place, as needed
     private HashMap<KeyPurpose, byte[]> cardKeys = new HashMap<>();
 
+    // SCP03 session key derivation for the current card keys, made on first use
+    private SCP03KeySchedule schedule;
+
+    // KCV-s of card keys for the current SCP, computed once. Cleared when keys are diversified
+    private final EnumMap<KeyPurpose, byte[]> kcvs = new EnumMap<>(KeyPurpose.class);
+
     private PlaintextKeys(byte[] master, KDF d) {
         this(master, master, master, d);
         masterKey = master.clone();
@@ -338,7 +345,7 @@ class PlaintextKeys extends GPCardKeys {
                 // Pad with random
                 int n = otherkey.length % 16 + 1;
                 byte[] plaintext = new byte[n * otherkey.length];
-                GPCrypto.random.nextBytes(plaintext);
+                GPCrypto.getRandom().nextBytes(plaintext);
                 System.arraycopy(otherkey, 0, plaintext, 0, otherkey.length);
                 // encrypt
                 return GPCrypto.dek_encrypt_aes(cardKeys.get(KeyPurpose.DEK), plaintext);
@@ -370,6 +377,10 @@ class PlaintextKeys extends GPCardKeys {
 
     @Override
     public byte[] kcv(KeyPurpose p) {
+        return kcvs.computeIfAbsent(p, this::computeKCV).clone();
+    }
+
+    private byte[] computeKCV(KeyPurpose p) {
         byte[] k = cardKeys.get(p);
 
         if (scp == SCP03)
@@ -439,10 +450,21 @@ class PlaintextKeys extends GPCardKeys {
     }
 
 
+    @Override
+    public Optional<SCP03KeySchedule> getKeySchedule() {
+        if (scp != SCP03)
+            return Optional.empty();
+        if (schedule == null || schedule.getBackend() != GPCrypto.getBackend())
+            schedule = new SCP03KeySchedule(cardKeys.get(KeyPurpose.ENC), cardKeys.get(KeyPurpose.MAC));
+        return Optional.of(schedule);
+    }
+
     @Override
     public PlaintextKeys diversify(GPSecureChannelVersion.SCP scp, byte[] kdd) {
         // Set SCP and KDD and diversification state
         super.diversify(scp, kdd);
+        schedule = null;
+        kcvs.clear();
 
         // Do nothing
         if (kdf == null)
@@ -458,14 +480,16 @@ class PlaintextKeys extends GPCardKeys {
 
     @Override
     public String toString() {
+        Map<KeyPurpose, byte[]> kcv = kcvs();
+
         String enc = HexUtils.bin2hex(cardKeys.get(KeyPurpose.ENC));
-        String enc_kcv = HexUtils.bin2hex(kcv(KeyPurpose.ENC));
+        String enc_kcv = HexUtils.bin2hex(kcv.get(KeyPurpose.ENC));
 
         String mac = HexUtils.bin2hex(cardKeys.get(KeyPurpose.MAC));
-        String mac_kcv = HexUtils.bin2hex(kcv(KeyPurpose.MAC));
+        String mac_kcv = HexUtils.bin2hex(kcv.get(KeyPurpose.MAC));
 
         String dek = HexUtils.bin2hex(cardKeys.get(KeyPurpose.DEK));
-        String dek_kcv = HexUtils.bin2hex(kcv(KeyPurpose.DEK));
+        String dek_kcv = HexUtils.bin2hex(kcv.get(KeyPurpose.DEK));
 
         return String.format("ENC=%s (KCV: %s) MAC=%s (KCV: %s) DEK=%s (KCV: %s) for %s%s", enc, enc_kcv, mac, mac_kcv, dek, dek_kcv, scp, kdf == null ? "" : String.format(" with %s", kdf));
     }
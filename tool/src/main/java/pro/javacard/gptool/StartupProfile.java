@@ -0,0 +1,223 @@
+/*
+ * GlobalPlatformPro - GlobalPlatform tool
+ *
+ * Copyright (C) 2023-present Martin Paljak, martin@martinpaljak.net
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package pro.javacard.gptool;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.HexUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Class data sharing (AppCDS) support for gp.jar, Java 13+.
+//
+// train: runs common commands against a scripted card, for creating the archive (done by the appcds profile on Java 13+):
+//   java -XX:ArchiveClassesAtExit=gp.jsa -cp gp.jar pro.javacard.gptool.StartupProfile train [file.cap]
+// benchmark: measures time-to-first-APDU and total run time of fresh JVM-s, without CDS, with the JDK default
+// archive and with the application archive. PC/SC is not involved, so the numbers are the cost of gp itself:
+//   java -cp gp.jar pro.javacard.gptool.StartupProfile benchmark gp.jsa [runs]
+public final class StartupProfile {
+    static final String MARKER = "# first APDU";
+
+    // Common invocations. All of them fail at some point against the scripted card, but only after
+    // argument parsing, CAP parsing, plugin loading, discovery, key derivation and cryptogram calculation
+    static final List<String[]> training = List.of(
+            new String[]{"-V"},
+            new String[]{"-i"},
+            new String[]{"-l"},
+            new String[]{"-l", "-d", "-v"},
+            new String[]{"--key", "404142434445464748494A4B4C4D4E4F", "-l"},
+            new String[]{"--key-enc", "404142434445464748494A4B4C4D4E4F", "--key-mac", "404142434445464748494A4B4C4D4E4F", "--key-dek", "404142434445464748494A4B4C4D4E4F", "-l"},
+            new String[]{"--key", "emv:404142434445464748494A4B4C4D4E4F", "-l"},
+            new String[]{"-a", "00A4040000", "-a", "80CA9F7F00"},
+            new String[]{"--lock", "404142434445464748494A4B4C4D4E4F"},
+            new String[]{"--delete", "A000000617", "-f"}
+    );
+
+    private StartupProfile() {
+    }
+
+    public static void main(String[] argv) throws Exception {
+        String mode = argv.length > 0 ? argv[0] : "";
+        switch (mode) {
+            case "train":
+                train(argv.length > 1 ? Path.of(argv[1]) : null);
+                break;
+            case "probe":
+                probe();
+                break;
+            case "benchmark":
+                if (argv.length < 2) {
+                    System.err.println("Usage: StartupProfile benchmark <archive.jsa> [runs]");
+                    System.exit(1);
+                }
+                benchmark(Path.of(argv[1]), argv.length > 2 ? Integer.parseInt(argv[2]) : 10);
+                break;
+            default:
+                System.err.println("Usage: StartupProfile train [file.cap] | benchmark <archive.jsa> [runs]");
+                System.exit(1);
+        }
+    }
+
+    static void train(Path cap) {
+        List<String[]> commands = new ArrayList<>(training);
+        if (cap != null && Files.isRegularFile(cap)) {
+            commands.add(new String[]{"--cap", cap.toString()});
+            commands.add(new String[]{"--install", cap.toString()});
+            commands.add(new String[]{"--load", cap.toString(), "-v"});
+        }
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        int n = 0;
+        try (PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream(), true, StandardCharsets.UTF_8)) {
+            System.setOut(nowhere);
+            System.setErr(nowhere);
+            for (String[] command : commands) {
+                try {
+                    new GPTool().run(new ScriptedCard(null), command);
+                    n++;
+                } catch (RuntimeException e) {
+                    // Expected, the card is not real
+                    n++;
+                }
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        System.out.printf("# Training: %d command(s)%n", n);
+    }
+
+    // Child of benchmark(): reports the first APDU on stdout and runs to the end
+    static void probe() {
+        PrintStream out = System.out;
+        PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream(), true, StandardCharsets.UTF_8);
+        System.setOut(nowhere);
+        System.setErr(nowhere);
+        new GPTool().run(new ScriptedCard(out), new String[]{"-l"});
+        out.flush();
+    }
+
+    static void benchmark(Path archive, int runs) throws IOException, InterruptedException {
+        if (!Files.isRegularFile(archive))
+            throw new IOException("No such archive: " + archive);
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = System.getProperty("java.class.path");
+
+        String[][] variants = {
+                {"-Xshare:off"},
+                {"-Xshare:auto"},
+                {"-XX:SharedArchiveFile=" + archive, "-Xshare:auto"}
+        };
+        String[] names = {"no CDS", "JDK CDS", "AppCDS"};
+
+        System.out.printf("# Startup: %d run(s) per variant, %s%n", runs, System.getProperty("java.vm.version"));
+        for (int v = 0; v < variants.length; v++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(Arrays.asList(variants[v]));
+            command.addAll(List.of("-cp", classpath, StartupProfile.class.getName(), "probe"));
+
+            // First run warms the file system cache
+            measure(command);
+            long[] first = new long[runs];
+            long[] total = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                long[] r = measure(command);
+                first[i] = r[0];
+                total[i] = r[1];
+            }
+            Arrays.sort(first);
+            Arrays.sort(total);
+            System.out.printf(Locale.ROOT, "%-8s first APDU: median %.1f ms, min %.1f ms; exit: median %.1f ms, min %.1f ms%n",
+                    names[v], first[runs / 2] / 1e6, first[0] / 1e6, total[runs / 2] / 1e6, total[0] / 1e6);
+        }
+    }
+
+    // Nanoseconds from process start to the first APDU, and to exit
+    static long[] measure(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        Process p = pb.start();
+        long first = -1;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (first < 0 && line.equals(MARKER))
+                    first = System.nanoTime() - start;
+            }
+        }
+        int code = p.waitFor();
+        long total = System.nanoTime() - start;
+        if (first < 0)
+            throw new IOException("Probe did not send an APDU, exit code " + code);
+        return new long[]{first, total};
+    }
+
+    // Answers like a card with a security domain, but any secure channel fails at the card cryptogram
+    static final class ScriptedCard implements BIBO {
+        static final byte[] FCI = HexUtils.hex2bin("6F108408A000000151000000A5049F6501FF9000");
+        // Diversification data, key version 0x30, SCP03 i=0x00, card challenge, card cryptogram
+        static final byte[] INITIALIZE_UPDATE = HexUtils.hex2bin("00".repeat(10) + "300300" + "11".repeat(8) + "22".repeat(8) + "9000");
+
+        private final PrintStream marker;
+        private boolean first = true;
+
+        ScriptedCard(PrintStream marker) {
+            this.marker = marker;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) throws BIBOException {
+            if (first && marker != null) {
+                marker.println(MARKER);
+                marker.flush();
+            }
+            first = false;
+            if (command.length < 4)
+                return HexUtils.hex2bin("6700");
+            switch (command[1] & 0xFF) {
+                case 0xA4:
+                    return FCI.clone();
+                case 0x50:
+                    return INITIALIZE_UPDATE.clone();
+                case 0xCA:
+                case 0xCB:
+                    return HexUtils.hex2bin("6A88");
+                default:
+                    return HexUtils.hex2bin("6D00");
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package pro.javacard.gptool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+public class TestBatchFile {
+
+    @Test
+    public void testTokenize() {
+        Assert.assertEquals(BatchFile.tokenize("  --load \"my applet.cap\"  --params '' "), List.of("--load", "my applet.cap", "--params", ""));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnterminatedQuote() {
+        BatchFile.tokenize("--load \"my applet.cap");
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        List<BatchFile.Step> steps = BatchFile.parse(new StringReader("# comment\n\n--delete A000000617 --force\n--list\n"));
+        Assert.assertEquals(steps.size(), 2);
+        Assert.assertEquals(steps.get(0).line, 3);
+        Assert.assertTrue(steps.get(0).args.has(GPCommandLineInterface.OPT_DELETE));
+        Assert.assertTrue(steps.get(1).args.has(GPCommandLineInterface.OPT_LIST));
+    }
+
+    @Test
+    public void testSessionOptionRejected() throws Exception {
+        try {
+            BatchFile.parse(new StringReader("--list\n--key 404142434445464748494A4B4C4D4E4F --list\n"));
+            Assert.fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().startsWith("line 2:"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPreAuthenticationOptionRejected() throws Exception {
+        for (String option : new String[]{"--apdu 00A4040000", "--info", "--bs 80", "--profile default", "--connect A000000151000000"}) {
+            try {
+                BatchFile.parse(new StringReader("--list\n\n" + option + "\n"));
+                Assert.fail("Expected failure for " + option);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().startsWith("line 3: not allowed in batch"), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package pro.javacard.gptool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class TestFleetRunner {
+
+    @Test
+    public void testOutputIsolation() throws Exception {
+        FleetRunner.ThreadOutput.install();
+        try {
+            ByteArrayOutputStream[] buffers = new ByteArrayOutputStream[2];
+            Thread[] threads = new Thread[2];
+            for (int i = 0; i < threads.length; i++) {
+                final int n = i;
+                threads[i] = new Thread(() -> {
+                    buffers[n] = FleetRunner.ThreadOutput.capture();
+                    for (int j = 0; j < 100; j++) {
+                        System.out.println("card " + n);
+                        System.err.println("error " + n);
+                    }
+                    FleetRunner.ThreadOutput.release();
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads)
+                t.join();
+            for (int i = 0; i < buffers.length; i++) {
+                String out = buffers[i].toString(StandardCharsets.UTF_8);
+                Assert.assertFalse(out.contains("card " + (1 - i)));
+                Assert.assertEquals(out.split(System.lineSeparator()).length, 200);
+            }
+        } finally {
+            FleetRunner.ThreadOutput.uninstall();
+        }
+    }
+
+    @Test
+    public void testSummary() {
+        List<FleetRunner.Result> results = List.of(
+                new FleetRunner.Result("A", 0, 1_000_000_000L, ""),
+                new FleetRunner.Result("B", 1, 2_000_000_000L, ""));
+        Assert.assertEquals(FleetRunner.summary(results, 2_000_000_000L), "# Fleet: 1 OK, 1 failed, wall 2000 ms, median 2000 ms, max 2000 ms, 60.0 cards/min");
+        Assert.assertEquals(FleetRunner.parseNames(" a, ,b "), List.of("a", "b"));
+    }
+}
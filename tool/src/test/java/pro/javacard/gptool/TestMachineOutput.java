@@ -0,0 +1,60 @@
+package pro.javacard.gptool;
+
+import apdu4j.core.CommandAPDU;
+import apdu4j.core.HexUtils;
+import apdu4j.core.ResponseAPDU;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPKeyInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class TestMachineOutput {
+    static final byte[] CPLC = HexUtils.hex2bin("9F7F2A4790503340018235380000123400040000480400001234000000000000000000000000000000000000");
+    static final byte[] KEYS = HexUtils.hex2bin("E012C00401018810C00402018810C00403018810");
+
+    static void records(MachineOutput out) throws Exception {
+        out.apdu(new CommandAPDU(HexUtils.hex2bin("80CA9F7F00")), new ResponseAPDU(HexUtils.hex2bin("01029000")), false);
+        out.data("IIN", HexUtils.hex2bin("42"));
+        out.data("CIN", null);
+        out.cplc(GPData.CPLC.fromBytes(CPLC));
+        out.keys(GPKeyInfo.parseTemplate(KEYS));
+    }
+
+    @Test
+    public void testJsonLines() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (MachineOutput out = new MachineOutput(MachineOutput.Format.JSON, bos)) {
+            records(out);
+        }
+        String[] lines = bos.toString(StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(lines.length, 6);
+        JsonNode apdu = APDUParsers.json.readTree(lines[0]);
+        Assert.assertEquals(apdu.get("type").asText(), "apdu");
+        Assert.assertEquals(apdu.get("command").asText(), "80CA9F7F00");
+        Assert.assertEquals(apdu.get("sw").asInt(), 0x9000);
+        Assert.assertEquals(apdu.get("data").asText(), "0102");
+        Assert.assertEquals(APDUParsers.json.readTree(lines[1]).get("value").asText(), "42");
+        JsonNode cplc = APDUParsers.json.readTree(lines[2]);
+        Assert.assertEquals(cplc.get("ICFabricator").asText(), "4790");
+        Assert.assertEquals(APDUParsers.json.readTree(lines[5]).get("id").asInt(), 3);
+    }
+
+    @Test
+    public void testCborSequence() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (MachineOutput out = new MachineOutput(MachineOutput.Format.CBOR, bos)) {
+            records(out);
+        }
+        MappingIterator<JsonNode> it = APDUParsers.cbor.readerFor(JsonNode.class).readValues(bos.toByteArray());
+        List<JsonNode> records = it.readAll();
+        Assert.assertEquals(records.size(), 6);
+        Assert.assertEquals(records.get(0).get("data").binaryValue(), HexUtils.hex2bin("0102"));
+        Assert.assertEquals(records.get(3).get("key").asText(), records.get(4).get("key").asText());
+    }
+}
@@ -1,10 +1,18 @@
 package pro.javacard.gptool;
 
+import apdu4j.core.APDUBIBO;
 import apdu4j.core.HexUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
+import pro.javacard.gp.GPCardKeys.KeyPurpose;
+import pro.javacard.gp.GPCardSimulator;
 import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.GPSecureChannelVersion.SCP;
+import pro.javacard.gp.GPSession;
 import pro.javacard.gp.GPUtils;
+import pro.javacard.gp.SCP03KeySchedule;
+
+import java.util.EnumSet;
 
 import static pro.javacard.gp.GPCardKeys.KeyPurpose.ENC;
 
@@ -25,4 +33,41 @@ public class TestSCP03 {
         System.out.println("ENC: " + HexUtils.bin2hex(kv));
         Assert.assertEquals(HexUtils.hex2bin("9AAC5D0B3601F89438A0D9D0B6B256CFB47E6462DFA5228D3420C4AC7C224781"), kv);
     }
+
+    @Test
+    public void testKeySchedule() throws Exception {
+        byte[] kdd = HexUtils.stringToBin("D9B1DE5D0362DEDCE4FB");
+        byte[] master = HexUtils.stringToBin("8C72C72CF908411653018807950D82FBAD947562F0828A0B10B8B9606ABF3BCD");
+        byte[] context = HexUtils.stringToBin("0102030405060708090A0B0C0D0E0F10");
+        PlaintextKeys keys = PlaintextKeys.fromMasterKey(master, PlaintextKeys.KDF.KDF3);
+        keys.diversify(SCP.SCP03, kdd);
+        SCP03KeySchedule.SessionKeys session = keys.getKeySchedule().get().derive(context);
+        Assert.assertEquals(session.getEnc(), keys.getSessionKey(KeyPurpose.ENC, context));
+        Assert.assertEquals(session.getMac(), keys.getSessionKey(KeyPurpose.MAC, context));
+        Assert.assertEquals(session.getRmac(), keys.getSessionKey(KeyPurpose.RMAC, context));
+
+        // Not for SCP02
+        PlaintextKeys scp02 = PlaintextKeys.defaultKey();
+        scp02.diversify(SCP.SCP02, kdd);
+        Assert.assertTrue(scp02.getKeySchedule().isEmpty());
+
+        // Session with the card simulator goes through the schedule
+        byte[] key = HexUtils.hex2bin("404142434445464748494A4B4C4D4E4F");
+        GPSession gp = GPSession.discover(new APDUBIBO(new GPCardSimulator(SCP.SCP03, key)));
+        gp.openSecureChannel(PlaintextKeys.fromMasterKey(key), null, null, EnumSet.of(GPSession.APDUMode.ENC));
+        Assert.assertNotNull(gp.getRegistry());
+    }
+
+    @Test
+    public void testKCVAfterDiversify() {
+        byte[] kdd = HexUtils.stringToBin("D9B1DE5D0362DEDCE4FB");
+        byte[] master = HexUtils.stringToBin("8C72C72CF908411653018807950D82FBAD947562F0828A0B10B8B9606ABF3BCD");
+        PlaintextKeys keys = PlaintextKeys.fromMasterKey(master, PlaintextKeys.KDF.KDF3);
+        Assert.assertEquals(keys.kcv(KeyPurpose.ENC), GPCrypto.kcv_aes(master));
+        keys.diversify(SCP.SCP03, kdd);
+        byte[] enc = HexUtils.hex2bin("9AAC5D0B3601F89438A0D9D0B6B256CFB47E6462DFA5228D3420C4AC7C224781");
+        Assert.assertEquals(keys.kcv(KeyPurpose.ENC), GPCrypto.kcv_aes(enc));
+        Assert.assertEquals(keys.kcvs().get(KeyPurpose.ENC), GPCrypto.kcv_aes(enc));
+        Assert.assertEquals(keys.kcvs().size(), 3);
+    }
 }